@@ -0,0 +1,371 @@
+/*
+ * @(#) BTAnalyzer.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTAnalyzer walks a BTreeFile once, depth first, and reports its shape:
+ * height, pages per level, fill factor distribution, runs of empty leaves,
+ * how far the leaf chain is from physical page order and bytes per key. Only
+ * the pages on the current root-to-leaf path are pinned at any time and
+ * nothing per page is kept, so it can be run on indexes of any size. main()
+ * also projects the index onto larger page sizes.
+ * <p>
+ * Usage: java btree.BTAnalyzer dbpath indexname [bufpoolsize]
+ */
+public class BTAnalyzer implements GlobalConst {
+
+	/** Number of buckets of the fill factor histograms (10% each). */
+	public final static int FILL_BUCKETS = 10;
+
+	private final static int MAX_LEVELS = 32;
+
+	/** page sizes main() projects the index onto */
+	private final static int[] PROJECTED_PAGE_SIZES = { MINIBASE_PAGESIZE,
+			4096, 16384, 65536 };
+
+	/** The result of one analysis. */
+	public static class Report {
+		public String filename;
+		public int height;
+		public boolean unbalanced;
+		public long[] pagesPerLevel = new long[MAX_LEVELS];
+		public long indexPages;
+		public long leafPages;
+		public long entries;
+		public long indexBytesUsed;
+		public long leafBytesUsed;
+		public long[] indexFill = new long[FILL_BUCKETS];
+		public long[] leafFill = new long[FILL_BUCKETS];
+
+		public long emptyLeaves;
+		public long emptyLeafRuns;
+		public long longestEmptyLeafRun;
+
+		/** consecutive leaves whose page numbers are consecutive too */
+		public long sequentialLinks;
+		public long forwardJumps;
+		public long backwardJumps;
+		public long totalJumpDistance;
+		/** prev/next links that do not match the key order of the leaves */
+		public long brokenChainLinks;
+
+		public double avgLeafFill() {
+			return leafPages == 0 ? 0.0 : (double) leafBytesUsed
+					/ (leafPages * usablePageSize());
+		}
+
+		public double avgIndexFill() {
+			return indexPages == 0 ? 0.0 : (double) indexBytesUsed
+					/ (indexPages * usablePageSize());
+		}
+
+		/** fraction of leaf to leaf steps that are not to the next page */
+		public double leafDisorder() {
+			long links = sequentialLinks + forwardJumps + backwardJumps;
+			return links == 0 ? 0.0 : (double) (forwardJumps + backwardJumps)
+					/ links;
+		}
+
+		/** index, leaf and header pages per key */
+		public double bytesPerKey() {
+			return entries == 0 ? 0.0
+					: (double) ((indexPages + leafPages + 1) * MINIBASE_PAGESIZE)
+							/ entries;
+		}
+
+		public void print(PrintStream out) {
+			out.println("index " + filename);
+			out.println("  height " + height
+					+ (unbalanced ? " (UNBALANCED: leaves at several depths)"
+							: ""));
+			for (int i = 0; i < height; i++)
+				out.println("  level " + i + ": " + pagesPerLevel[i] + " pages");
+			out.println("  " + indexPages + " index pages, " + leafPages
+					+ " leaf pages, " + entries + " entries");
+			out.println("  average fill: index "
+					+ String.format("%.1f%%", 100 * avgIndexFill()) + ", leaf "
+					+ String.format("%.1f%%", 100 * avgLeafFill()));
+			out.println("  index fill histogram: " + histogram(indexFill));
+			out.println("  leaf fill histogram:  " + histogram(leafFill));
+			out.println("  empty leaves " + emptyLeaves + " in " + emptyLeafRuns
+					+ " runs, longest run " + longestEmptyLeafRun);
+			long links = sequentialLinks + forwardJumps + backwardJumps;
+			out.println("  leaf chain: " + sequentialLinks + " of " + links
+					+ " steps to the next page, " + forwardJumps
+					+ " forward jumps, " + backwardJumps + " backward jumps");
+			out.println("  leaf disorder "
+					+ String.format("%.3f", leafDisorder())
+					+ ", average jump "
+					+ (links == 0 ? 0 : totalJumpDistance / links) + " pages");
+			if (brokenChainLinks > 0)
+				out.println("  BROKEN leaf chain links: " + brokenChainLinks);
+			out.println("  bytes per key "
+					+ String.format("%.1f", bytesPerKey()));
+		}
+
+		/**
+		 * Project this index onto another page size: the same entries, of
+		 * the same sizes, at the fill factors measured here. The page
+		 * classes are built for one page size, so other sizes are compared
+		 * this way.
+		 *
+		 * @param pageSize
+		 *            the page size in bytes. Input parameter.
+		 * @return pages per level of the projected index, root first
+		 */
+		public long[] projectLevels(int pageSize) {
+			if (entries == 0)
+				return new long[] { 1 };
+			int usable = pageSize - HFPage.DPFIXED;
+			double leafEntry = (double) leafBytesUsed / entries;
+			double leafFill = Math.max(avgLeafFill(), 0.01);
+			// every page but the root hangs from an index page; the first
+			// child of each index page needs no entry
+			double indexEntry = indexPages == 0 || leafPages < 2 ? leafEntry - 4
+					: (double) indexBytesUsed / (leafPages - 1);
+			double indexFill = indexPages == 0 ? leafFill : Math.max(
+					avgIndexFill(), 0.01);
+			long fanout = Math.max(2, (long) (usable * indexFill / indexEntry) + 1);
+
+			LinkedList<Long> levels = new LinkedList<Long>();
+			long pages = Math.max(1, (long) Math.ceil(entries * leafEntry
+					/ (usable * leafFill)));
+			levels.addFirst(Long.valueOf(pages));
+			while (pages > 1) {
+				pages = (pages + fanout - 1) / fanout;
+				levels.addFirst(Long.valueOf(pages));
+			}
+			long[] result = new long[levels.size()];
+			for (int i = 0; i < result.length; i++)
+				result[i] = levels.get(i).longValue();
+			return result;
+		}
+
+		/**
+		 * Print projectLevels for each page size: the height, which is the
+		 * number of pages a point lookup reads, the bytes it reads, and the
+		 * size of the index.
+		 *
+		 * @param out
+		 *            where to print. Input parameter.
+		 * @param pageSizes
+		 *            the page sizes in bytes. Input parameter.
+		 */
+		public void printProjection(PrintStream out, int[] pageSizes) {
+			out.println("  projected at other page sizes (measured fill):");
+			for (int size : pageSizes) {
+				long[] levels = projectLevels(size);
+				long total = 1;
+				for (long pages : levels)
+					total += pages;
+				out.println("    " + size + " bytes: height " + levels.length
+						+ ", " + (total - 1 - levels[levels.length - 1])
+						+ " index pages, " + levels[levels.length - 1]
+						+ " leaf pages, lookup reads " + levels.length
+						+ " pages / " + levels.length * (long) size
+						+ " bytes, file " + total * size + " bytes");
+			}
+		}
+
+		private static String histogram(long[] buckets) {
+			StringBuffer sb = new StringBuffer();
+			for (int i = 0; i < buckets.length; i++) {
+				sb.append(i * 100 / buckets.length).append("%:")
+						.append(buckets[i]);
+				if (i < buckets.length - 1)
+					sb.append(' ');
+			}
+			return sb.toString();
+		}
+	}
+
+	private final int keyType;
+	private final Report report = new Report();
+
+	// streaming state of the leaf chain in key order
+	private int prevLeaf = INVALID_PAGE;
+	private int prevLeafNext = INVALID_PAGE;
+	private long emptyRun;
+
+	private BTAnalyzer(BTreeFile file, String filename) throws IOException {
+		keyType = file.getHeaderPage().get_keyType();
+		report.filename = filename;
+	}
+
+	/**
+	 * Analyze an open index.
+	 *
+	 * @param file
+	 *            the index. Input parameter.
+	 * @param filename
+	 *            name of the index, only used in the report. Input parameter.
+	 * @return the report
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public static Report analyze(BTreeFile file, String filename)
+			throws IOException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTAnalyzer analyzer = new BTAnalyzer(file, filename);
+		PageId root = file.getHeaderPage().get_rootId();
+		if (root.pid != INVALID_PAGE) {
+			analyzer._analyze(root, 0);
+			analyzer.endLeafChain();
+		}
+		return analyzer.report;
+	}
+
+	private void _analyze(PageId pageno, int level) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+
+		Page page = pinPage(pageno);
+		BTSortedPage sortedPage = new BTSortedPage(page, keyType);
+
+		if (level < MAX_LEVELS)
+			report.pagesPerLevel[level]++;
+		int used = usedBytes(sortedPage);
+
+		if (sortedPage.getType() == NodeType.INDEX) {
+			report.indexPages++;
+			report.indexBytesUsed += used;
+			report.indexFill[bucket(used)]++;
+
+			BTIndexPage indexPage = new BTIndexPage(page, keyType);
+			RID rid = new RID();
+			_analyze(indexPage.getPrevPage(), level + 1);
+			for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+					.getNext(rid)) {
+				_analyze(((IndexData) entry.data).getData(), level + 1);
+			}
+		} else {
+			BTLeafPage leafPage = new BTLeafPage(page, keyType);
+			int height = level + 1;
+			if (report.height == 0)
+				report.height = height;
+			else if (report.height != height) {
+				report.unbalanced = true;
+				report.height = Math.max(report.height, height);
+			}
+
+			report.leafPages++;
+			report.leafBytesUsed += used;
+			report.leafFill[bucket(used)]++;
+			int count = leafPage.getSlotCnt();
+			report.entries += count;
+			visitLeaf(pageno.pid, leafPage.getPrevPage().pid,
+					leafPage.getNextPage().pid, count);
+		}
+
+		unpinPage(pageno);
+	}
+
+	private void visitLeaf(int pid, int prevLink, int nextLink, int count) {
+		if (prevLeaf != INVALID_PAGE) {
+			int jump = pid - prevLeaf;
+			if (jump == 1)
+				report.sequentialLinks++;
+			else if (jump > 1)
+				report.forwardJumps++;
+			else
+				report.backwardJumps++;
+			report.totalJumpDistance += Math.abs(jump);
+			if (prevLeafNext != pid)
+				report.brokenChainLinks++;
+		}
+		if (prevLink != prevLeaf)
+			report.brokenChainLinks++;
+
+		if (count == 0) {
+			report.emptyLeaves++;
+			if (emptyRun++ == 0)
+				report.emptyLeafRuns++;
+			report.longestEmptyLeafRun = Math.max(
+					report.longestEmptyLeafRun, emptyRun);
+		} else {
+			emptyRun = 0;
+		}
+
+		prevLeaf = pid;
+		prevLeafNext = nextLink;
+	}
+
+	private void endLeafChain() {
+		if (prevLeaf != INVALID_PAGE && prevLeafNext != INVALID_PAGE)
+			report.brokenChainLinks++;
+	}
+
+	private static int usablePageSize() {
+		return MINIBASE_PAGESIZE - HFPage.DPFIXED;
+	}
+
+	private static int usedBytes(HFPage page) throws IOException {
+		// available_space() already keeps back room for one more slot
+		return usablePageSize()
+				- (page.available_space() + HFPage.SIZE_OF_SLOT);
+	}
+
+	private static int bucket(int used) {
+		int b = used * FILL_BUCKETS / usablePageSize();
+		return Math.max(0, Math.min(FILL_BUCKETS - 1, b));
+	}
+
+	private static Page pinPage(PageId pageno) throws PinPageException {
+		try {
+			Page page = BTreeFile.frameView();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	private static void unpinPage(PageId pageno) throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	public static void main(String[] argv) {
+		if (argv.length < 2) {
+			System.err.println("usage: java btree.BTAnalyzer dbpath indexname [bufpoolsize]");
+			Runtime.getRuntime().exit(1);
+		}
+		int bufpoolsize = argv.length > 2 ? Integer.parseInt(argv[2]) : NUMBUF;
+		try {
+			// 0 pages opens the existing database
+			new SystemDefs(argv[0], 0, bufpoolsize, "Clock");
+			BTreeFile file = new BTreeFile(argv[1]);
+			Report report = analyze(file, argv[1]);
+			report.print(System.out);
+			report.printProjection(System.out, PROJECTED_PAGE_SIZES);
+			file.close();
+			SystemDefs.JavabaseBM.flushAllPages();
+		} catch (Exception e) {
+			e.printStackTrace();
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,831 @@
+/*
+ * @(#) BTBufferedFile.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import bufmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTBufferedFile is a B+ tree with a message buffer in every index page, in
+ * the style of a buffered repository tree. Inserts and deletes do not walk
+ * down to a leaf: they are appended as messages to the buffer of the root.
+ * When a buffer is full its messages are pushed one level down in a batch,
+ * and the buffers just above the leaves apply theirs to the leaves in key
+ * order. A random insert costs a fraction of a page write instead of a leaf
+ * read and write.
+ * <p>
+ * The tree itself is a BTreeFile of the same name. The buffer of an index
+ * page is a chain of heap pages hanging off the index page's next page
+ * link, which the B+ tree does not use; the newest buffer page is first.
+ * Messages further down are older. Scans and deletes read the messages of
+ * the root-to-leaf paths they cover and merge them with the tree.
+ * <p>
+ * A file written as BTBufferedFile has to be reopened as one, or flushed
+ * with flushBuffers() first. Buffer pages are not in the write-ahead log.
+ */
+public class BTBufferedFile extends IndexFile implements GlobalConst {
+
+	/** Buffer pages of an index page before they are pushed down. */
+	public final static int DEFAULT_BUFFER_PAGES = 4;
+
+	private final static byte INSERT = 1;
+	private final static byte DELETE = 2;
+
+	/** An insert or delete of a <key, rid> pair, as stored in a buffer. */
+	private static class Message {
+		final byte type;
+		final KeyDataEntry entry;
+		final byte[] record;
+
+		Message(byte type, KeyDataEntry entry, byte[] record) {
+			this.type = type;
+			this.entry = entry;
+			this.record = record;
+		}
+
+		RID rid() {
+			return ((LeafData) entry.data).getData();
+		}
+	}
+
+	private final static Comparator<Message> BY_KEY = new Comparator<Message>() {
+		public int compare(Message a, Message b) {
+			try {
+				return BT.keyCompare(a.entry.key, b.entry.key);
+			} catch (KeyNotMatchException e) {
+				throw new ClassCastException("key types do not match");
+			}
+		}
+	};
+
+	private final BTreeFile tree;
+	private final int keyType;
+	private int bufferPages = DEFAULT_BUFFER_PAGES;
+
+	/**
+	 * BTBufferedFile class an index file with given filename should already
+	 * exist; this opens it.
+	 *
+	 * @param filename
+	 *            the B+ tree file name. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not ger the file from DB
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception ConstructPageException
+	 *                BT page constructor failed
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTBufferedFile(String filename) throws GetFileEntryException,
+			PinPageException, ConstructPageException, IOException {
+		this(new BTreeFile(filename));
+	}
+
+	/**
+	 * if index file exists, open it; else create it.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTBufferedFile(String filename, int keytype, int keysize)
+			throws GetFileEntryException, ConstructPageException, IOException,
+			AddFileEntryException {
+		this(new BTreeFile(filename, keytype, keysize, DeleteFashion.NAIVE_DELETE));
+	}
+
+	private BTBufferedFile(BTreeFile tree) throws IOException {
+		this.tree = tree;
+		this.keyType = tree.getHeaderPage().get_keyType();
+		tree.setIndexSplitListener(new BTreeFile.IndexSplitListener() {
+			public void indexSplit(PageId left, PageId right, KeyClass separator)
+					throws PinPageException, UnpinPageException, IOException {
+				splitBuffer(left, right, separator);
+			}
+		});
+	}
+
+	/**
+	 * Set how many buffer pages an index page collects before they are
+	 * pushed down. More pages batch more messages per leaf write, and make
+	 * scans read more messages.
+	 *
+	 * @param pages
+	 *            buffer pages per index page. Input parameter.
+	 */
+	public void setBufferPages(int pages) {
+		bufferPages = Math.max(1, pages);
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		tree.checkKey(key);
+		PageId root = rootId();
+		if (!isIndex(root)) {
+			// no index page to buffer in yet
+			tree.applyInsert(key, rid);
+			return;
+		}
+		addMessage(root, encode(INSERT, key, rid));
+	}
+
+	/**
+	 * delete leaf entry given its <key, rid> pair. `rid' is IN the data
+	 * entry; it is not the id of the data entry.
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 * @exception DeleteRecException
+	 *                error from the buffers or the tree
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		try {
+			PageId root = rootId();
+			if (!isIndex(root))
+				return tree.applyDelete(key, rid);
+
+			BTDeltaBuffer.Delta d = pending(key, key).range(key, key).get(
+					new BTDeltaBuffer.DeltaKey(key, rid));
+			boolean exists = (d != null && d.inserts > 0)
+					|| ((d == null || !d.deleted) && tree.inTree(key, rid));
+			if (!exists)
+				return false;
+			addMessage(root, encode(DELETE, key, rid));
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DeleteRecException(e, "");
+		}
+	}
+
+	/**
+	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
+	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from
+	 * min to the hi_key (3) lo_key!= null, hi_key = null range scan from the
+	 * lo_key to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact
+	 * match ( might not unique) (5) lo_key!= null, hi_key!= null, lo_key <
+	 * hi_key range scan from lo_key to hi_key
+	 *
+	 * The messages still in the buffers of the range are read once, when
+	 * the scan is created.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		BTDeltaBuffer deltas = pending(lo_key, hi_key);
+		return new BTMergeScan(this, tree.new_scan(lo_key, hi_key), deltas
+				.range(lo_key, hi_key));
+	}
+
+	/**
+	 * create a scan with given keys, like new_scan(lo_key, hi_key), that
+	 * returns the entries in the given order; see BTreeFile.new_scan.
+	 *
+	 * @param lo_key
+	 *            the smallest key of the scan. Input parameter.
+	 * @param hi_key
+	 *            the largest key of the scan. Input parameter.
+	 * @param order
+	 *            ScanOrder.ASCENDING or ScanOrder.DESCENDING. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key, int order)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (order != ScanOrder.DESCENDING)
+			return new_scan(lo_key, hi_key);
+		BTDeltaBuffer deltas = pending(lo_key, hi_key);
+		return new BTMergeScan(this, tree.new_scan(lo_key, hi_key, order),
+				deltas.range(lo_key, hi_key), true);
+	}
+
+	/**
+	 * create a filtered scan with given keys and order, like
+	 * BTreeFile.new_scan(lo_key, hi_key, order, filter, offset, limit). The
+	 * offset and the limit count the entries merged with the messages still
+	 * in the buffers.
+	 *
+	 * @param lo_key
+	 *            the smallest key of the scan. Input parameter.
+	 * @param hi_key
+	 *            the largest key of the scan. Input parameter.
+	 * @param order
+	 *            ScanOrder.ASCENDING or ScanOrder.DESCENDING. Input
+	 *            parameter.
+	 * @param filter
+	 *            the entries to return, null for all. Input parameter.
+	 * @param offset
+	 *            number of accepted entries to skip. Input parameter.
+	 * @param limit
+	 *            most entries to return, negative for no limit. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key, int order,
+			ScanFilter filter, int offset, int limit) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		BTDeltaBuffer deltas = pending(lo_key, hi_key);
+		BTMergeScan scan = new BTMergeScan(this, tree.new_scan(lo_key, hi_key,
+				order, filter, 0, -1), BTMergeScan.filter(deltas.range(lo_key,
+				hi_key), filter), order == ScanOrder.DESCENDING);
+		scan.limit(offset, limit);
+		return scan;
+	}
+
+	/**
+	 * Push every buffered message down to the leaves.
+	 *
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 */
+	public void flushBuffers() throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		// splits on the way may leave messages in new pages; go again
+		while (flushAll(rootId()) > 0)
+			;
+	}
+
+	/**
+	 * Close the B+ tree file. The buffers stay in the file.
+	 *
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 */
+	public void close() throws PageUnpinnedException,
+			InvalidFrameNumberException, HashEntryNotFoundException,
+			ReplacerException {
+		tree.close();
+	}
+
+	/**
+	 * Destroy entire B+ tree file and its buffers.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception DeleteFileEntryException
+	 *                failed when delete a file from DM
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 */
+	public void destroyFile() throws IOException, IteratorException,
+			UnpinPageException, FreePageException, DeleteFileEntryException,
+			ConstructPageException, PinPageException {
+		PageId root = rootId();
+		if (isIndex(root))
+			freeBuffers(root);
+		tree.destroyFile();
+	}
+
+	/** @return the B+ tree under the buffers. */
+	public BTreeFile getTree() {
+		return tree;
+	}
+
+	private PageId rootId() throws IOException {
+		return new PageId(tree.getHeaderPage().get_rootId().pid);
+	}
+
+	private Page pinPage(PageId pageno) throws PinPageException {
+		try {
+			Page page = BTreeFile.frameView();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			return page;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	private void unpinPage(PageId pageno, boolean dirty)
+			throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	/*
+	 * Unpin a buffer page and give it back. Messages are pushed down on the
+	 * insert path, so a failure surfaces as an unpin error.
+	 */
+	private void releasePage(PageId pageno) throws UnpinPageException {
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			SystemDefs.JavabaseBM.freePage(pageno);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	private boolean isIndex(PageId pageno) throws PinPageException,
+			UnpinPageException, IOException {
+		if (pageno.pid == INVALID_PAGE)
+			return false;
+		Page page = pinPage(pageno);
+		short type = new BTSortedPage(page, keyType).getType();
+		unpinPage(pageno, false);
+		return type == NodeType.INDEX;
+	}
+
+	private byte[] encode(byte type, KeyClass key, RID rid)
+			throws IteratorException {
+		try {
+			byte[] entry = BT.getBytesFromEntry(new KeyDataEntry(key, rid));
+			byte[] record = new byte[entry.length + 1];
+			record[0] = type;
+			System.arraycopy(entry, 0, record, 1, entry.length);
+			return record;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/*
+	 * Append a message to the buffer of `node' if there is room, or if
+	 * `maxPages' is 0. Returns false if the buffer is full.
+	 */
+	private boolean push(PageId node, byte[] record, int maxPages)
+			throws PinPageException, UnpinPageException, IOException {
+		HFPage nodePage = new HFPage(pinPage(node));
+		PageId head = new PageId(nodePage.getNextPage().pid);
+		if (head.pid != INVALID_PAGE) {
+			HFPage headPage = new HFPage(pinPage(head));
+			boolean added = headPage.insertRecord(record) != null;
+			unpinPage(head, added);
+			if (added || (maxPages > 0 && chainLength(head) >= maxPages)) {
+				unpinPage(node, false);
+				return added;
+			}
+		}
+
+		Page page = BTreeFile.frameView();
+		PageId newHead;
+		try {
+			newHead = SystemDefs.JavabaseBM.newPage(page, 1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			unpinPage(node, false);
+			throw new PinPageException(e, "");
+		}
+		HFPage headPage = new HFPage();
+		headPage.init(newHead, page);
+		headPage.setNextPage(head);
+		headPage.insertRecord(record);
+		unpinPage(newHead, true);
+		nodePage.setNextPage(newHead);
+		unpinPage(node, true);
+		return true;
+	}
+
+	private int chainLength(PageId head) throws PinPageException,
+			UnpinPageException, IOException {
+		int length = 0;
+		PageId pageno = head;
+		while (pageno.pid != INVALID_PAGE) {
+			HFPage page = new HFPage(pinPage(pageno));
+			PageId next = new PageId(page.getNextPage().pid);
+			unpinPage(pageno, false);
+			pageno = next;
+			length++;
+		}
+		return length;
+	}
+
+	private void addMessage(PageId root, byte[] record)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		if (push(root, record, bufferPages))
+			return;
+		flushNode(root);
+		push(root, record, 0);
+	}
+
+	/*
+	 * The messages of a buffer chain, oldest first.
+	 */
+	private List<Message> readMessages(PageId head) throws PinPageException,
+			UnpinPageException, IteratorException, IOException {
+		LinkedList<PageId> chain = new LinkedList<PageId>();
+		for (PageId pageno = head; pageno.pid != INVALID_PAGE;) {
+			chain.addFirst(pageno);
+			HFPage page = new HFPage(pinPage(pageno));
+			PageId next = new PageId(page.getNextPage().pid);
+			unpinPage(pageno, false);
+			pageno = next;
+		}
+
+		List<Message> messages = new ArrayList<Message>();
+		for (PageId pageno : chain) {
+			HFPage page = new HFPage(pinPage(pageno));
+			byte[] data = page.getHFpageArray();
+			for (RID rid = page.firstRecord(); rid != null; rid = page
+					.nextRecord(rid)) {
+				int offset = page.getSlotOffset(rid.slotNo);
+				int length = page.getSlotLength(rid.slotNo);
+				byte[] record = new byte[length];
+				System.arraycopy(data, offset, record, 0, length);
+				try {
+					messages.add(new Message(record[0], BT.getEntryFromBytes(
+							record, 1, length - 1, keyType, NodeType.LEAF),
+							record));
+				} catch (Exception e) {
+					e.printStackTrace();
+					unpinPage(pageno, false);
+					throw new IteratorException(e, "");
+				}
+			}
+			unpinPage(pageno, false);
+		}
+		return messages;
+	}
+
+	/*
+	 * Detach the buffer of `node' and return its messages, oldest first.
+	 */
+	private List<Message> takeMessages(PageId node) throws PinPageException,
+			UnpinPageException, IteratorException, IOException {
+		HFPage nodePage = new HFPage(pinPage(node));
+		PageId head = new PageId(nodePage.getNextPage().pid);
+		if (head.pid == INVALID_PAGE) {
+			unpinPage(node, false);
+			return new ArrayList<Message>();
+		}
+		nodePage.setNextPage(new PageId(INVALID_PAGE));
+		unpinPage(node, true);
+
+		List<Message> messages = readMessages(head);
+		while (head.pid != INVALID_PAGE) {
+			HFPage page = new HFPage(pinPage(head));
+			PageId next = new PageId(page.getNextPage().pid);
+			releasePage(head);
+			head = next;
+		}
+		return messages;
+	}
+
+	/*
+	 * Push the buffer of index page `node' one level down. Returns the
+	 * number of messages moved.
+	 */
+	private int flushNode(PageId node) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		List<Message> messages = takeMessages(node);
+		if (messages.isEmpty())
+			return 0;
+
+		BTIndexPage index = new BTIndexPage(pinPage(node), keyType);
+		if (!isIndex(index.getPrevPage())) {
+			unpinPage(node, false);
+			// oldest first within a key; neighbouring keys share a leaf
+			Collections.sort(messages, BY_KEY);
+			for (Message m : messages) {
+				if (m.type == INSERT)
+					tree.applyInsert(m.entry.key, m.rid());
+				else
+					tree.applyDelete(m.entry.key, m.rid());
+			}
+			return messages.size();
+		}
+
+		LinkedHashMap<Integer, List<Message>> byChild = new LinkedHashMap<Integer, List<Message>>();
+		try {
+			for (Message m : messages) {
+				Integer child = Integer.valueOf(index.getPageNoByKey(m.entry.key).pid);
+				List<Message> list = byChild.get(child);
+				if (list == null) {
+					list = new ArrayList<Message>();
+					byChild.put(child, list);
+				}
+				list.add(m);
+			}
+		} finally {
+			unpinPage(node, false);
+		}
+		for (Map.Entry<Integer, List<Message>> e : byChild.entrySet()) {
+			PageId child = new PageId(e.getKey().intValue());
+			for (Message m : e.getValue())
+				push(child, m.record, 0);
+		}
+		for (Integer pid : byChild.keySet()) {
+			PageId child = new PageId(pid.intValue());
+			if (chainLength(bufferHead(child)) > bufferPages)
+				flushNode(child);
+		}
+		return messages.size();
+	}
+
+	private PageId bufferHead(PageId node) throws PinPageException,
+			UnpinPageException, IOException {
+		HFPage page = new HFPage(pinPage(node));
+		PageId head = new PageId(page.getNextPage().pid);
+		unpinPage(node, false);
+		return head;
+	}
+
+	private int flushAll(PageId node) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		if (!isIndex(node))
+			return 0;
+		int moved = flushNode(node);
+		for (PageId child : indexChildren(node))
+			moved += flushAll(child);
+		return moved;
+	}
+
+	/*
+	 * The children of index page `node' if they are index pages too.
+	 */
+	private List<PageId> indexChildren(PageId node) throws PinPageException,
+			UnpinPageException, ConstructPageException, IteratorException,
+			IOException {
+		List<PageId> children = new ArrayList<PageId>();
+		BTIndexPage index = new BTIndexPage(pinPage(node), keyType);
+		try {
+			PageId first = new PageId(index.getPrevPage().pid);
+			if (!isIndex(first))
+				return children;
+			children.add(first);
+			RID rid = new RID();
+			for (KeyDataEntry e = index.getFirst(rid); e != null; e = index
+					.getNext(rid))
+				children.add(new PageId(((IndexData) e.data).getData().pid));
+		} finally {
+			unpinPage(node, false);
+		}
+		return children;
+	}
+
+	/*
+	 * Index page `left' was split at `separator': the messages the right
+	 * half is now responsible for move to the buffer of `right'.
+	 */
+	private void splitBuffer(PageId left, PageId right, KeyClass separator)
+			throws PinPageException, UnpinPageException, IOException {
+		try {
+			List<Message> messages = takeMessages(left);
+			for (Message m : messages)
+				push(BT.keyCompare(m.entry.key, separator) >= 0 ? right : left,
+						m.record, 0);
+		} catch (IteratorException e) {
+			throw new PinPageException(e, "");
+		} catch (KeyNotMatchException e) {
+			throw new PinPageException(e, "");
+		}
+	}
+
+	/*
+	 * The effect of the buffered messages from lo_key to hi_key, as a delta
+	 * buffer over the tree: deeper messages are older, so they go first.
+	 */
+	private BTDeltaBuffer pending(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		List<List<Message>> levels = new ArrayList<List<Message>>();
+		PageId root = rootId();
+		if (isIndex(root))
+			collect(root, 0, lo_key, hi_key, levels);
+
+		BTDeltaBuffer deltas = new BTDeltaBuffer();
+		for (int level = levels.size() - 1; level >= 0; level--) {
+			for (Message m : levels.get(level)) {
+				if (m.type == INSERT)
+					deltas.insert(m.entry.key, m.rid());
+				else
+					deltas.delete(m.entry.key, m.rid());
+			}
+		}
+		return deltas;
+	}
+
+	private void collect(PageId node, int level, KeyClass lo_key,
+			KeyClass hi_key, List<List<Message>> levels) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		while (levels.size() <= level)
+			levels.add(new ArrayList<Message>());
+		List<Message> messages = levels.get(level);
+		for (Message m : readMessages(bufferHead(node)))
+			if ((lo_key == null || BT.keyCompare(m.entry.key, lo_key) >= 0)
+					&& (hi_key == null || BT.keyCompare(m.entry.key, hi_key) <= 0))
+				messages.add(m);
+
+		// child i holds the keys from key i to key i+1, both inclusive
+		List<PageId> children = new ArrayList<PageId>();
+		BTIndexPage index = new BTIndexPage(pinPage(node), keyType);
+		try {
+			PageId child = new PageId(index.getPrevPage().pid);
+			if (!isIndex(child))
+				return;
+			KeyClass low = null;
+			RID rid = new RID();
+			for (KeyDataEntry e = index.getFirst(rid);; e = index.getNext(rid)) {
+				KeyClass high = e == null ? null : e.key;
+				if ((hi_key == null || low == null || BT.keyCompare(low, hi_key) <= 0)
+						&& (lo_key == null || high == null || BT.keyCompare(high,
+								lo_key) >= 0))
+					children.add(child);
+				if (e == null)
+					break;
+				child = new PageId(((IndexData) e.data).getData().pid);
+				low = e.key;
+			}
+		} finally {
+			unpinPage(node, false);
+		}
+		for (PageId child : children)
+			collect(child, level + 1, lo_key, hi_key, levels);
+	}
+
+	private void freeBuffers(PageId node) throws IOException,
+			IteratorException, UnpinPageException, PinPageException,
+			ConstructPageException {
+		PageId head = bufferHead(node);
+		while (head.pid != INVALID_PAGE) {
+			HFPage page = new HFPage(pinPage(head));
+			PageId next = new PageId(page.getNextPage().pid);
+			releasePage(head);
+			head = next;
+		}
+		for (PageId child : indexChildren(node))
+			freeBuffers(child);
+	}
+}
@@ -0,0 +1,618 @@
+/*
+ * @(#) BTBulkLoader.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTBulkLoader builds a BTreeFile over a heap file bottom up, on all cores.
+ * <p>
+ * The heap file is read in chunks; every chunk is handed to a fork/join
+ * task that extracts the keys and sorts them while the next chunk is read.
+ * The sorted chunks are merged pairwise by a tree of tasks, and the sorted
+ * entries are cut into ranges that are packed into leaf pages concurrently.
+ * The leaves get one contiguous run of pages and are chained in key order;
+ * the index levels are then built over them, one level at a time, until one
+ * page is left as the root.
+ * <p>
+ * Pages are formatted in memory by the workers, then written through the
+ * buffer pool on the calling thread, marked dirty and, when the index has a
+ * write-ahead log, logged like the pages of an insert. The root is set last,
+ * through the header page as an insert sets it. The result is a normal
+ * BTreeFile.
+ * <p>
+ * A heap file too large to sort in memory is built with a frame budget: the
+ * sorted chunks become the runs of a BTExternalSort, and the leaves are
+ * packed from its merged output as it streams. A scan of another index is
+ * streamed into leaves the same way.
+ */
+public class BTBulkLoader implements GlobalConst {
+
+	/**
+	 * Takes the key out of a heap file record. It is called from several
+	 * threads at once.
+	 */
+	public interface KeyExtractor {
+		/**
+		 * @param record
+		 *            the bytes of the record. Input parameter.
+		 * @param offset
+		 *            where the record starts. Input parameter.
+		 * @param length
+		 *            the length of the record. Input parameter.
+		 * @return the key of the record
+		 * @exception Exception
+		 *                the record has no valid key
+		 */
+		KeyClass getKey(byte[] record, int offset, int length)
+				throws Exception;
+	}
+
+	/** Records read before they are handed to a task. */
+	public final static int CHUNK_RECORDS = 8192;
+
+	/** Pages allocated at a time for leaves written as they are packed. */
+	private final static int LEAF_BATCH = 64;
+
+	/* entries in key order, null at the end */
+	private interface Entries {
+		KeyDataEntry next() throws Exception;
+	}
+
+	private final static Comparator<KeyDataEntry> ORDER = new Comparator<KeyDataEntry>() {
+		public int compare(KeyDataEntry a, KeyDataEntry b) {
+			int c;
+			try {
+				c = BT.keyCompare(a.key, b.key);
+			} catch (KeyNotMatchException e) {
+				throw new ClassCastException("key types do not match");
+			}
+			if (c != 0)
+				return c;
+			RID ra = ((LeafData) a.data).getData();
+			RID rb = ((LeafData) b.data).getData();
+			if (ra.pageNo.pid != rb.pageNo.pid)
+				return ra.pageNo.pid < rb.pageNo.pid ? -1 : 1;
+			return ra.slotNo - rb.slotNo;
+		}
+	};
+
+	private final ForkJoinPool pool;
+	private int fillFactor = 100;
+	private boolean writeAheadLog;
+
+	/**
+	 * A loader that uses all cores.
+	 */
+	public BTBulkLoader() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param parallelism
+	 *            number of worker threads. Input parameter.
+	 */
+	public BTBulkLoader(int parallelism) {
+		pool = new ForkJoinPool(Math.max(1, parallelism));
+	}
+
+	/**
+	 * Leave room in every page for later inserts.
+	 *
+	 * @param percent
+	 *            how full the pages are made, from 50 to 100. Input
+	 *            parameter.
+	 */
+	public void setFillFactor(int percent) {
+		fillFactor = Math.max(50, Math.min(100, percent));
+	}
+
+	/**
+	 * Build indexes with their write-ahead log on, as
+	 * BTreeFile.enableWriteAheadLog(false) turns it on: the pages are logged
+	 * as they are written, and the log is on disk when build returns.
+	 *
+	 * @param on
+	 *            whether to log. Input parameter.
+	 */
+	public void setWriteAheadLog(boolean on) {
+		writeAheadLog = on;
+	}
+
+	/** Stop the worker threads. */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Build a new index over every record of a heap file.
+	 *
+	 * @param filename
+	 *            the name of the new index; it must not exist or be empty.
+	 *            Input parameter.
+	 * @param heap
+	 *            the heap file to index. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param keys
+	 *            takes the key out of a record. Input parameter.
+	 * @return the index, open
+	 * @exception InsertException
+	 *                error from the lower layer, or a bad key
+	 */
+	public BTreeFile build(String filename, Heapfile heap, int keytype,
+			int keysize, KeyExtractor keys) throws InsertException {
+		try {
+			BTreeFile tree = create(filename, keytype, keysize);
+			List<KeyDataEntry[]> sorted = new ArrayList<KeyDataEntry[]>();
+			readChunks(heap, CHUNK_RECORDS, keys, tree, Integer.MAX_VALUE,
+					sorted, null);
+			KeyDataEntry[] entries = sorted.isEmpty() ? new KeyDataEntry[0]
+					: pool.invoke(new Merge(sorted, 0, sorted.size()));
+
+			tree.beginLoad();
+			tree.endLoad(load(tree, entries, keytype));
+			if (writeAheadLog)
+				tree.flushLog();
+			return tree;
+		} catch (InsertException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	/**
+	 * Build a new index over a heap file too large to sort in memory. The
+	 * records are still keyed and sorted in the pool, a chunk per worker at
+	 * a time, but the sorted chunks become the runs of a BTExternalSort
+	 * limited to `sortFrames' buffer frames. Its merged output is packed
+	 * into leaves as it streams out.
+	 *
+	 * @param filename
+	 *            the name of the new index; it must not exist or be empty.
+	 *            Input parameter.
+	 * @param heap
+	 *            the heap file to index. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param keys
+	 *            takes the key out of a record. Input parameter.
+	 * @param sortFrames
+	 *            buffer frames for the sort. Input parameter.
+	 * @return the index, open
+	 * @exception InsertException
+	 *                error from the lower layer, or a bad key
+	 */
+	public BTreeFile build(String filename, Heapfile heap, int keytype,
+			int keysize, KeyExtractor keys, int sortFrames)
+			throws InsertException {
+		final BTExternalSort sort = new BTExternalSort(keytype, sortFrames);
+		try {
+			BTreeFile tree = create(filename, keytype, keysize);
+			// the chunks in memory together hold about sortFrames pages
+			int perPage = (MINIBASE_PAGESIZE - HFPage.DPFIXED)
+					/ (keysize + 8 + HFPage.SIZE_OF_SLOT);
+			int workers = pool.getParallelism();
+			readChunks(heap, Math.max(1, sortFrames * perPage / workers), keys,
+					tree, workers, null, sort);
+
+			tree.beginLoad();
+			tree.endLoad(stream(tree, new Entries() {
+				public KeyDataEntry next() throws Exception {
+					return sort.next();
+				}
+			}, keytype));
+			if (writeAheadLog)
+				tree.flushLog();
+			return tree;
+		} catch (InsertException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		} finally {
+			try {
+				sort.close();
+			} catch (IteratorException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Build a new index over <key, rid> pairs that are already in key order,
+	 * such as the entries of an index that is rebuilt.
+	 *
+	 * @param filename
+	 *            the name of the new index; it must not exist or be empty.
+	 *            Input parameter.
+	 * @param sorted
+	 *            the pairs, in key order. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @return the index, open
+	 * @exception InsertException
+	 *                error from the lower layer
+	 */
+	public BTreeFile build(String filename, KeyDataEntry[] sorted,
+			int keytype, int keysize) throws InsertException {
+		try {
+			BTreeFile tree = create(filename, keytype, keysize);
+			tree.beginLoad();
+			tree.endLoad(load(tree, sorted, keytype));
+			if (writeAheadLog)
+				tree.flushLog();
+			return tree;
+		} catch (InsertException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	/**
+	 * Build a new index over the entries a scan of another index returns,
+	 * such as the upper part of an index that is split. They are packed into
+	 * leaves as they come and are never all in memory. The scan is left at
+	 * its end; the caller destroys it.
+	 *
+	 * @param filename
+	 *            the name of the new index; it must not exist or be empty.
+	 *            Input parameter.
+	 * @param scan
+	 *            an ascending scan. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @return the index, open
+	 * @exception InsertException
+	 *                error from the lower layer
+	 */
+	public BTreeFile build(String filename, final BTFileScan scan,
+			int keytype, int keysize) throws InsertException {
+		try {
+			BTreeFile tree = create(filename, keytype, keysize);
+			tree.beginLoad();
+			tree.endLoad(stream(tree, new Entries() {
+				public KeyDataEntry next() throws Exception {
+					return scan.get_next();
+				}
+			}, keytype));
+			if (writeAheadLog)
+				tree.flushLog();
+			return tree;
+		} catch (InsertException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	private BTreeFile create(String filename, int keytype, int keysize)
+			throws Exception {
+		BTreeFile tree = new BTreeFile(filename, keytype, keysize,
+				DeleteFashion.NAIVE_DELETE);
+		if (tree.getHeaderPage().get_rootId().pid != INVALID_PAGE)
+			throw new InsertException(null, "index " + filename
+					+ " is not empty");
+		if (writeAheadLog)
+			tree.enableWriteAheadLog(false);
+		return tree;
+	}
+
+	/*
+	 * Read the heap file on this thread and key and sort it in the pool,
+	 * `chunkRecords' records per task and at most `maxInFlight' tasks at a
+	 * time. Sorted chunks go to `sorted', or to `sort' as runs.
+	 */
+	private void readChunks(Heapfile heap, int chunkRecords,
+			KeyExtractor keys, BTreeFile tree, int maxInFlight,
+			List<KeyDataEntry[]> sorted, BTExternalSort sort) throws Exception {
+		LinkedList<ForkJoinTask<KeyDataEntry[]>> chunks = new LinkedList<ForkJoinTask<KeyDataEntry[]>>();
+		Scan scan = heap.openScan();
+		try {
+			RID rid = new RID();
+			List<Tuple> records = new ArrayList<Tuple>();
+			List<RID> rids = new ArrayList<RID>();
+			for (Tuple t = scan.getNext(rid); t != null; t = scan.getNext(rid)) {
+				records.add(t);
+				rids.add(new RID(new PageId(rid.pageNo.pid), rid.slotNo));
+				if (records.size() == chunkRecords) {
+					if (chunks.size() >= maxInFlight)
+						sort.addRun(chunks.removeFirst().get());
+					chunks.add(pool.submit(new SortChunk(records, rids, keys,
+							tree)));
+					records = new ArrayList<Tuple>();
+					rids = new ArrayList<RID>();
+				}
+			}
+			if (!records.isEmpty())
+				chunks.add(pool.submit(new SortChunk(records, rids, keys, tree)));
+		} finally {
+			scan.closescan();
+		}
+		for (ForkJoinTask<KeyDataEntry[]> chunk : chunks) {
+			if (sort != null)
+				sort.addRun(chunk.get());
+			else
+				sorted.add(chunk.get());
+		}
+	}
+
+	/*
+	 * Write the leaves and the index levels of sorted `entries' into `tree';
+	 * returns the root.
+	 */
+	private PageId load(BTreeFile tree, final KeyDataEntry[] entries,
+			final int keytype) throws Exception {
+		if (entries.length == 0)
+			return new PageId(INVALID_PAGE);
+
+		// leaves: one range of entries per worker
+		int parts = Math.min(pool.getParallelism() * 4,
+				Math.max(1, entries.length / CHUNK_RECORDS));
+		List<ForkJoinTask<List<Page>>> packs = new ArrayList<ForkJoinTask<List<Page>>>();
+		for (int i = 0; i < parts; i++) {
+			final int from = (int) ((long) entries.length * i / parts);
+			final int to = (int) ((long) entries.length * (i + 1) / parts);
+			packs.add(pool.submit(new Callable<List<Page>>() {
+				public List<Page> call() throws Exception {
+					return packLeaves(entries, from, to, keytype);
+				}
+			}));
+		}
+		List<Page> leaves = new ArrayList<Page>();
+		for (ForkJoinTask<List<Page>> pack : packs)
+			leaves.addAll(pack.get());
+
+		int[] pids = allocate(leaves.size());
+		List<KeyClass> firstKeys = new ArrayList<KeyClass>(leaves.size());
+		RID rid = new RID();
+		for (int i = 0; i < leaves.size(); i++) {
+			BTLeafPage leaf = new BTLeafPage(leaves.get(i), keytype);
+			leaf.setCurPage(new PageId(pids[i]));
+			leaf.setPrevPage(new PageId(i > 0 ? pids[i - 1] : INVALID_PAGE));
+			leaf.setNextPage(new PageId(i + 1 < pids.length ? pids[i + 1]
+					: INVALID_PAGE));
+			firstKeys.add(leaf.getFirst(rid).key);
+		}
+		write(tree, leaves, pids);
+		return buildIndex(tree, pids, firstKeys, keytype);
+	}
+
+	/*
+	 * Build the index levels over `pids', whose first keys are `firstKeys',
+	 * until one page is left; returns it.
+	 */
+	private PageId buildIndex(BTreeFile tree, int[] pids,
+			List<KeyClass> firstKeys, int keytype) throws Exception {
+		while (pids.length > 1) {
+			List<BTIndexPage> pages = new ArrayList<BTIndexPage>();
+			List<KeyClass> upKeys = new ArrayList<KeyClass>();
+			BTIndexPage page = null;
+			for (int i = 0; i < pids.length; i++) {
+				KeyClass key = firstKeys.get(i);
+				PageId child = new PageId(pids[i]);
+				if (page == null
+						|| !fits(page, BT.getKeyDataLength(key, NodeType.INDEX))) {
+					page = new BTIndexPage(newPage(), keytype);
+					page.setType(NodeType.INDEX);
+					page.setPrevPage(child);
+					pages.add(page);
+					upKeys.add(key);
+				} else {
+					page.insertKey(key, child);
+				}
+			}
+			pids = allocate(pages.size());
+			for (int i = 0; i < pages.size(); i++)
+				pages.get(i).setCurPage(new PageId(pids[i]));
+			write(tree, pages, pids);
+			firstKeys = upKeys;
+		}
+		return new PageId(pids[0]);
+	}
+
+	/*
+	 * Pack `entries' into leaves as they come, then build the index levels;
+	 * returns the root.
+	 */
+	private PageId stream(BTreeFile tree, Entries entries, int keytype)
+			throws Exception {
+		List<KeyClass> firstKeys = new ArrayList<KeyClass>();
+		int[] pids = new int[LEAF_BATCH];
+		int count = 0;
+		int[] batch = new int[0];
+		int used = 0;
+		BTLeafPage leaf = null;
+		for (KeyDataEntry e = entries.next(); e != null; e = entries.next()) {
+			if (leaf == null
+					|| !fits(leaf, BT.getKeyDataLength(e.key, NodeType.LEAF))) {
+				if (used == batch.length) {
+					batch = allocate(LEAF_BATCH);
+					used = 0;
+				}
+				PageId pid = new PageId(batch[used++]);
+				BTLeafPage next = new BTLeafPage(newPage(), keytype);
+				next.setType(NodeType.LEAF);
+				next.setCurPage(pid);
+				next.setNextPage(new PageId(INVALID_PAGE));
+				if (leaf == null) {
+					next.setPrevPage(new PageId(INVALID_PAGE));
+				} else {
+					PageId prev = new PageId(leaf.getCurPage().pid);
+					next.setPrevPage(prev);
+					leaf.setNextPage(pid);
+					tree.writeLoaded(prev, leaf);
+				}
+				leaf = next;
+				if (count == pids.length)
+					pids = Arrays.copyOf(pids, count * 2);
+				pids[count++] = pid.pid;
+				firstKeys.add(e.key);
+			}
+			leaf.insertRecord(e.key, ((LeafData) e.data).getData());
+		}
+		if (leaf != null)
+			tree.writeLoaded(new PageId(leaf.getCurPage().pid), leaf);
+		for (; used < batch.length; used++)
+			SystemDefs.JavabaseDB.deallocate_page(new PageId(batch[used]), 1);
+		if (count == 0)
+			return new PageId(INVALID_PAGE);
+		return buildIndex(tree, Arrays.copyOf(pids, count), firstKeys, keytype);
+	}
+
+	private List<Page> packLeaves(KeyDataEntry[] entries, int from, int to,
+			int keytype) throws Exception {
+		List<Page> pages = new ArrayList<Page>();
+		BTLeafPage leaf = null;
+		for (int i = from; i < to; i++) {
+			KeyDataEntry e = entries[i];
+			if (leaf == null
+					|| !fits(leaf, BT.getKeyDataLength(e.key, NodeType.LEAF))) {
+				leaf = new BTLeafPage(newPage(), keytype);
+				leaf.setType(NodeType.LEAF);
+				pages.add(leaf);
+			}
+			leaf.insertRecord(e.key, ((LeafData) e.data).getData());
+		}
+		return pages;
+	}
+
+	/*
+	 * Whether a record of `length' bytes fits in `page' and leaves the room
+	 * the fill factor asks for.
+	 */
+	private boolean fits(HFPage page, int length) throws IOException {
+		int reserve = (MINIBASE_PAGESIZE - HFPage.DPFIXED) * (100 - fillFactor)
+				/ 100;
+		return page.available_space() - reserve >= length
+				|| (page.empty() && page.available_space() >= length);
+	}
+
+	private static Page newPage() throws IOException {
+		Page page = new Page();
+		HFPage hf = new HFPage();
+		hf.init(new PageId(INVALID_PAGE), page);
+		return page;
+	}
+
+	/*
+	 * `count' new pages, contiguous if the database has such a run.
+	 */
+	private static int[] allocate(int count) throws Exception {
+		int[] pids = new int[count];
+		PageId start = new PageId();
+		try {
+			SystemDefs.JavabaseDB.allocate_page(start, count);
+			for (int i = 0; i < count; i++)
+				pids[i] = start.pid + i;
+		} catch (OutOfSpaceException e) {
+			for (int i = 0; i < count; i++) {
+				SystemDefs.JavabaseDB.allocate_page(start, 1);
+				pids[i] = start.pid;
+			}
+		}
+		return pids;
+	}
+
+	private static void write(BTreeFile tree, List<? extends Page> pages,
+			int[] pids) throws Exception {
+		for (int i = 0; i < pids.length; i++)
+			tree.writeLoaded(new PageId(pids[i]), pages.get(i));
+	}
+
+	/*
+	 * Extract the keys of a chunk of records and sort them.
+	 */
+	private static class SortChunk extends RecursiveTask<KeyDataEntry[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<Tuple> records;
+		private final List<RID> rids;
+		private final KeyExtractor keys;
+		private final BTreeFile tree;
+
+		SortChunk(List<Tuple> records, List<RID> rids, KeyExtractor keys,
+				BTreeFile tree) {
+			this.records = records;
+			this.rids = rids;
+			this.keys = keys;
+			this.tree = tree;
+		}
+
+		protected KeyDataEntry[] compute() {
+			try {
+				KeyDataEntry[] entries = new KeyDataEntry[records.size()];
+				for (int i = 0; i < entries.length; i++) {
+					Tuple t = records.get(i);
+					KeyClass key = keys.getKey(t.returnTupleByteArray(), t
+							.getOffset(), t.getLength());
+					tree.checkKey(key);
+					entries[i] = new KeyDataEntry(key, rids.get(i));
+				}
+				Arrays.sort(entries, ORDER);
+				return entries;
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/*
+	 * Merge the sorted chunks from..to, halves in parallel.
+	 */
+	private static class Merge extends RecursiveTask<KeyDataEntry[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final List<KeyDataEntry[]> chunks;
+		private final int from;
+		private final int to;
+
+		Merge(List<KeyDataEntry[]> chunks, int from, int to) {
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected KeyDataEntry[] compute() {
+			if (to - from == 1)
+				return chunks.get(from);
+			int mid = (from + to) >>> 1;
+			Merge left = new Merge(chunks, from, mid);
+			left.fork();
+			KeyDataEntry[] b = new Merge(chunks, mid, to).compute();
+			KeyDataEntry[] a = left.join();
+
+			KeyDataEntry[] out = new KeyDataEntry[a.length + b.length];
+			int i = 0, j = 0, k = 0;
+			while (i < a.length && j < b.length)
+				out[k++] = ORDER.compare(a[i], b[j]) <= 0 ? a[i++] : b[j++];
+			while (i < a.length)
+				out[k++] = a[i++];
+			while (j < b.length)
+				out[k++] = b[j++];
+			return out;
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * @(#) BTCachedScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTCachedScan is an ascending scan of a BTreeFile with the leaf cache on,
+ * created by BTreeFile.new_scan(lo_key, hi_key). It returns the entries of
+ * each leaf from its BTLeafCache instead of decoding them from the page.
+ * Like BTFileScan it keeps the current leaf pinned. A leaf changed while the
+ * scan is on it has its decoded leaf marked stale and is decoded anew.
+ */
+public class BTCachedScan extends BTFileScan {
+
+	/* whether the current entry left the leaf */
+	private boolean removedcurrent;
+	/* the decoded current leaf */
+	private BTLeafCache leaf;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			if (leafPage == null)
+				return null;
+			int slot = curRid.slotNo;
+			// an entry removed from the leaf is replaced by the next
+			if (didfirst && !removedcurrent)
+				slot++;
+			didfirst = true;
+			deletedcurrent = false;
+			removedcurrent = false;
+			if (leaf == null || leaf.stale)
+				leaf = BTLeafCache.of(leafPage, keyType);
+			while (slot >= leaf.size) {
+				PageId next = new PageId(leaf.nextPage);
+				finish();
+				if (next.pid == INVALID_PAGE)
+					return null;
+				leafPage = new BTLeafPage(next, keyType);
+				leaf = BTLeafCache.of(leafPage, keyType);
+				slot = 0;
+			}
+			if (endkey != null && leaf.compare(slot, endkey) > 0) {
+				finish();
+				return null;
+			}
+			if (curRid.pageNo.pid != leaf.pid)
+				curRid.pageNo = new PageId(leaf.pid);
+			curRid.slotNo = slot;
+			return leaf.entry(slot);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null || !didfirst || deletedcurrent) {
+			System.out.println("No Record to delete!");
+			throw new ScanDeleteException();
+		}
+		try {
+			if (leaf == null || leaf.stale)
+				leaf = BTLeafCache.of(leafPage, keyType);
+			KeyDataEntry entry = leaf.entry(curRid.slotNo);
+			// the leaf stays pinned; Delete only removes entries, so only
+			// the slots after the current one move, one back
+			int count = leafPage.getSlotCnt();
+			bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+			deletedcurrent = true;
+			removedcurrent = leafPage.getSlotCnt() < count;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException();
+		}
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		finish();
+	}
+
+	private void finish() throws IOException, InvalidFrameNumberException,
+			ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException {
+		if (leafPage != null)
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+		leafPage = null;
+		leaf = null;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * @(#) BTConcurrentFile.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTConcurrentFile lets many threads use one BTreeFile. The buffer manager
+ * and the disk manager are shared by every file and are not thread safe, so
+ * each operation holds the pool lock from start to end; scans are run to
+ * the end, or to their limit, under it and return their entries in a list,
+ * so no page stays pinned between operations.
+ * <p>
+ * The pool lock is a java.util.concurrent lock, not a monitor: a virtual
+ * thread waiting for it, or blocked in the I/O of diskmgr.AsyncDB while
+ * holding it, parks and leaves its carrier thread to others. Thousands of
+ * virtual threads can wait on it with a handful of carriers.
+ */
+public class BTConcurrentFile extends IndexFile {
+
+	private final static ReentrantLock POOL = new ReentrantLock();
+
+	private final BTreeFile file;
+
+	/**
+	 * @param file
+	 *            the B+ tree file; use it only through this object from now
+	 *            on. Input parameter.
+	 */
+	public BTConcurrentFile(BTreeFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return the lock that every thread has to hold while it pins pages.
+	 */
+	public static ReentrantLock poolLock() {
+		return POOL;
+	}
+
+	/** @return the B+ tree file; hold poolLock() while using it. */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		POOL.lock();
+		try {
+			file.insert(key, rid);
+		} finally {
+			POOL.unlock();
+		}
+	}
+
+	/**
+	 * delete leaf entry given its <key, rid> pair.
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		POOL.lock();
+		try {
+			return file.Delete(key, rid);
+		} finally {
+			POOL.unlock();
+		}
+	}
+
+	/**
+	 * Look up a key; see BTreeFile.lookup, and its lookup cache.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @return the rids of the entries with this key, in rid order
+	 * @exception IteratorException
+	 *                error from the lower layer
+	 */
+	public List<RID> lookup(KeyClass key) throws IteratorException {
+		POOL.lock();
+		try {
+			return file.lookup(key);
+		} finally {
+			POOL.unlock();
+		}
+	}
+
+	/**
+	 * @param lo_key
+	 *            the key where we begin scanning, null for the smallest.
+	 *            Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning, null for the largest. Input
+	 *            parameter.
+	 * @param limit
+	 *            most entries to return, negative for no limit. Input
+	 *            parameter.
+	 * @return the entries in key order
+	 * @exception IteratorException
+	 *                error from the lower layer
+	 */
+	public List<KeyDataEntry> scan(KeyClass lo_key, KeyClass hi_key, int limit)
+			throws IteratorException {
+		List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+		POOL.lock();
+		try {
+			BTFileScan scan = file.new_scan(lo_key, hi_key,
+					ScanOrder.ASCENDING, null, 0, limit);
+			try {
+				KeyDataEntry e;
+				while ((e = scan.get_next()) != null)
+					entries.add(e);
+			} finally {
+				scan.DestroyBTreeFileScan();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		} finally {
+			POOL.unlock();
+		}
+		return entries;
+	}
+
+	/**
+	 * Delete every entry with a key in [lo_key, hi_key]; see
+	 * BTreeFile.deleteRange. Like it, it does not return the number of
+	 * entries deleted.
+	 *
+	 * @param lo_key
+	 *            the smallest key to delete, null for the smallest. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the largest key to delete, null for the largest. Input
+	 *            parameter.
+	 * @exception DeleteRecException
+	 *                error from the lower layer
+	 */
+	public void deleteRange(KeyClass lo_key, KeyClass hi_key)
+			throws DeleteRecException {
+		POOL.lock();
+		try {
+			file.deleteRange(lo_key, hi_key);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DeleteRecException(e, "");
+		} finally {
+			POOL.unlock();
+		}
+	}
+
+	/**
+	 * Close the file.
+	 *
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 */
+	public void close() throws PageUnpinnedException,
+			InvalidFrameNumberException, HashEntryNotFoundException,
+			ReplacerException {
+		POOL.lock();
+		try {
+			file.close();
+		} finally {
+			POOL.unlock();
+		}
+	}
+}
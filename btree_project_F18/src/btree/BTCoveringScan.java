@@ -0,0 +1,78 @@
+/*
+ * @(#) BTCoveringScan.java
+ *
+ */
+
+package btree;
+
+/**
+ * BTCoveringScan is the scan of a covering BTreeFile, one created with
+ * included columns. Besides the <key, rid> entries of a BTFileScan it
+ * returns the included columns of the entry get_next() returned last,
+ * straight from the leaf page, so a query that needs only them does not
+ * read the heap file.
+ */
+public class BTCoveringScan extends BTFileScan {
+
+	private final int[] sizes;
+	private final int length;
+
+	/**
+	 * @param sizes
+	 *            the size of each included column. Input parameter.
+	 */
+	BTCoveringScan(int[] sizes) {
+		this.sizes = sizes;
+		int total = 0;
+		for (int size : sizes)
+			total += size;
+		this.length = total;
+	}
+
+	/**
+	 * @return the included columns of the current entry, one after the
+	 *         other
+	 * @exception ScanIteratorException
+	 *                no current entry
+	 */
+	public byte[] getIncluded() throws ScanIteratorException {
+		return copy(0, length);
+	}
+
+	/**
+	 * @param column
+	 *            the number of the included column, from 0. Input
+	 *            parameter.
+	 * @return one included column of the current entry
+	 * @exception ScanIteratorException
+	 *                no current entry
+	 */
+	public byte[] getIncluded(int column) throws ScanIteratorException {
+		int start = 0;
+		for (int i = 0; i < column; i++)
+			start += sizes[i];
+		return copy(start, sizes[column]);
+	}
+
+	/*
+	 * The included columns sit between the key and the 8 byte rid at the
+	 * end of the leaf record.
+	 */
+	private byte[] copy(int start, int count) throws ScanIteratorException {
+		if (leafPage == null || !didfirst || deletedcurrent) {
+			System.out.println("No current entry!");
+			throw new ScanIteratorException();
+		}
+		try {
+			int end = leafPage.getSlotOffset(curRid.slotNo)
+					+ leafPage.getSlotLength(curRid.slotNo) - 8;
+			byte[] columns = new byte[count];
+			System.arraycopy(leafPage.getHFpageArray(), end - length + start,
+					columns, 0, count);
+			return columns;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * @(#) BTDeltaBuffer.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import global.*;
+
+/**
+ * BTDeltaBuffer is the in-memory write buffer of a BTreeFile. It absorbs
+ * inserts and deletes in a sorted skip list, so they can be merged into the
+ * tree later in key order, where consecutive changes hit the same leaf.
+ * <p>
+ * Every <key, rid> pair has one delta: whether the copies in the tree are
+ * deleted, and how many copies were inserted since. A delete is recorded
+ * without reading the tree, so the tree may hold no copy to delete.
+ */
+class BTDeltaBuffer {
+
+	/** A <key, rid> pair; bound -1 and 1 sort before and after all rids. */
+	static class DeltaKey {
+		final KeyClass key;
+		final RID rid;
+		final int bound;
+
+		DeltaKey(KeyClass key, RID rid) {
+			this.key = key;
+			this.rid = new RID(new PageId(rid.pageNo.pid), rid.slotNo);
+			this.bound = 0;
+		}
+
+		DeltaKey(KeyClass key, int bound) {
+			this.key = key;
+			this.rid = null;
+			this.bound = bound;
+		}
+	}
+
+	/** The buffered change of one <key, rid> pair. */
+	static class Delta {
+		/** the copies in the tree are deleted */
+		boolean deleted;
+		/** copies inserted since */
+		int inserts;
+	}
+
+	final static Comparator<DeltaKey> ORDER = new Comparator<DeltaKey>() {
+		public int compare(DeltaKey a, DeltaKey b) {
+			int c;
+			try {
+				c = BT.keyCompare(a.key, b.key);
+			} catch (KeyNotMatchException e) {
+				throw new ClassCastException("key types do not match");
+			}
+			if (c != 0)
+				return c;
+			if (a.bound != 0 || b.bound != 0)
+				return a.bound - b.bound;
+			if (a.rid.pageNo.pid != b.rid.pageNo.pid)
+				return a.rid.pageNo.pid < b.rid.pageNo.pid ? -1 : 1;
+			return a.rid.slotNo - b.rid.slotNo;
+		}
+	};
+
+	private final ConcurrentSkipListMap<DeltaKey, Delta> deltas = new ConcurrentSkipListMap<DeltaKey, Delta>(
+			ORDER);
+	private final AtomicInteger size = new AtomicInteger();
+
+	void insert(KeyClass key, RID rid) {
+		DeltaKey k = new DeltaKey(key, rid);
+		Delta d = deltas.get(k);
+		if (d == null) {
+			d = new Delta();
+			deltas.put(k, d);
+			size.incrementAndGet();
+		}
+		d.inserts++;
+	}
+
+	/**
+	 * Delete every copy of <key, rid>, without looking at the tree: the copies
+	 * in the tree are marked deleted whether there are any or not. A mark
+	 * for a pair the tree does not hold deletes nothing when it is merged.
+	 *
+	 * @return false if the buffer shows that no copy is left, the copies in
+	 *         the tree being deleted already and none inserted since; true
+	 *         otherwise
+	 */
+	boolean delete(KeyClass key, RID rid) {
+		DeltaKey k = new DeltaKey(key, rid);
+		Delta d = deltas.get(k);
+		if (d == null) {
+			d = new Delta();
+			deltas.put(k, d);
+			size.incrementAndGet();
+		}
+		boolean deleted = !d.deleted || d.inserts > 0;
+		d.deleted = true;
+		d.inserts = 0;
+		return deleted;
+	}
+
+	/** @return whether the copies of <key, rid> in the tree are deleted. */
+	boolean isDeleted(KeyClass key, RID rid) {
+		Delta d = deltas.get(new DeltaKey(key, rid));
+		return d != null && d.deleted;
+	}
+
+	/**
+	 * @return the deltas from lo_key to hi_key (both inclusive, null for no
+	 *         bound) in key order
+	 */
+	NavigableMap<DeltaKey, Delta> range(KeyClass lo_key, KeyClass hi_key) {
+		NavigableMap<DeltaKey, Delta> range = deltas;
+		if (lo_key != null)
+			range = range.tailMap(new DeltaKey(lo_key, -1), true);
+		if (hi_key != null)
+			range = range.headMap(new DeltaKey(hi_key, 1), true);
+		return range;
+	}
+
+	/**
+	 * @return a private copy of the deltas from lo_key to hi_key, for
+	 *         snapshot scans
+	 */
+	NavigableMap<DeltaKey, Delta> copy(KeyClass lo_key, KeyClass hi_key) {
+		TreeMap<DeltaKey, Delta> copy = new TreeMap<DeltaKey, Delta>(ORDER);
+		for (Map.Entry<DeltaKey, Delta> e : range(lo_key, hi_key).entrySet()) {
+			Delta d = new Delta();
+			d.deleted = e.getValue().deleted;
+			d.inserts = e.getValue().inserts;
+			copy.put(e.getKey(), d);
+		}
+		return copy;
+	}
+
+	/** Remove the delta of a pair once it is merged into the tree. */
+	void remove(DeltaKey key) {
+		if (deltas.remove(key) != null)
+			size.decrementAndGet();
+	}
+
+	/** @return number of buffered pairs. */
+	int size() {
+		return size.get();
+	}
+
+	boolean isEmpty() {
+		return deltas.isEmpty();
+	}
+
+	void clear() {
+		deltas.clear();
+		size.set(0);
+	}
+}
@@ -0,0 +1,390 @@
+/*
+ * @(#) BTExternalSort.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+
+/**
+ * BTExternalSort sorts more <key, rid> pairs than fit in memory, using a set
+ * number of buffer frames.
+ * <p>
+ * Pairs are collected in memory until they would fill the frames, then
+ * sorted and written out as a run: a chain of temporary heap pages in the
+ * buffer pool, one pinned at a time. Runs are merged with a k-way loser
+ * tree, one frame per input run. If there are more runs than frames, groups
+ * of them are first merged into longer runs. The last merge is not written;
+ * next() streams it, freeing every run page once it is read.
+ * <p>
+ * Pairs with equal keys come out in rid order.
+ */
+public class BTExternalSort implements GlobalConst {
+
+	private final static Comparator<KeyDataEntry> ORDER = new Comparator<KeyDataEntry>() {
+		public int compare(KeyDataEntry a, KeyDataEntry b) {
+			try {
+				return compareEntries(a, b);
+			} catch (KeyNotMatchException e) {
+				throw new ClassCastException("key types do not match");
+			}
+		}
+	};
+
+	private final int keyType;
+	private final int frames;
+	private final long memoryBytes;
+
+	private List<KeyDataEntry> memory = new ArrayList<KeyDataEntry>();
+	private long memoryUsed;
+	private final LinkedList<PageId> runs = new LinkedList<PageId>();
+	private int runsWritten;
+	private int mergePasses;
+	private LoserTree output;
+
+	/**
+	 * @param keyType
+	 *            the type of the keys. Input parameter.
+	 * @param frames
+	 *            buffer frames the sort may use, at least 3. Input
+	 *            parameter.
+	 */
+	public BTExternalSort(int keyType, int frames) {
+		this.keyType = keyType;
+		this.frames = Math.max(3, frames);
+		this.memoryBytes = (long) this.frames
+				* (MINIBASE_PAGESIZE - HFPage.DPFIXED);
+	}
+
+	/**
+	 * Add a pair to the sort.
+	 *
+	 * @param key
+	 *            the key of the pair. Input parameter.
+	 * @param rid
+	 *            the rid of the pair. Input parameter.
+	 * @exception InsertException
+	 *                error from the lower layer, or the output has started
+	 */
+	public void add(KeyClass key, RID rid) throws InsertException {
+		if (output != null)
+			throw new InsertException(null, "the sort output has started");
+		try {
+			memory.add(new KeyDataEntry(key, new RID(new PageId(rid.pageNo.pid),
+					rid.slotNo)));
+			memoryUsed += BT.getKeyDataLength(key, NodeType.LEAF)
+					+ HFPage.SIZE_OF_SLOT;
+			if (memoryUsed >= memoryBytes)
+				spill();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	/**
+	 * Add pairs that are already sorted; they are written as one run
+	 * without being collected in memory.
+	 *
+	 * @param sorted
+	 *            pairs in key order. Input parameter.
+	 * @exception InsertException
+	 *                error from the lower layer, or the output has started
+	 */
+	public void addRun(KeyDataEntry[] sorted) throws InsertException {
+		if (output != null)
+			throw new InsertException(null, "the sort output has started");
+		try {
+			writeRun(Arrays.asList(sorted).iterator());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "");
+		}
+	}
+
+	/**
+	 * Iterate once over the sorted output.
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception IteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry next() throws IteratorException {
+		try {
+			if (output == null)
+				startOutput();
+			return output.next();
+		} catch (IteratorException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Free every page the sort still holds.
+	 *
+	 * @exception IteratorException
+	 *                error from the lower layer
+	 */
+	public void close() throws IteratorException {
+		try {
+			if (output != null) {
+				output.close();
+				output = null;
+			}
+			for (PageId run : runs)
+				freeRun(run);
+			runs.clear();
+			memory.clear();
+			memoryUsed = 0;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/** @return number of runs written, including merged runs. */
+	public int getRuns() {
+		return runsWritten;
+	}
+
+	/** @return number of merges whose output was written as a run. */
+	public int getMergePasses() {
+		return mergePasses;
+	}
+
+	private static int compareEntries(KeyDataEntry a, KeyDataEntry b)
+			throws KeyNotMatchException {
+		int c = BT.keyCompare(a.key, b.key);
+		if (c != 0)
+			return c;
+		RID ra = ((LeafData) a.data).getData();
+		RID rb = ((LeafData) b.data).getData();
+		if (ra.pageNo.pid != rb.pageNo.pid)
+			return ra.pageNo.pid < rb.pageNo.pid ? -1 : 1;
+		return ra.slotNo - rb.slotNo;
+	}
+
+	private void spill() throws Exception {
+		if (memory.isEmpty())
+			return;
+		Collections.sort(memory, ORDER);
+		writeRun(memory.iterator());
+		memory = new ArrayList<KeyDataEntry>();
+		memoryUsed = 0;
+	}
+
+	private void startOutput() throws Exception {
+		if (runs.isEmpty()) {
+			// everything fit in memory
+			Collections.sort(memory, ORDER);
+			final Iterator<KeyDataEntry> it = memory.iterator();
+			output = new LoserTree(new ArrayList<RunReader>()) {
+				KeyDataEntry next() {
+					return it.hasNext() ? it.next() : null;
+				}
+			};
+			return;
+		}
+		spill();
+		// one frame per input run, one for the output run
+		while (runs.size() > frames) {
+			List<RunReader> inputs = new ArrayList<RunReader>();
+			for (int i = 0; i < frames - 1; i++)
+				inputs.add(new RunReader(runs.removeFirst()));
+			final LoserTree merge = new LoserTree(inputs);
+			writeRun(new Iterator<KeyDataEntry>() {
+				KeyDataEntry head = merge.next();
+
+				public boolean hasNext() {
+					return head != null;
+				}
+
+				public KeyDataEntry next() {
+					KeyDataEntry e = head;
+					try {
+						head = merge.next();
+					} catch (Exception x) {
+						throw new RuntimeException(x);
+					}
+					return e;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			});
+			mergePasses++;
+		}
+		List<RunReader> inputs = new ArrayList<RunReader>();
+		while (!runs.isEmpty())
+			inputs.add(new RunReader(runs.removeFirst()));
+		output = new LoserTree(inputs);
+	}
+
+	/*
+	 * Write `entries' as a new run at the end of the run list.
+	 */
+	private void writeRun(Iterator<KeyDataEntry> entries) throws Exception {
+		PageId head = new PageId(INVALID_PAGE);
+		PageId current = null;
+		HFPage page = null;
+		while (entries.hasNext()) {
+			byte[] record = BT.getBytesFromEntry(entries.next());
+			if (page == null || page.insertRecord(record) == null) {
+				Page p = BTreeFile.frameView();
+				PageId next = SystemDefs.JavabaseBM.newPage(p, 1);
+				HFPage nextPage = new HFPage();
+				nextPage.init(next, p);
+				nextPage.insertRecord(record);
+				if (page == null) {
+					head = new PageId(next.pid);
+				} else {
+					page.setNextPage(next);
+					SystemDefs.JavabaseBM.unpinPage(current, true);
+				}
+				page = nextPage;
+				current = new PageId(next.pid);
+			}
+		}
+		if (page != null) {
+			SystemDefs.JavabaseBM.unpinPage(current, true);
+			runs.addLast(head);
+			runsWritten++;
+		}
+	}
+
+	private static void freeRun(PageId head) throws Exception {
+		PageId pageno = new PageId(head.pid);
+		while (pageno.pid != INVALID_PAGE) {
+			Page p = BTreeFile.frameView();
+			SystemDefs.JavabaseBM.pinPage(pageno, p, false);
+			PageId next = new PageId(new HFPage(p).getNextPage().pid);
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			SystemDefs.JavabaseBM.freePage(pageno);
+			pageno = next;
+		}
+	}
+
+	/*
+	 * Reads a run in order, pinning one page at a time and freeing the pages
+	 * it is done with.
+	 */
+	private class RunReader {
+		private PageId pageno;
+		private HFPage page;
+		private RID rid;
+
+		RunReader(PageId head) {
+			pageno = new PageId(head.pid);
+		}
+
+		KeyDataEntry next() throws Exception {
+			while (pageno.pid != INVALID_PAGE) {
+				if (page == null) {
+					Page p = BTreeFile.frameView();
+					SystemDefs.JavabaseBM.pinPage(pageno, p, false);
+					page = new HFPage(p);
+					rid = page.firstRecord();
+				} else {
+					rid = page.nextRecord(rid);
+				}
+				if (rid != null) {
+					byte[] data = page.getHFpageArray();
+					return BT.getEntryFromBytes(data, page
+							.getSlotOffset(rid.slotNo), page
+							.getSlotLength(rid.slotNo), keyType, NodeType.LEAF);
+				}
+				PageId next = new PageId(page.getNextPage().pid);
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+				SystemDefs.JavabaseBM.freePage(pageno);
+				page = null;
+				pageno = next;
+			}
+			return null;
+		}
+
+		void close() throws Exception {
+			if (page != null) {
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+				page = null;
+			}
+			freeRun(pageno);
+			pageno = new PageId(INVALID_PAGE);
+		}
+	}
+
+	/*
+	 * A k-way merge. tree[0] is the run holding the smallest head, the other
+	 * nodes the loser of the match played there; run k is a sentinel that
+	 * beats every run, used while the tree is built.
+	 */
+	private class LoserTree {
+		private final List<RunReader> inputs;
+		private final KeyDataEntry[] heads;
+		private final int[] tree;
+		private final int k;
+
+		LoserTree(List<RunReader> inputs) throws Exception {
+			this.inputs = inputs;
+			k = inputs.size();
+			heads = new KeyDataEntry[k];
+			tree = new int[Math.max(1, k)];
+			Arrays.fill(tree, k);
+			for (int i = 0; i < k; i++)
+				heads[i] = inputs.get(i).next();
+			for (int i = k - 1; i >= 0; i--)
+				adjust(i);
+		}
+
+		/* whether run a comes before run b */
+		private boolean beats(int a, int b) throws KeyNotMatchException {
+			if (a == k)
+				return true;
+			if (b == k)
+				return false;
+			if (heads[a] == null)
+				return false;
+			if (heads[b] == null)
+				return true;
+			int c = compareEntries(heads[a], heads[b]);
+			return c < 0 || (c == 0 && a < b);
+		}
+
+		private void adjust(int s) throws KeyNotMatchException {
+			for (int t = (s + k) / 2; t > 0; t /= 2) {
+				if (beats(tree[t], s)) {
+					int winner = tree[t];
+					tree[t] = s;
+					s = winner;
+				}
+			}
+			tree[0] = s;
+		}
+
+		KeyDataEntry next() throws Exception {
+			if (k == 0)
+				return null;
+			int w = tree[0];
+			KeyDataEntry e = heads[w];
+			if (e == null)
+				return null;
+			heads[w] = inputs.get(w).next();
+			adjust(w);
+			return e;
+		}
+
+		void close() throws Exception {
+			for (RunReader input : inputs)
+				input.close();
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * @(#) BTFilteredScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTFilteredScan is a scan of a BTreeFile that evaluates a ScanFilter, an
+ * offset and a limit inside the leaf iteration, created by
+ * BTreeFile.new_scan(lo_key, hi_key, order, filter, offset, limit). The
+ * filter reads the entries on the leaf page itself; only the entries
+ * returned are decoded. Skipped entries are not decoded either. The range
+ * bound is checked once per leaf when the whole leaf is inside the range.
+ * Once the limit is reached the scan unpins its leaf and reads no further
+ * page. Like BTFileScan it keeps the current leaf pinned.
+ */
+public class BTFilteredScan extends BTFileScan {
+
+	/** the key where a descending scan stops; null for no bound */
+	KeyClass startkey;
+	boolean descending;
+	ScanFilter filter;
+	/** matching entries still to skip */
+	int offset;
+	/** entries still to return; negative for no limit */
+	int limit = -1;
+
+	/* whether every entry of the current leaf is inside the range */
+	private boolean leafInRange;
+	private boolean leafChecked;
+	/* whether the current entry left the leaf; a write buffer keeps it */
+	private boolean removedcurrent;
+
+	/**
+	 * @return the page number of the rid of a leaf entry
+	 * @param data
+	 *            the page the entry is on. Input parameter.
+	 * @param offset
+	 *            the offset of the entry. Input parameter.
+	 * @param length
+	 *            the length of the entry. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static int ridPage(byte[] data, int offset, int length)
+			throws IOException {
+		// the rid is stored slot number first
+		return Convert.getIntValue(offset + length - 4, data);
+	}
+
+	/**
+	 * @return the slot number of the rid of a leaf entry
+	 * @param data
+	 *            the page the entry is on. Input parameter.
+	 * @param offset
+	 *            the offset of the entry. Input parameter.
+	 * @param length
+	 *            the length of the entry. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static int ridSlot(byte[] data, int offset, int length)
+			throws IOException {
+		return Convert.getIntValue(offset + length - 8, data);
+	}
+
+	/**
+	 * @return the key of a leaf entry of an index of integer keys
+	 * @param data
+	 *            the page the entry is on. Input parameter.
+	 * @param offset
+	 *            the offset of the entry. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static int intKey(byte[] data, int offset) throws IOException {
+		return Convert.getIntValue(offset, data);
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			if (leafPage == null)
+				return null;
+			if (limit == 0) {
+				finish();
+				return null;
+			}
+			int slot = curRid.slotNo;
+			// an entry removed from an ascending scan's leaf is replaced by
+			// the next
+			if (didfirst && !(removedcurrent && !descending))
+				slot += descending ? -1 : 1;
+			didfirst = true;
+			deletedcurrent = false;
+			removedcurrent = false;
+			while (true) {
+				while (slot < 0 || slot >= leafPage.getSlotCnt()) {
+					PageId next = descending ? leafPage.getPrevPage()
+							: leafPage.getNextPage();
+					finish();
+					if (next.pid == INVALID_PAGE)
+						return null;
+					leafPage = new BTLeafPage(next, keyType);
+					slot = descending ? leafPage.getSlotCnt() - 1 : 0;
+				}
+				byte[] data = leafPage.getHFpageArray();
+				int off = leafPage.getSlotOffset(slot);
+				int len = leafPage.getSlotLength(slot);
+
+				if (!leafChecked) {
+					// the last entry of the leaf in scan order
+					int last = descending ? 0 : leafPage.getSlotCnt() - 1;
+					leafInRange = inRange(leafPage.getSlotOffset(last), leafPage
+							.getSlotLength(last));
+					leafChecked = true;
+				}
+				if (!leafInRange && !inRange(off, len)) {
+					finish();
+					return null;
+				}
+
+				if (filter == null || filter.accept(data, off, len)) {
+					if (offset == 0) {
+						curRid.pageNo = leafPage.getCurPage();
+						curRid.slotNo = slot;
+						if (limit > 0)
+							limit--;
+						return BT.getEntryFromBytes(data, off, len, keyType,
+								NodeType.LEAF);
+					}
+					offset--;
+				}
+				slot += descending ? -1 : 1;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/* whether the entry at `off' is not past the end of the range */
+	private boolean inRange(int off, int len) throws Exception {
+		KeyClass bound = descending ? startkey : endkey;
+		if (bound == null)
+			return true;
+		KeyClass key = BT.getEntryFromBytes(leafPage.getHFpageArray(), off,
+				len, keyType, NodeType.LEAF).key;
+		int c = BT.keyCompare(key, bound);
+		return descending ? c >= 0 : c <= 0;
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null || !didfirst || deletedcurrent) {
+			System.out.println("No Record to delete!");
+			throw new ScanDeleteException();
+		}
+		try {
+			KeyDataEntry entry = leafPage.getCurrent(new RID(curRid.pageNo,
+					curRid.slotNo));
+			// the leaf stays pinned; Delete only removes entries, so only
+			// the slots after the current one move, one back
+			int count = leafPage.getSlotCnt();
+			bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+			deletedcurrent = true;
+			removedcurrent = leafPage.getSlotCnt() < count;
+			leafChecked = false;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException();
+		}
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		finish();
+	}
+
+	private void finish() throws IOException, InvalidFrameNumberException,
+			ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException {
+		if (leafPage != null)
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+		leafPage = null;
+		leafChecked = false;
+	}
+}
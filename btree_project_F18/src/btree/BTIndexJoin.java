@@ -0,0 +1,359 @@
+/*
+ * @(#) BTIndexJoin.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTIndexJoin is an index nested-loop join of the tuples of a Heapfile, the
+ * outer, with the entries of a BTreeFile, the inner: each outer tuple is
+ * paired with every entry whose key equals its join field.
+ * <p>
+ * The outer is read BLOCK tuples at a time. The join keys of a block are
+ * sorted and looked up in key order, so the lookups walk the leaves left to
+ * right: a key on the leaf already pinned is searched from where the last
+ * key stopped, a key on the leaf to its right is reached by moving right,
+ * and only a key further on takes a descent from the root. The leaves are
+ * read through their BTLeafCache, decoded once. Over a block of keys close
+ * together that touches each leaf once, as a merge join does, without
+ * sorting the outer as a whole.
+ * <p>
+ * The pairs of a block come out in key order, the blocks in the order of the
+ * outer. Keys equal within a block share one lookup. The inner must not
+ * change while the join is open; its write buffer is merged into the tree
+ * when the join starts.
+ */
+public class BTIndexJoin implements GlobalConst {
+
+	/** outer tuples read and sorted at a time, by default */
+	public final static int BLOCK = 1000;
+
+	/* an outer tuple of the block and its join key */
+	private static class Probe {
+		final Tuple tuple;
+		final RID rid;
+		final KeyClass key;
+		final Comparable<Object> value;
+
+		@SuppressWarnings("unchecked")
+		Probe(Tuple tuple, RID rid, KeyClass key) {
+			this.tuple = tuple;
+			this.rid = rid;
+			this.key = key;
+			value = (Comparable<Object>) BTLookupCache.keyOf(key);
+		}
+	}
+
+	private final static Comparator<Probe> BY_KEY = new Comparator<Probe>() {
+		public int compare(Probe a, Probe b) {
+			return a.value.compareTo(b.value);
+		}
+	};
+
+	private final BTreeFile inner;
+	private final int keyType;
+	private final Scan outerScan;
+	private final AttrType[] types;
+	private final short[] strSizes;
+	private final int joinField;
+	private final int blockSize;
+
+	/* the block, sorted by key, and the probe being joined */
+	private final ArrayList<Probe> block = new ArrayList<Probe>();
+	private int probe;
+	private boolean outerDone;
+	/* the inner entries with the key of the probe, and the next to pair */
+	private List<KeyDataEntry> matches = new ArrayList<KeyDataEntry>();
+	private Object matchKey;
+	private int match;
+
+	/* the pinned leaf, decoded, and the slot the last lookup stopped at */
+	private BTLeafPage leafPage;
+	private BTLeafCache leaf;
+	private int slot;
+	/* no entry is left for the keys after the last looked up */
+	private boolean pastEnd;
+
+	private long descents;
+	private long movesRight;
+	private long sameLeaf;
+	private long lookups;
+
+	/**
+	 * Open a join that reads the outer from its first tuple.
+	 *
+	 * @param outer
+	 *            the outer heap file. Input parameter.
+	 * @param types
+	 *            the field types of the outer tuples. Input parameter.
+	 * @param strSizes
+	 *            the sizes of their string fields. Input parameter.
+	 * @param joinField
+	 *            the field joined with the keys of the inner, from 1, an
+	 *            integer or string field as the keys are. Input parameter.
+	 * @param inner
+	 *            the index joined with. Input parameter.
+	 * @param blockSize
+	 *            outer tuples sorted at a time. Input parameter.
+	 * @exception IteratorException
+	 *                error from the lower layer
+	 */
+	public BTIndexJoin(Heapfile outer, AttrType[] types, short[] strSizes,
+			int joinField, BTreeFile inner, int blockSize)
+			throws IteratorException {
+		this.inner = inner;
+		this.types = types;
+		this.strSizes = strSizes;
+		this.joinField = joinField;
+		this.blockSize = Math.max(1, blockSize);
+		try {
+			if (inner.getWriteBufferSize() > 0)
+				inner.flushWriteBuffer();
+			keyType = inner.getHeaderPage().get_keyType();
+			outerScan = outer.openScan();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Open a join that sorts BLOCK outer tuples at a time.
+	 *
+	 * @param outer
+	 *            the outer heap file. Input parameter.
+	 * @param types
+	 *            the field types of the outer tuples. Input parameter.
+	 * @param strSizes
+	 *            the sizes of their string fields. Input parameter.
+	 * @param joinField
+	 *            the field joined with the keys of the inner, from 1. Input
+	 *            parameter.
+	 * @param inner
+	 *            the index joined with. Input parameter.
+	 * @exception IteratorException
+	 *                error from the lower layer
+	 */
+	public BTIndexJoin(Heapfile outer, AttrType[] types, short[] strSizes,
+			int joinField, BTreeFile inner) throws IteratorException {
+		this(outer, types, strSizes, joinField, inner, BLOCK);
+	}
+
+	/**
+	 * Pair the next outer tuple and inner entry. The outer tuple is then
+	 * getOuter(), its rid getOuterRid().
+	 *
+	 * @return the inner entry, in new objects; null when the join is done
+	 * @exception IteratorException
+	 *                error from the lower layer
+	 */
+	public KeyDataEntry get_next() throws IteratorException {
+		try {
+			while (true) {
+				if (probe < block.size() && match < matches.size())
+					return matches.get(match++);
+				if (probe < block.size() && match > 0)
+					probe++;
+				if (probe >= block.size()) {
+					if (!readBlock()) {
+						close();
+						return null;
+					}
+				}
+				Probe p = block.get(probe);
+				if (matchKey == null || p.value.compareTo(matchKey) != 0) {
+					matches = find(p.key);
+					matchKey = p.value;
+				}
+				match = 0;
+				if (matches.isEmpty())
+					probe++;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/** @return the outer tuple of the pair get_next returned last */
+	public Tuple getOuter() {
+		return block.get(probe).tuple;
+	}
+
+	/** @return the rid of that outer tuple */
+	public RID getOuterRid() {
+		return block.get(probe).rid;
+	}
+
+	/* read and sort the next block of the outer; false at its end */
+	private boolean readBlock() throws Exception {
+		// the keys of the block start over: its first lookup descends
+		unpinLeaf();
+		pastEnd = false;
+		block.clear();
+		probe = 0;
+		match = 0;
+		matches = new ArrayList<KeyDataEntry>();
+		matchKey = null;
+		while (!outerDone && block.size() < blockSize) {
+			RID rid = new RID();
+			Tuple t = outerScan.getNext(rid);
+			if (t == null) {
+				outerDone = true;
+				outerScan.closescan();
+				break;
+			}
+			t.setHdr((short) types.length, types, strSizes);
+			KeyClass key = keyType == AttrType.attrInteger ? new IntegerKey(t
+					.getIntFld(joinField)) : new StringKey(t
+					.getStrFld(joinField));
+			block.add(new Probe(t, rid, key));
+		}
+		Collections.sort(block, BY_KEY);
+		return !block.isEmpty();
+	}
+
+	/*
+	 * The inner entries with `key', greater than the key looked up before in
+	 * the block: from the pinned leaf if the key is on it or the next one,
+	 * else from a descent.
+	 */
+	private List<KeyDataEntry> find(KeyClass key) throws Exception {
+		List<KeyDataEntry> found = new ArrayList<KeyDataEntry>();
+		lookups++;
+		if (pastEnd)
+			return found;
+		if (leaf != null && leaf.stale) {
+			// changed under the join: decode it again, from its start
+			leaf = BTLeafCache.of(leafPage, keyType);
+			slot = 0;
+		}
+		if (leaf != null && leaf.size > 0
+				&& leaf.compare(leaf.size - 1, key) >= 0)
+			sameLeaf++;
+		else if (leaf != null && leaf.nextPage == INVALID_PAGE) {
+			// past the last entry, as are the keys after it in the block
+			pastEnd = true;
+			return found;
+		} else if (leaf != null) {
+			moveRight();
+			if (leaf.size == 0 || leaf.compare(leaf.size - 1, key) < 0)
+				descend(key);
+			else
+				movesRight++;
+		} else
+			descend(key);
+
+		if (leaf == null) {
+			pastEnd = true;
+			return found;
+		}
+		slot = seek(key, slot);
+		// the run of `key' may go on over the next leaves
+		while (true) {
+			while (slot < leaf.size && leaf.compare(slot, key) == 0)
+				found.add(leaf.entry(slot++));
+			if (slot < leaf.size || leaf.nextPage == INVALID_PAGE)
+				return found;
+			moveRight();
+		}
+	}
+
+	/* the first slot from `from' on whose key is not less than `key' */
+	private int seek(KeyClass key, int from) {
+		// gallop from the slot the last key stopped at, then halve
+		int lo = from;
+		int step = 1;
+		int hi = lo;
+		while (hi < leaf.size && leaf.compare(hi, key) < 0) {
+			lo = hi + 1;
+			hi += step;
+			step <<= 1;
+		}
+		hi = Math.min(hi, leaf.size);
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (leaf.compare(mid, key) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/* pin the leaf right of the pinned one, in its place */
+	private void moveRight() throws Exception {
+		PageId next = new PageId(leaf.nextPage);
+		unpinLeaf();
+		leafPage = new BTLeafPage(next, keyType);
+		leaf = BTLeafCache.of(leafPage, keyType);
+		slot = 0;
+	}
+
+	/* pin the leaf of the first entry not less than `key', from the root */
+	private void descend(KeyClass key) throws Exception {
+		descents++;
+		unpinLeaf();
+		RID start = new RID();
+		leafPage = inner.findRunStart(key, start);
+		if (leafPage == null)
+			return;
+		leaf = BTLeafCache.of(leafPage, keyType);
+		slot = start.slotNo;
+	}
+
+	private void unpinLeaf() throws Exception {
+		if (leafPage != null)
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+		leafPage = null;
+		leaf = null;
+	}
+
+	/**
+	 * Unpin the leaf the join holds and stop reading the outer. get_next
+	 * returns null from then on.
+	 *
+	 * @exception IteratorException
+	 *                error from the lower layer
+	 */
+	public void close() throws IteratorException {
+		try {
+			unpinLeaf();
+			if (!outerDone) {
+				outerDone = true;
+				outerScan.closescan();
+			}
+			block.clear();
+			probe = 0;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/** @return the distinct keys of each block looked up so far */
+	public long getLookups() {
+		return lookups;
+	}
+
+	/** @return the lookups that descended from the root */
+	public long getDescents() {
+		return descents;
+	}
+
+	/** @return the lookups that moved to the next leaf instead */
+	public long getMovesRight() {
+		return movesRight;
+	}
+
+	/** @return the lookups answered on the leaf already pinned */
+	public long getSameLeaf() {
+		return sameLeaf;
+	}
+}
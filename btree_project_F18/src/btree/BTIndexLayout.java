@@ -0,0 +1,163 @@
+/*
+ * @(#) BTIndexLayout.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTIndexLayout is a copy of the separator keys of an index page with
+ * integer keys, laid out for search, apart from the child page numbers. The
+ * page keeps its slotted format on disk and in the buffer pool, which the
+ * index page code of the library reads and writes; the layout is made from
+ * it when a descent with the EYTZINGER strategy first searches the page.
+ * <p>
+ * The keys are in Eytzinger order, the order of a breadth-first walk of the
+ * balanced binary search tree over them: the children of key k are keys 2k
+ * and 2k+1. A search reads one key per level and they sit together at the
+ * top: the first four levels are 15 ints, one or two 64 byte lines, where a
+ * search of the slotted page reads a slot and a record, far apart, for
+ * every key. The search has no branch on the outcome of a comparison.
+ * <p>
+ * The layouts of the last CACHED index pages searched are kept, whatever
+ * tree they belong to. BTreeFile drops the layout of a page when it unpins
+ * the page dirty or frees it.
+ */
+final class BTIndexLayout {
+
+	/** index pages whose layouts are kept */
+	final static int CACHED = 1024;
+
+	private final static LinkedHashMap<Integer, BTIndexLayout> cache = new LinkedHashMap<Integer, BTIndexLayout>(
+			CACHED, 0.75f, true) {
+		protected boolean removeEldestEntry(
+				Map.Entry<Integer, BTIndexLayout> eldest) {
+			return size() > CACHED;
+		}
+	};
+	/* the database the cached page numbers are in */
+	private static DB owner;
+	/* the layout found last, the one a descent asks for again */
+	private static BTIndexLayout last;
+
+	private final int pid;
+	private final int n;
+	/* keys[1..n] in Eytzinger order; keys[0] is not used */
+	private final int[] keys;
+	/* ranks[k]: the keys less than keys[k] on the page */
+	private final int[] ranks;
+	/* children[c]: the child left of the first c keys, prevPage for 0 */
+	private final int[] children;
+
+	private BTIndexLayout(BTIndexPage page) throws IOException {
+		pid = page.getCurPage().pid;
+		n = page.getSlotCnt();
+		keys = new int[n + 1];
+		ranks = new int[n + 1];
+		children = new int[n + 1];
+		byte[] data = page.getHFpageArray();
+		int[] sorted = new int[n];
+		children[0] = page.getPrevPage().pid;
+		for (int i = 0; i < n; i++) {
+			int offset = page.getSlotOffset(i);
+			sorted[i] = Convert.getIntValue(offset, data);
+			children[i + 1] = Convert.getIntValue(offset
+					+ page.getSlotLength(i) - 4, data);
+		}
+		place(sorted, 1, 0);
+	}
+
+	/* fill the subtree under key k in order from sorted[i] on; the next i */
+	private int place(int[] sorted, int k, int i) {
+		if (k > n)
+			return i;
+		i = place(sorted, 2 * k, i);
+		keys[k] = sorted[i];
+		ranks[k] = i;
+		return place(sorted, 2 * k + 1, i + 1);
+	}
+
+	/**
+	 * @return the layout of a pinned index page with integer keys
+	 * @param page
+	 *            the page. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static BTIndexLayout of(BTIndexPage page) throws IOException {
+		int pid = page.getCurPage().pid;
+		if (last != null && last.pid == pid && owner == SystemDefs.JavabaseDB)
+			return last;
+		if (owner != SystemDefs.JavabaseDB) {
+			cache.clear();
+			owner = SystemDefs.JavabaseDB;
+		}
+		Integer key = Integer.valueOf(pid);
+		BTIndexLayout layout = cache.get(key);
+		if (layout == null) {
+			layout = new BTIndexLayout(page);
+			cache.put(key, layout);
+		}
+		last = layout;
+		return layout;
+	}
+
+	/**
+	 * Forget the layout of a page, which changed or was freed.
+	 *
+	 * @param pid
+	 *            the page number. Input parameter.
+	 */
+	static void invalidate(int pid) {
+		if (last != null && last.pid == pid)
+			last = null;
+		if (!cache.isEmpty())
+			cache.remove(Integer.valueOf(pid));
+	}
+
+	/**
+	 * @param key
+	 *            the key to look for. Input parameter.
+	 * @param inclusive
+	 *            whether keys equal to `key' are counted. Input parameter.
+	 * @return the number of keys less than `key', or less than or equal to
+	 *         it if inclusive
+	 */
+	int search(int key, boolean inclusive) {
+		// keys <= key are the keys < key + 1
+		long bound = inclusive ? (long) key + 1 : key;
+		int k = 1;
+		int reads = 0;
+		int lines = 0;
+		int line = -1;
+		while (k <= n) {
+			reads++;
+			if (k >> 4 != line) {
+				line = k >> 4;
+				lines++;
+			}
+			// go right past a key less than the bound
+			k = 2 * k + (int) ((keys[k] - bound) >>> 63);
+		}
+		// climb back to the last left turn: the first key not less
+		k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+		// and a line of ranks and one of children
+		BTKeySearch.record(reads, lines + 2);
+		return k == 0 ? n : ranks[k];
+	}
+
+	/**
+	 * @param count
+	 *            a number of keys, as returned by search. Input parameter.
+	 * @return the page number of the child left of the first `count' keys
+	 */
+	int child(int count) {
+		return children[count];
+	}
+}
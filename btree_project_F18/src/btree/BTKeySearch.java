@@ -0,0 +1,211 @@
+/*
+ * @(#) BTKeySearch.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import heap.*;
+
+/**
+ * BTKeySearch finds where an integer key goes among the slots of a B+ tree
+ * page. The slots of an index or leaf page are in key order and have no
+ * holes, and every record starts with its key, so the keys are read straight
+ * from the page without decoding entries.
+ * <p>
+ * INTERPOLATION guesses the slot from the first and last key of the page,
+ * as if the keys in between were spread evenly, and steps 1, 2, 4 ... slots
+ * away from the guess, at most WINDOW times, until it passes the key; the
+ * slots left are searched in halves. A page on which that reads two keys
+ * more than a search in halves would, because its keys are skewed, is
+ * remembered by page number and searched in halves from then on. Pages with
+ * few slots are always searched in halves.
+ * <p>
+ * The skewed pages and the counters are shared by every tree and not
+ * synchronized; the counters are for benchmarks.
+ */
+public class BTKeySearch {
+	/** Every key from the first slot on, as BTIndexPage and BTLeafPage do. */
+	public static final int LINEAR = 0;
+	/** Halve the slots until one is left. */
+	public static final int BINARY = 1;
+	/** Guess the slot from the key, then correct the guess. */
+	public static final int INTERPOLATION = 2;
+	/**
+	 * Index pages through a copy of their keys in Eytzinger order, see
+	 * BTIndexLayout; leaf pages in halves.
+	 */
+	public static final int EYTZINGER = 3;
+
+	/** steps an interpolation search takes from its guess */
+	public static final int WINDOW = 4;
+
+	/* pages with fewer slots are searched in halves */
+	private static final int MIN_INTERPOLATION = 8;
+
+	private static long searches;
+	private static long comparisons;
+	private static long lines;
+	private static long fallbacks;
+
+	/* pages interpolation searches do badly on, by page number */
+	private static final BitSet skewed = new BitSet();
+
+	/* cache lines of the page read by the running search, one bit each */
+	private static long touched;
+
+	/**
+	 * @param page
+	 *            a pinned index or leaf page with integer keys. Input
+	 *            parameter.
+	 * @param key
+	 *            the key to look for. Input parameter.
+	 * @param inclusive
+	 *            whether keys equal to `key' are counted. Input parameter.
+	 * @param strategy
+	 *            LINEAR, BINARY or INTERPOLATION; EYTZINGER searches this
+	 *            page in halves. Input parameter.
+	 * @return the number of leading slots whose key is less than `key', or
+	 *         less than or equal to it if inclusive
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public static int search(HFPage page, int key, boolean inclusive,
+			int strategy) throws IOException {
+		touched = 0;
+		int count = find(page, key, inclusive, strategy);
+		searches++;
+		lines += Long.bitCount(touched);
+		return count;
+	}
+
+	private static int find(HFPage page, int key, boolean inclusive,
+			int strategy) throws IOException {
+		byte[] data = page.getHFpageArray();
+		int n = page.getSlotCnt();
+		// slots before lo are counted, slots from hi on are not
+		int lo = 0;
+		int hi = n;
+
+		if (strategy == LINEAR) {
+			while (lo < hi && before(keyAt(page, data, lo), key, inclusive))
+				lo++;
+			return lo;
+		}
+
+		boolean interpolate = strategy == INTERPOLATION
+				&& n >= MIN_INTERPOLATION
+				&& !skewed.get(page.getCurPage().pid);
+		long start = comparisons;
+		if (interpolate) {
+			int first = keyAt(page, data, 0);
+			if (!before(first, key, inclusive))
+				return 0;
+			int last = keyAt(page, data, n - 1);
+			if (before(last, key, inclusive))
+				return n;
+			lo = 1;
+			hi = n - 1;
+
+			// slot i holds about first + i * (last - first) / (n - 1)
+			int guess = (int) (((long) key - first) * (n - 1) / ((long) last - first));
+			guess = Math.max(lo, Math.min(hi - 1, guess));
+			// step away from the guess 1, 2, 4 ... slots until the key is
+			// passed, for at most WINDOW steps
+			boolean passed = false;
+			if (before(keyAt(page, data, guess), key, inclusive)) {
+				lo = guess + 1;
+				for (int w = 0, step = 1; w < WINDOW && lo < hi && !passed; w++, step <<= 1) {
+					int probe = Math.min(hi - 1, lo + step - 1);
+					if (!before(keyAt(page, data, probe), key, inclusive)) {
+						hi = probe;
+						passed = true;
+					} else
+						lo = probe + 1;
+				}
+			} else {
+				hi = guess;
+				for (int w = 0, step = 1; w < WINDOW && lo < hi && !passed; w++, step <<= 1) {
+					int probe = Math.max(lo, hi - step);
+					if (before(keyAt(page, data, probe), key, inclusive)) {
+						lo = probe + 1;
+						passed = true;
+					} else
+						hi = probe;
+				}
+			}
+		}
+
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (before(keyAt(page, data, mid), key, inclusive))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		// two keys more than a binary search reads: the page is skewed
+		if (interpolate
+				&& comparisons - start > 34 - Integer.numberOfLeadingZeros(n)) {
+			fallbacks++;
+			skewed.set(page.getCurPage().pid);
+		}
+		return lo;
+	}
+
+	private static boolean before(int slotKey, int key, boolean inclusive) {
+		return inclusive ? slotKey <= key : slotKey < key;
+	}
+
+	private static int keyAt(HFPage page, byte[] data, int slot)
+			throws IOException {
+		int offset = page.getSlotOffset(slot);
+		comparisons++;
+		touched |= 1L << ((HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT) >> 6 & 63)
+				| 1L << (offset >> 6 & 63);
+		return Convert.getIntValue(offset, data);
+	}
+
+	/* count a search done elsewhere */
+	static void record(int keys, int linesTouched) {
+		searches++;
+		comparisons += keys;
+		lines += linesTouched;
+	}
+
+	/** @return the searches since the counters were reset */
+	public static long getSearches() {
+		return searches;
+	}
+
+	/** @return the keys read by those searches */
+	public static long getComparisons() {
+		return comparisons;
+	}
+
+	/**
+	 * @return the 64 byte lines of the pages, slot directory and records,
+	 *         that those searches read; each line read by a search counts
+	 *         once for it
+	 */
+	public static long getLinesTouched() {
+		return lines;
+	}
+
+	/** @return the pages found skewed by interpolation searches */
+	public static long getFallbacks() {
+		return fallbacks;
+	}
+
+	/** Set the counters back to zero and forget the skewed pages. */
+	public static void resetCounters() {
+		skewed.clear();
+		searches = 0;
+		comparisons = 0;
+		lines = 0;
+		fallbacks = 0;
+	}
+}
@@ -0,0 +1,162 @@
+/*
+ * @(#) BTLeafCache.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTLeafCache is a leaf page decoded once: its keys and the page and slot
+ * numbers of its rids in arrays, in slot order. A BTCachedScan returns the
+ * entries of a leaf from here, so a leaf scanned again is not decoded again,
+ * entry by entry.
+ * <p>
+ * The decoded leaves of the last CACHED leaf pages scanned are kept,
+ * whatever tree they belong to. BTreeFile drops the decoded leaf of a page
+ * when it unpins the page dirty or frees it; that is how a changed page gets
+ * a new version. A page the buffer manager only evicts is the same on disk,
+ * so its decoded leaf stays. A decoded leaf dropped for any reason is marked
+ * stale, so a scan holding it knows to look the page up again.
+ */
+final class BTLeafCache {
+
+	/** leaf pages whose decoded leaves are kept */
+	final static int CACHED = 256;
+
+	private final static LinkedHashMap<Integer, BTLeafCache> cache = new LinkedHashMap<Integer, BTLeafCache>(
+			CACHED, 0.75f, true) {
+		protected boolean removeEldestEntry(
+				Map.Entry<Integer, BTLeafCache> eldest) {
+			if (size() <= CACHED)
+				return false;
+			eldest.getValue().stale = true;
+			return true;
+		}
+	};
+	/* the database the cached page numbers are in */
+	private static DB owner;
+	/* the leaf found last, the one a scan asks for again */
+	private static BTLeafCache last;
+
+	/** dropped from the cache: the page may have changed since */
+	boolean stale;
+	final int pid;
+	final int nextPage;
+	final int size;
+	/* the keys of a tree with integer keys, else null */
+	private final int[] ints;
+	/* the keys of a tree with string keys, else null */
+	private final String[] strings;
+	private final int[] ridPages;
+	private final int[] ridSlots;
+
+	private BTLeafCache(BTLeafPage page, int keyType) throws IOException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		pid = page.getCurPage().pid;
+		nextPage = page.getNextPage().pid;
+		size = page.getSlotCnt();
+		ints = keyType == AttrType.attrInteger ? new int[size] : null;
+		strings = ints == null ? new String[size] : null;
+		ridPages = new int[size];
+		ridSlots = new int[size];
+		byte[] data = page.getHFpageArray();
+		for (int i = 0; i < size; i++) {
+			int offset = page.getSlotOffset(i);
+			int length = page.getSlotLength(i);
+			if (ints != null)
+				ints[i] = BTFilteredScan.intKey(data, offset);
+			else
+				strings[i] = ((StringKey) BT.getEntryFromBytes(data, offset,
+						length, keyType, NodeType.LEAF).key).getKey();
+			ridPages[i] = BTFilteredScan.ridPage(data, offset, length);
+			ridSlots[i] = BTFilteredScan.ridSlot(data, offset, length);
+		}
+	}
+
+	/**
+	 * @return the decoded leaf of a pinned leaf page
+	 * @param page
+	 *            the page. Input parameter.
+	 * @param keyType
+	 *            the key type of the tree. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                error from the lower layer
+	 * @exception NodeNotMatchException
+	 *                error from the lower layer
+	 * @exception ConvertException
+	 *                error from the lower layer
+	 */
+	static BTLeafCache of(BTLeafPage page, int keyType) throws IOException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		int pid = page.getCurPage().pid;
+		if (last != null && last.pid == pid && !last.stale
+				&& owner == SystemDefs.JavabaseDB)
+			return last;
+		if (owner != SystemDefs.JavabaseDB) {
+			for (BTLeafCache leaf : cache.values())
+				leaf.stale = true;
+			cache.clear();
+			owner = SystemDefs.JavabaseDB;
+		}
+		Integer key = Integer.valueOf(pid);
+		BTLeafCache leaf = cache.get(key);
+		if (leaf == null) {
+			leaf = new BTLeafCache(page, keyType);
+			cache.put(key, leaf);
+		}
+		last = leaf;
+		return leaf;
+	}
+
+	/**
+	 * Forget the decoded leaf of a page, which changed or was freed.
+	 *
+	 * @param pid
+	 *            the page number. Input parameter.
+	 */
+	static void invalidate(int pid) {
+		if (last != null && last.pid == pid)
+			last = null;
+		if (!cache.isEmpty()) {
+			BTLeafCache leaf = cache.remove(Integer.valueOf(pid));
+			if (leaf != null)
+				leaf.stale = true;
+		}
+	}
+
+	/**
+	 * @param slot
+	 *            the slot of an entry. Input parameter.
+	 * @param key
+	 *            a key of the type of the tree. Input parameter.
+	 * @return less than, equal to or greater than 0 as the key of the entry
+	 *         is less than, equal to or greater than `key'
+	 */
+	int compare(int slot, KeyClass key) {
+		if (ints != null) {
+			int other = ((IntegerKey) key).getKey().intValue();
+			return ints[slot] < other ? -1 : ints[slot] == other ? 0 : 1;
+		}
+		return strings[slot].compareTo(((StringKey) key).getKey());
+	}
+
+	/**
+	 * @param slot
+	 *            the slot of an entry. Input parameter.
+	 * @return the entry, in new objects the caller may keep
+	 */
+	KeyDataEntry entry(int slot) {
+		RID rid = new RID(new PageId(ridPages[slot]), ridSlots[slot]);
+		if (ints != null)
+			return new KeyDataEntry(Integer.valueOf(ints[slot]), rid);
+		return new KeyDataEntry(strings[slot], rid);
+	}
+}
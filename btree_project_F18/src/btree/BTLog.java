@@ -0,0 +1,555 @@
+/*
+ * @(#) BTLog.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import global.*;
+
+/**
+ * BTLog is the write-ahead redo log of a BTreeFile. Every insert or delete
+ * appends one record holding the after-image of each page the operation
+ * changed (the leaf, the pages of a split, the parents and the header). The
+ * record is applied as a whole or not at all on recovery, so a crash in the
+ * middle of a split can no longer leave a half-split tree behind.
+ * <p>
+ * Records are appended to an in-memory buffer and written by a background
+ * thread with group commit: the thread waits a short commit delay, then writes
+ * and forces everything that was appended meanwhile with a single fsync.
+ * <p>
+ * A checkpoint record holds the dirty page table (the pages whose latest
+ * image may not be on disk yet) and the hot set of the file, the pages to
+ * load into the buffer pool on the next open. Everything in front of the
+ * oldest change of a dirty page is cut off the log when the checkpoint is
+ * written.
+ * <p>
+ * File layout: magic and the LSN of the first byte behind the file header,
+ * then the records. Page record: magic, LSN of the record start, page count,
+ * then page number and page image for each page, and a CRC32 over all of it.
+ * Checkpoint record: magic, LSN of the record start, dirty page count, redo
+ * LSN, the dirty pages, hot page count, the hot pages, CRC32. The LSN returned
+ * for a record is the log position just behind it.
+ */
+public class BTLog implements GlobalConst {
+
+	final static int FILE_MAGIC = 0x4254574c; // "BTWL"
+	final static int RECORD_MAGIC = 0x42544c47; // "BTLG"
+	final static int CHECKPOINT_MAGIC = 0x42544350; // "BTCP"
+
+	private final static long DEFAULT_COMMIT_DELAY_NANOS = 2000000L; // 2 ms
+	private final static int FILE_HEADER = 4 + 8;
+	private final static int RECORD_HEADER = 4 + 8 + 4;
+	private final static int PAGE_ENTRY = 4 + MINIBASE_PAGESIZE;
+
+	/** Receives what is found while replaying a log. */
+	interface Redo {
+		/** called for every logged page image, oldest first */
+		void redo(PageId pageno, byte[] image) throws IOException;
+
+		/** called for every checkpoint, oldest first */
+		void checkpoint(int[] dirtyPages, int[] hotPages);
+	}
+
+	private final String filename;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	/** LSN of the first byte behind the file header */
+	private long baseLSN;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition pending = lock.newCondition();
+	private final Condition durable = lock.newCondition();
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+	private ByteArrayOutputStream spare = new ByteArrayOutputStream(64 * 1024);
+	private long appendLSN;
+	private long durableLSN;
+	private boolean forceNow;
+	private boolean writing;
+	private boolean closed;
+	private IOException writeError;
+	private long commitDelayNanos = DEFAULT_COMMIT_DELAY_NANOS;
+
+	private long records;
+	private long groupCommits;
+	private long checkpoints;
+
+	private final Thread writer;
+
+	/**
+	 * Open the log, appending behind whatever it already holds.
+	 *
+	 * @param filename
+	 *            the log file name. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTLog(String filename) throws IOException {
+		this.filename = filename;
+		open(filename);
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "btree-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void open(String name) throws IOException {
+		raf = new RandomAccessFile(name, "rw");
+		channel = raf.getChannel();
+		if (raf.length() < FILE_HEADER) {
+			raf.setLength(0);
+			raf.writeInt(FILE_MAGIC);
+			raf.writeLong(0);
+			channel.force(true);
+		}
+		raf.seek(0);
+		if (raf.readInt() != FILE_MAGIC)
+			throw new IOException(name + " is not a b-tree log");
+		baseLSN = raf.readLong();
+		appendLSN = durableLSN = baseLSN + raf.length() - FILE_HEADER;
+		channel.position(raf.length());
+	}
+
+	/**
+	 * How long the writer waits for more records before it forces a group.
+	 *
+	 * @param nanos
+	 *            the commit delay in nanoseconds, 0 forces every record on
+	 *            its own. Input parameter.
+	 */
+	public void setCommitDelay(long nanos) {
+		lock.lock();
+		try {
+			commitDelayNanos = Math.max(0, nanos);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Append one redo record.
+	 *
+	 * @param pids
+	 *            page numbers of the changed pages. Input parameter.
+	 * @param images
+	 *            the page images, in the same order. Input parameter.
+	 * @param count
+	 *            number of pages. Input parameter.
+	 * @return the LSN of the record; it is durable once getDurableLSN() has
+	 *         reached it
+	 * @exception IOException
+	 *                the log writer failed earlier
+	 */
+	public long append(int[] pids, byte[][] images, int count)
+			throws IOException {
+		byte[] record = new byte[RECORD_HEADER + count * PAGE_ENTRY + 4];
+		ByteBuffer bb = ByteBuffer.wrap(record);
+
+		lock.lock();
+		try {
+			checkOpen();
+			bb.putInt(RECORD_MAGIC);
+			bb.putLong(appendLSN);
+			bb.putInt(count);
+			for (int i = 0; i < count; i++) {
+				bb.putInt(pids[i]);
+				bb.put(images[i], 0, MINIBASE_PAGESIZE);
+			}
+			records++;
+			return enqueue(record);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write a checkpoint and cut off the part of the log in front of
+	 * `redoLSN', which recovery does not need any more. Waits until the
+	 * checkpoint is on disk.
+	 *
+	 * @param redoLSN
+	 *            oldest change of a page that may not be on disk yet. Input
+	 *            parameter.
+	 * @param dirtyPages
+	 *            the dirty page table. Input parameter.
+	 * @param hotPages
+	 *            the pages to load on the next open. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void checkpoint(long redoLSN, int[] dirtyPages, int[] hotPages)
+			throws IOException {
+		byte[] record = new byte[RECORD_HEADER + 8 + 4 * dirtyPages.length
+				+ 4 + 4 * hotPages.length + 4];
+		ByteBuffer bb = ByteBuffer.wrap(record);
+		long lsn;
+
+		lock.lock();
+		try {
+			checkOpen();
+			bb.putInt(CHECKPOINT_MAGIC);
+			bb.putLong(appendLSN);
+			bb.putInt(dirtyPages.length);
+			bb.putLong(redoLSN);
+			for (int i = 0; i < dirtyPages.length; i++)
+				bb.putInt(dirtyPages[i]);
+			bb.putInt(hotPages.length);
+			for (int i = 0; i < hotPages.length; i++)
+				bb.putInt(hotPages[i]);
+			checkpoints++;
+			lsn = enqueue(record);
+		} finally {
+			lock.unlock();
+		}
+		waitDurable(lsn);
+		truncateBefore(redoLSN);
+	}
+
+	/** @return the LSN the next record will start at. */
+	public long getAppendLSN() {
+		lock.lock();
+		try {
+			return appendLSN;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (writeError != null)
+			throw writeError;
+		if (closed)
+			throw new IOException("log " + filename + " is closed");
+	}
+
+	/* the caller holds the lock; the last 4 bytes are left for the CRC */
+	private long enqueue(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length - 4);
+		ByteBuffer.wrap(record).putInt(record.length - 4, (int) crc.getValue());
+
+		buffer.write(record, 0, record.length);
+		appendLSN += record.length;
+		pending.signal();
+		return appendLSN;
+	}
+
+	/**
+	 * @return the LSN up to which the log is known to be on disk.
+	 */
+	public long getDurableLSN() {
+		lock.lock();
+		try {
+			return durableLSN;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until the log is on disk up to `lsn'. The writer is told not to
+	 * wait for the rest of the group.
+	 *
+	 * @param lsn
+	 *            the LSN to wait for. Input parameter.
+	 * @exception IOException
+	 *                the log could not be written
+	 */
+	public void waitDurable(long lsn) throws IOException {
+		lock.lock();
+		try {
+			while (durableLSN < lsn) {
+				if (writeError != null)
+					throw writeError;
+				forceNow = true;
+				pending.signal();
+				durable.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until everything appended so far is on disk.
+	 *
+	 * @exception IOException
+	 *                the log could not be written
+	 */
+	public void flush() throws IOException {
+		long lsn;
+		lock.lock();
+		try {
+			lsn = appendLSN;
+		} finally {
+			lock.unlock();
+		}
+		waitDurable(lsn);
+	}
+
+	/*
+	 * Copy the log from `lsn' on into a new file and put it in place of the
+	 * old one. The writer is idle while the lock is held and nothing is
+	 * buffered.
+	 */
+	private void truncateBefore(long lsn) throws IOException {
+		lock.lock();
+		try {
+			while (buffer.size() > 0 || writing) {
+				checkOpen();
+				forceNow = true;
+				pending.signal();
+				durable.awaitUninterruptibly();
+			}
+			checkOpen();
+			lsn = Math.min(Math.max(lsn, baseLSN), appendLSN);
+			if (lsn == baseLSN)
+				return;
+
+			File tmp = new File(filename + ".tmp");
+			RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				out.setLength(0);
+				out.writeInt(FILE_MAGIC);
+				out.writeLong(lsn);
+				byte[] buf = new byte[64 * 1024];
+				raf.seek(FILE_HEADER + lsn - baseLSN);
+				int n;
+				while ((n = raf.read(buf)) > 0)
+					out.write(buf, 0, n);
+				out.getChannel().force(true);
+			} finally {
+				out.close();
+			}
+			raf.close();
+			if (!tmp.renameTo(new File(filename)))
+				throw new IOException("could not replace " + filename);
+			open(filename);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return number of records appended since the log was opened. */
+	public long getRecords() {
+		lock.lock();
+		try {
+			return records;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return number of checkpoints written since the log was opened. */
+	public long getCheckpoints() {
+		lock.lock();
+		try {
+			return checkpoints;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return number of fsyncs the records were written with. */
+	public long getGroupCommits() {
+		lock.lock();
+		try {
+			return groupCommits;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Write and force everything still buffered, stop the writer thread and
+	 * close the log file.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			pending.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		raf.close();
+		if (writeError != null)
+			throw writeError;
+	}
+
+	/**
+	 * Replay the complete records of a log, oldest first. Replay stops at the
+	 * first torn or corrupt record: it was never acknowledged as durable.
+	 *
+	 * @param filename
+	 *            the log file name. Input parameter.
+	 * @param redo
+	 *            receives every page image and checkpoint. Input parameter.
+	 * @return number of page records replayed, 0 if there is no log
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	static int replay(String filename, Redo redo) throws IOException {
+		File file = new File(filename);
+		if (!file.exists() || file.length() < FILE_HEADER)
+			return 0;
+
+		int replayed = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (in.readInt() != FILE_MAGIC)
+				throw new IOException(filename + " is not a b-tree log");
+			long lsn = in.readLong();
+			long left = file.length() - FILE_HEADER;
+			while (left >= RECORD_HEADER + 4) {
+				int magic = in.readInt();
+				long start = in.readLong();
+				int count = in.readInt();
+				if (start != lsn || count < 0)
+					break;
+				byte[] body;
+				if (magic == RECORD_MAGIC) {
+					if (RECORD_HEADER + (long) count * PAGE_ENTRY + 4 > left)
+						break;
+					body = new byte[count * PAGE_ENTRY];
+					in.readFully(body);
+				} else if (magic == CHECKPOINT_MAGIC) {
+					// redo LSN, dirty pages and the hot page count
+					int fixed = 8 + 4 * count + 4;
+					if (RECORD_HEADER + (long) fixed + 4 > left)
+						break;
+					byte[] head = new byte[fixed];
+					in.readFully(head);
+					int hot = ByteBuffer.wrap(head).getInt(fixed - 4);
+					if (hot < 0
+							|| RECORD_HEADER + (long) fixed + 4L * hot + 4 > left)
+						break;
+					body = new byte[fixed + 4 * hot];
+					System.arraycopy(head, 0, body, 0, fixed);
+					in.readFully(body, fixed, 4 * hot);
+				} else {
+					break;
+				}
+				int checksum = in.readInt();
+
+				CRC32 crc = new CRC32();
+				ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+				header.putInt(magic).putLong(start).putInt(count);
+				crc.update(header.array());
+				crc.update(body);
+				if ((int) crc.getValue() != checksum)
+					break;
+
+				ByteBuffer bb = ByteBuffer.wrap(body);
+				if (magic == RECORD_MAGIC) {
+					for (int i = 0; i < count; i++) {
+						PageId pageno = new PageId(bb.getInt());
+						byte[] image = new byte[MINIBASE_PAGESIZE];
+						bb.get(image);
+						redo.redo(pageno, image);
+					}
+					replayed++;
+				} else {
+					bb.getLong(); // redo LSN: the log was cut there already
+					int[] dirty = pages(bb, count);
+					redo.checkpoint(dirty, pages(bb, bb.getInt()));
+				}
+				long length = RECORD_HEADER + body.length + 4;
+				lsn += length;
+				left -= length;
+			}
+		} catch (EOFException e) {
+			// torn record at the end
+		} finally {
+			in.close();
+		}
+		return replayed;
+	}
+
+	private static int[] pages(ByteBuffer bb, int count) {
+		int[] pids = new int[count];
+		for (int i = 0; i < count; i++)
+			pids[i] = bb.getInt();
+		return pids;
+	}
+
+	private void writeLoop() {
+		while (true) {
+			ByteArrayOutputStream group;
+			long upTo;
+			boolean done;
+			lock.lock();
+			try {
+				while (buffer.size() == 0 && !closed)
+					pending.awaitUninterruptibly();
+				// give concurrent appenders the chance to join this group
+				long wait = commitDelayNanos;
+				while (!forceNow && !closed && wait > 0) {
+					try {
+						wait = pending.awaitNanos(wait);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+				forceNow = false;
+				writing = true;
+				group = buffer;
+				buffer = spare;
+				spare = group;
+				upTo = appendLSN;
+				done = closed;
+			} finally {
+				lock.unlock();
+			}
+
+			IOException error = null;
+			if (group.size() > 0) {
+				try {
+					channel.write(ByteBuffer.wrap(group.toByteArray()));
+					channel.force(false);
+				} catch (IOException e) {
+					error = e;
+				}
+				group.reset();
+			}
+
+			lock.lock();
+			try {
+				writing = false;
+				if (error != null)
+					writeError = error;
+				else if (upTo > durableLSN) {
+					durableLSN = upTo;
+					groupCommits++;
+				}
+				durable.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (done)
+				return;
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ * @(#) BTLookupCache.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTLookupCache is the result cache of BTreeFile.lookup: the rids of a key,
+ * for a bounded number of keys. A key found here costs a hash probe instead
+ * of a descent of the tree.
+ * <p>
+ * Admission follows W-TinyLFU. A frequency sketch counts the lookups of
+ * every key, cached or not, and halves its counts every 10 lookups per key
+ * of capacity, so it follows what is popular now. A new key enters a small
+ * LRU window, 1% of the capacity; the key the window pushes out enters the
+ * main part only if it was looked up more often than the key it would push
+ * out there. The main part is a segmented LRU: a key looked up again moves
+ * from the probation segment to the protected one, 80% of the main part. A
+ * burst of keys looked up once goes through the window without pushing out
+ * the keys looked up over and over.
+ * <p>
+ * BTreeFile drops the entry of a key on every insert and delete of it, so a
+ * cached result is always the result the tree would give.
+ */
+public class BTLookupCache {
+
+	/* a cached result, in the segment it is in */
+	private static class Entry {
+		final Object key;
+		final int[] rids;
+		byte segment;
+
+		Entry(Object key, int[] rids) {
+			this.key = key;
+			this.rids = rids;
+		}
+	}
+
+	private final static byte WINDOW = 0;
+	private final static byte PROBATION = 1;
+	private final static byte PROTECTED = 2;
+
+	private final int capacity;
+	private final int windowCapacity;
+	private final int protectedCapacity;
+
+	private final HashMap<Object, Entry> entries = new HashMap<Object, Entry>();
+	/* the segments in LRU order, least recently used first */
+	private final LinkedHashMap<Object, Entry> window = new LinkedHashMap<Object, Entry>(
+			16, 0.75f, true);
+	private final LinkedHashMap<Object, Entry> probation = new LinkedHashMap<Object, Entry>(
+			16, 0.75f, true);
+	private final LinkedHashMap<Object, Entry> protect = new LinkedHashMap<Object, Entry>(
+			16, 0.75f, true);
+
+	/* the frequency sketch: 4 counters per key, each at most 15 */
+	private final byte[] counts;
+	private final int mask;
+	private final int sampleSize;
+	private int additions;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long rejections;
+	private long invalidations;
+
+	/**
+	 * @param capacity
+	 *            the most keys whose results are kept. Input parameter.
+	 */
+	BTLookupCache(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity " + capacity);
+		this.capacity = capacity;
+		windowCapacity = Math.max(1, capacity / 100);
+		protectedCapacity = (capacity - windowCapacity) * 8 / 10;
+		int size = Integer.highestOneBit(Math.max(16, capacity * 4 - 1)) << 1;
+		counts = new byte[size];
+		mask = size - 1;
+		sampleSize = capacity * 10;
+	}
+
+	/*
+	 * The cache key of a key: IntegerKey and StringKey do not define equals
+	 * and hashCode.
+	 */
+	static Object keyOf(KeyClass key) {
+		if (key instanceof IntegerKey)
+			return ((IntegerKey) key).getKey();
+		return ((StringKey) key).getKey();
+	}
+
+	/**
+	 * @return the cached rids of a key, in new objects, or null if the key
+	 *         is not cached; counts the lookup
+	 * @param key
+	 *            the key. Input parameter.
+	 */
+	List<RID> get(Object key) {
+		record(key);
+		Entry e = entries.get(key);
+		if (e == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		if (e.segment == WINDOW)
+			window.get(key);
+		else if (e.segment == PROTECTED)
+			protect.get(key);
+		else {
+			// looked up again while on probation: protect it
+			probation.remove(key);
+			e.segment = PROTECTED;
+			protect.put(key, e);
+			if (protect.size() > protectedCapacity) {
+				Entry demoted = removeEldest(protect);
+				demoted.segment = PROBATION;
+				probation.put(demoted.key, demoted);
+			}
+		}
+		List<RID> rids = new ArrayList<RID>(e.rids.length / 2);
+		for (int i = 0; i < e.rids.length; i += 2)
+			rids.add(new RID(new PageId(e.rids[i]), e.rids[i + 1]));
+		return rids;
+	}
+
+	/**
+	 * Cache the result of a lookup that missed.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param rids
+	 *            its rids. Input parameter.
+	 */
+	void put(Object key, List<RID> rids) {
+		if (entries.containsKey(key))
+			return;
+		int[] packed = new int[rids.size() * 2];
+		for (int i = 0; i < rids.size(); i++) {
+			packed[2 * i] = rids.get(i).pageNo.pid;
+			packed[2 * i + 1] = rids.get(i).slotNo;
+		}
+		Entry e = new Entry(key, packed);
+		e.segment = WINDOW;
+		entries.put(key, e);
+		window.put(key, e);
+		if (window.size() <= windowCapacity)
+			return;
+
+		// the window is full: its oldest key is a candidate for the main part
+		Entry candidate = removeEldest(window);
+		if (capacity == windowCapacity) {
+			entries.remove(candidate.key);
+			evictions++;
+			return;
+		}
+		if (probation.size() + protect.size() < capacity - windowCapacity) {
+			candidate.segment = PROBATION;
+			probation.put(candidate.key, candidate);
+			return;
+		}
+		LinkedHashMap<Object, Entry> victims = probation.isEmpty() ? protect
+				: probation;
+		Entry victim = victims.entrySet().iterator().next().getValue();
+		if (frequency(candidate.key) > frequency(victim.key)) {
+			victims.remove(victim.key);
+			entries.remove(victim.key);
+			evictions++;
+			candidate.segment = PROBATION;
+			probation.put(candidate.key, candidate);
+		} else {
+			entries.remove(candidate.key);
+			rejections++;
+		}
+	}
+
+	/**
+	 * Drop the result of a key that was inserted or deleted.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 */
+	void invalidate(Object key) {
+		Entry e = entries.remove(key);
+		if (e == null)
+			return;
+		invalidations++;
+		if (e.segment == WINDOW)
+			window.remove(key);
+		else if (e.segment == PROBATION)
+			probation.remove(key);
+		else
+			protect.remove(key);
+	}
+
+	/**
+	 * Drop the results of the keys in a range.
+	 *
+	 * @param lo_key
+	 *            the smallest key, null for the smallest. Input parameter.
+	 * @param hi_key
+	 *            the largest key, null for the largest. Input parameter.
+	 */
+	void invalidate(KeyClass lo_key, KeyClass hi_key) {
+		Object lo = lo_key == null ? null : keyOf(lo_key);
+		Object hi = hi_key == null ? null : keyOf(hi_key);
+		for (Object key : new ArrayList<Object>(entries.keySet()))
+			if ((lo == null || compare(key, lo) >= 0)
+					&& (hi == null || compare(key, hi) <= 0))
+				invalidate(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static int compare(Object a, Object b) {
+		return ((Comparable<Object>) a).compareTo(b);
+	}
+
+	/** Drop every result. */
+	void clear() {
+		invalidations += entries.size();
+		entries.clear();
+		window.clear();
+		probation.clear();
+		protect.clear();
+	}
+
+	private static Entry removeEldest(LinkedHashMap<Object, Entry> segment) {
+		Iterator<Entry> i = segment.values().iterator();
+		Entry e = i.next();
+		i.remove();
+		return e;
+	}
+
+	/* count a lookup of key in the sketch */
+	private void record(Object key) {
+		int h = spread(key.hashCode());
+		for (int i = 0; i < 4; i++) {
+			int slot = index(h, i);
+			if (counts[slot] < 15)
+				counts[slot]++;
+		}
+		if (++additions >= sampleSize) {
+			// age: halve every count
+			for (int i = 0; i < counts.length; i++)
+				counts[i] >>= 1;
+			additions /= 2;
+		}
+	}
+
+	/* the estimated lookups of a key lately: the least of its counters */
+	private int frequency(Object key) {
+		int h = spread(key.hashCode());
+		int f = 15;
+		for (int i = 0; i < 4; i++)
+			f = Math.min(f, counts[index(h, i)]);
+		return f;
+	}
+
+	private static int spread(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int index(int h, int i) {
+		int x = (h + i * 0x2545F491) * 0x5BD1E995;
+		return (x ^ (x >>> 15)) & mask;
+	}
+
+	/** @return the most keys whose results are kept */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** @return the keys whose results are kept now */
+	public int size() {
+		return entries.size();
+	}
+
+	/** @return the lookups answered from the cache */
+	public long getHits() {
+		return hits;
+	}
+
+	/** @return the lookups that descended the tree */
+	public long getMisses() {
+		return misses;
+	}
+
+	/** @return hits per lookup, 0 before the first lookup */
+	public double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/** @return the results pushed out of the main part by a new key */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/** @return the new keys not admitted, looked up less than the cached */
+	public long getRejections() {
+		return rejections;
+	}
+
+	/** @return the results dropped by an insert or delete of their key */
+	public long getInvalidations() {
+		return invalidations;
+	}
+
+	/** Set the counters back to zero; the cached results stay. */
+	public void resetCounters() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+		rejections = 0;
+		invalidations = 0;
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * @(#) BTMergeScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTMergeScan is the scan of a BTreeFile with a write buffer: it merges a
+ * scan of the tree with the buffered deltas of the same key range, in key
+ * order. Tree entries the buffer deletes are skipped, buffered inserts are
+ * returned between them. BTBufferedFile uses it the same way for the
+ * messages still waiting in its index pages. A descending tree scan is
+ * merged with the deltas in descending order.
+ */
+public class BTMergeScan extends BTFileScan {
+
+	private final IndexFile owner;
+	private final BTFileScan tree;
+	private final NavigableMap<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta> deltas;
+	private final Iterator<Map.Entry<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta>> buffered;
+	private final boolean descending;
+
+	private KeyDataEntry treeHead;
+	private boolean treeDone;
+	private BTDeltaBuffer.DeltaKey bufferHead;
+	private int bufferCopies;
+	private KeyDataEntry current;
+	private int offset;
+	private int limit = -1;
+
+	/**
+	 * @param owner
+	 *            the index; deletes go through it. Input parameter.
+	 * @param tree
+	 *            the scan of the tree. Input parameter.
+	 * @param deltas
+	 *            the buffered deltas of the scanned key range. Input
+	 *            parameter.
+	 */
+	BTMergeScan(IndexFile owner, BTFileScan tree,
+			NavigableMap<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta> deltas) {
+		this(owner, tree, deltas, false);
+	}
+
+	/**
+	 * @param owner
+	 *            the index; deletes go through it. Input parameter.
+	 * @param tree
+	 *            the scan of the tree. Input parameter.
+	 * @param deltas
+	 *            the buffered deltas of the scanned key range. Input
+	 *            parameter.
+	 * @param descending
+	 *            the tree scan returns the largest key first. Input
+	 *            parameter.
+	 */
+	BTMergeScan(IndexFile owner, BTFileScan tree,
+			NavigableMap<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta> deltas,
+			boolean descending) {
+		this.owner = owner;
+		this.bfile = tree.bfile;
+		this.tree = tree;
+		this.deltas = deltas;
+		this.descending = descending;
+		this.buffered = (descending ? deltas.descendingMap() : deltas)
+				.entrySet().iterator();
+		this.keyType = tree.keyType;
+		this.maxKeysize = tree.maxKeysize;
+		this.treeFilename = tree.treeFilename;
+	}
+
+	/**
+	 * Skip the first `offset' entries of the merge and return at most
+	 * `limit' after them, a negative limit for no limit.
+	 */
+	void limit(int offset, int limit) {
+		this.offset = offset;
+		this.limit = limit;
+	}
+
+	/**
+	 * @return the deltas whose <key, rid> pair the filter accepts, encoded
+	 *         as a leaf entry; the others change only entries the filtered
+	 *         tree scan does not return
+	 */
+	static NavigableMap<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta> filter(
+			NavigableMap<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta> deltas,
+			ScanFilter filter) throws IteratorException {
+		if (filter == null)
+			return deltas;
+		TreeMap<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta> accepted = new TreeMap<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta>(
+				BTDeltaBuffer.ORDER);
+		try {
+			for (Map.Entry<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta> e : deltas
+					.entrySet()) {
+				byte[] entry = BT.getBytesFromEntry(new KeyDataEntry(e
+						.getKey().key, e.getKey().rid));
+				if (filter.accept(entry, 0, entry.length))
+					accepted.put(e.getKey(), e.getValue());
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+		return accepted;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			if (limit == 0) {
+				// done: let the tree scan go of its leaf now
+				if (!treeDone) {
+					tree.DestroyBTreeFileScan();
+					treeDone = true;
+				}
+				current = null;
+				return null;
+			}
+			for (; offset > 0 && merge() != null; offset--)
+				;
+			offset = 0;
+			if (merge() != null && limit > 0)
+				limit--;
+			return current;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/* the next entry of the merge, also kept in current */
+	private KeyDataEntry merge() throws ScanIteratorException,
+			KeyNotMatchException {
+		while (treeHead == null && !treeDone) {
+			treeHead = tree.get_next();
+			if (treeHead == null)
+				treeDone = true;
+			else if (isDeleted(treeHead))
+				treeHead = null;
+		}
+		while (bufferCopies == 0 && buffered.hasNext()) {
+			Map.Entry<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta> e = buffered
+					.next();
+			bufferHead = e.getKey();
+			bufferCopies = e.getValue().inserts;
+		}
+
+		if (treeHead == null && bufferCopies == 0)
+			current = null;
+		else if (bufferCopies == 0
+				|| (treeHead != null && before(treeHead.key,
+						bufferHead.key))) {
+			current = treeHead;
+			treeHead = null;
+		} else {
+			current = new KeyDataEntry(bufferHead.key, bufferHead.rid);
+			bufferCopies--;
+		}
+		return current;
+	}
+
+	/* whether the tree entry of key `a' comes first, on equal keys too */
+	private boolean before(KeyClass a, KeyClass b) throws KeyNotMatchException {
+		int c = BT.keyCompare(a, b);
+		return descending ? c >= 0 : c <= 0;
+	}
+
+	private boolean isDeleted(KeyDataEntry entry) {
+		BTDeltaBuffer.Delta d = deltas.get(new BTDeltaBuffer.DeltaKey(
+				entry.key, ((LeafData) entry.data).getData()));
+		return d != null && d.deleted;
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (current == null) {
+			System.out.println("No Record to delete!");
+			throw new ScanDeleteException();
+		}
+		try {
+			// goes to the write buffer, which a delete never merges into
+			// the tree, so the tree scan and the deltas are not disturbed
+			RID rid = ((LeafData) current.data).getData();
+			owner.Delete(current.key, rid);
+			if (bufferCopies > 0 && BT.keyCompare(bufferHead.key, current.key) == 0
+					&& bufferHead.rid.equals(rid))
+				bufferCopies = 0; // every copy is gone
+			current = null;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException();
+		}
+	}
+
+	public int keysize() {
+		return tree.keysize();
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		tree.DestroyBTreeFileScan();
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * @(#) BTPartitionScan.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+/**
+ * BTPartitionScan is a scan of a BTPartitionedFile. The partitions of the
+ * range hold disjoint key ranges, so it scans them one after the other in
+ * key order; only one partition scan is open, and pinning a leaf, at a
+ * time.
+ */
+public class BTPartitionScan extends IndexFileScan {
+
+	private final List<BTPartitionedFile.Partition> partitions;
+	private final KeyClass lo_key;
+	private final KeyClass hi_key;
+	private final int keysize;
+	private int next;
+	private BTPartitionedFile.Partition partition;
+	private BTFileScan scan;
+
+	BTPartitionScan(List<BTPartitionedFile.Partition> partitions,
+			KeyClass lo_key, KeyClass hi_key, int keysize) {
+		this.partitions = partitions;
+		this.lo_key = lo_key;
+		this.hi_key = hi_key;
+		this.keysize = keysize;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			while (true) {
+				if (scan == null) {
+					if (next == partitions.size())
+						return null;
+					partition = partitions.get(next++);
+					scan = partition.tree.new_scan(lo_key, hi_key);
+				}
+				KeyDataEntry e = scan.get_next();
+				if (e != null)
+					return e;
+				scan.DestroyBTreeFileScan();
+				scan = null;
+			}
+		} catch (ScanIteratorException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (scan == null) {
+			System.out.println("No current entry!");
+			throw new ScanDeleteException();
+		}
+		scan.delete_current();
+		partition.entries--;
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return keysize;
+	}
+
+	/**
+	 * destructor. unpin the leaf page of the partition being scanned, if
+	 * any.
+	 *
+	 * @exception ScanIteratorException
+	 *                error from the lower layer
+	 */
+	public void DestroyBTreeFileScan() throws ScanIteratorException {
+		try {
+			if (scan != null)
+				scan.DestroyBTreeFileScan();
+			scan = null;
+			next = partitions.size();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+}
@@ -0,0 +1,582 @@
+/*
+ * @(#) BTPartitionedFile.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTPartitionedFile is an index split by key range into partitions, each a
+ * BTreeFile of its own with its own header and root page, so a split or a
+ * rebuild in one partition does not touch the others.
+ * <p>
+ * Partition 0 holds the smallest keys; every other partition starts at its
+ * lower bound. The partitions are named after the index, "name.0",
+ * "name.1", ..., and the router is a BTreeFile named after the index whose
+ * entries are <lower bound, (partition number, entries)>; partition 0 is
+ * filed under the smallest key of the key type. The router is read into
+ * memory when the index is opened, and the entry counts are written back
+ * after a split and when it is closed. While the index is open the router
+ * also holds a mark under the smallest key, written to disk at once and
+ * removed by close(); an index opened with the mark still there was not
+ * closed, and its partitions are counted again.
+ * <p>
+ * A partition that grows past setMaxEntries() entries is split at its
+ * median key: the upper half is streamed from a scan into a new partition
+ * by the bulk loader and deleted from the old one with one range delete.
+ * Entries with one key are never split apart. Every partition takes a file
+ * entry of the DB, whose directory holds only a few dozen; past
+ * MAX_PARTITIONS partitions no more splits are made, and the partitions
+ * just grow. Scans go through the partitions of their range in key order.
+ * Inserts must not be made while a scan is open, since a split may free
+ * the leaf the scan is on.
+ */
+public class BTPartitionedFile extends IndexFile implements GlobalConst {
+
+	/** Entries of a partition before it is split. */
+	public final static int DEFAULT_MAX_ENTRIES = 50000;
+
+	/** The fewest entries setMaxEntries() takes. */
+	public final static int MIN_MAX_ENTRIES = 1000;
+
+	/** Partitions of an index, past which none is split. */
+	public final static int MAX_PARTITIONS = 16;
+
+	/** How full the pages of the half split off are made. */
+	private final static int SPLIT_FILL_FACTOR = 70;
+
+	/** The partition number of the router entry that marks the index open. */
+	private final static int OPEN_MARK = -1;
+
+	static class Partition {
+		final int number;
+		/** null for partition 0 */
+		final KeyClass low;
+		BTreeFile tree;
+		int entries;
+		/** entries as the router has them */
+		int stored;
+		/** entries at which a split is tried next */
+		int splitAt;
+		/** entries is only an upper bound, since a range delete */
+		boolean uncounted;
+
+		Partition(int number, KeyClass low, BTreeFile tree, int entries) {
+			this.number = number;
+			this.low = low;
+			this.tree = tree;
+			this.entries = entries;
+		}
+	}
+
+	private final String name;
+	private final BTreeFile router;
+	private final int keyType;
+	private final int keySize;
+	/** in key order */
+	private final ArrayList<Partition> partitions = new ArrayList<Partition>();
+	private int nextNumber;
+	private int maxEntries = DEFAULT_MAX_ENTRIES;
+	private BTBulkLoader loader;
+
+	/**
+	 * Open an existing partitioned index.
+	 *
+	 * @param filename
+	 *            the index name. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get the file from DB
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 * @exception ConstructPageException
+	 *                BT page constructor failed
+	 * @exception IteratorException
+	 *                a partition could not be read
+	 */
+	public BTPartitionedFile(String filename) throws GetFileEntryException,
+			PinPageException, ConstructPageException, IteratorException {
+		this(filename, new BTreeFile(filename), false);
+	}
+
+	/**
+	 * if the index exists, open it; else create it with one partition.
+	 *
+	 * @param filename
+	 *            the index name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 * @exception IteratorException
+	 *                a partition could not be read
+	 */
+	public BTPartitionedFile(String filename, int keytype, int keysize)
+			throws GetFileEntryException, ConstructPageException, IOException,
+			AddFileEntryException, IteratorException {
+		this(filename, new BTreeFile(filename, keytype, keysize,
+				DeleteFashion.NAIVE_DELETE), true);
+	}
+
+	private BTPartitionedFile(String filename, BTreeFile router, boolean create)
+			throws IteratorException {
+		this.name = filename;
+		this.router = router;
+		try {
+			this.keyType = router.getHeaderPage().get_keyType();
+			this.keySize = router.getHeaderPage().get_maxKeySize();
+			BTreeFile first = create ? new BTreeFile(partitionName(0), keyType,
+					keySize, DeleteFashion.NAIVE_DELETE) : new BTreeFile(
+					partitionName(0));
+			partitions.add(new Partition(0, null, first, 0));
+			if (create)
+				router.insert(smallestKey(), new RID(new PageId(0), 0));
+			nextNumber = 1;
+			boolean closed = true;
+			BTFileScan scan = router.new_scan(null, null);
+			KeyDataEntry e;
+			while ((e = scan.get_next()) != null) {
+				RID rid = ((LeafData) e.data).getData();
+				int number = rid.pageNo.pid;
+				if (number == OPEN_MARK) {
+					closed = false;
+					continue;
+				}
+				Partition p = partitions.get(0);
+				if (number != 0) {
+					p = new Partition(number, e.key, new BTreeFile(
+							partitionName(number)), 0);
+					partitions.add(p);
+					nextNumber = Math.max(nextNumber, number + 1);
+				}
+				p.entries = rid.slotNo;
+				p.stored = rid.slotNo;
+			}
+			scan.DestroyBTreeFileScan();
+			for (Partition p : partitions) {
+				p.splitAt = maxEntries;
+				// an index not closed has counts older than its entries
+				p.uncounted = !closed;
+				count(p);
+			}
+			if (closed)
+				router.insert(smallestKey(), new RID(new PageId(OPEN_MARK), 0));
+			router.writeFirstPath();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "could not open the partitions");
+		}
+	}
+
+	/**
+	 * Split partitions when they grow past this many entries, at least
+	 * MIN_MAX_ENTRIES. It is not kept in the file.
+	 *
+	 * @param entries
+	 *            entries per partition. Input parameter.
+	 */
+	public void setMaxEntries(int entries) {
+		maxEntries = Math.max(MIN_MAX_ENTRIES, entries);
+		for (Partition p : partitions)
+			p.splitAt = maxEntries;
+	}
+
+	/** @return the number of partitions. */
+	public int getPartitionCount() {
+		return partitions.size();
+	}
+
+	/**
+	 * @param index
+	 *            the partition, from 0 in key order. Input parameter.
+	 * @return the B+ tree of the partition
+	 */
+	public BTreeFile getPartition(int index) {
+		return partitions.get(index).tree;
+	}
+
+	/**
+	 * @param index
+	 *            the partition, from 0 in key order. Input parameter.
+	 * @return the smallest key of the partition, null for partition 0
+	 */
+	public KeyClass getPartitionLow(int index) {
+		return partitions.get(index).low;
+	}
+
+	/**
+	 * @param index
+	 *            the partition, from 0 in key order. Input parameter.
+	 * @return the number of entries in the partition. After a range delete,
+	 *         which frees pages without counting their entries, the
+	 *         partition is scanned to count them.
+	 * @exception IteratorException
+	 *                the partition could not be scanned
+	 */
+	public int getPartitionEntries(int index) throws IteratorException {
+		Partition p = partitions.get(index);
+		count(p);
+		return p.entries;
+	}
+
+	/**
+	 * insert record with the given key and rid into the partition of the
+	 * key, and split it if it has grown too large and there are fewer than
+	 * MAX_PARTITIONS partitions.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception InsertException
+	 *                the partition could not be split
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		int index = owner(key);
+		Partition p = partitions.get(index);
+		p.tree.insert(key, rid);
+		p.entries++;
+		if (p.entries > p.splitAt && partitions.size() < MAX_PARTITIONS)
+			split(index);
+	}
+
+	/**
+	 * delete leaf entry given its <key, rid> pair.
+	 *
+	 * @param key
+	 *            the key in pair <key, rid>. Input Parameter.
+	 * @param rid
+	 *            the rid in pair <key, rid>. Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 */
+	public boolean Delete(KeyClass key, RID rid) throws DeleteFashionException,
+			LeafRedistributeException, RedistributeException,
+			InsertRecException, KeyNotMatchException, UnpinPageException,
+			IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException,
+			IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException,
+			IOException {
+		Partition p = partitions.get(owner(key));
+		if (!p.tree.Delete(key, rid))
+			return false;
+		p.entries--;
+		return true;
+	}
+
+	/**
+	 * create a scan over the keys in [lo_key, hi_key]; null bounds are
+	 * open. It goes through the partitions of the range in key order.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @return the scan
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 */
+	public BTPartitionScan new_scan(KeyClass lo_key, KeyClass hi_key)
+			throws KeyNotMatchException {
+		int first = lo_key == null ? 0 : owner(lo_key);
+		int last = hi_key == null ? partitions.size() - 1 : owner(hi_key);
+		List<Partition> range = new ArrayList<Partition>();
+		if (lo_key == null || hi_key == null
+				|| BT.keyCompare(lo_key, hi_key) <= 0)
+			range.addAll(partitions.subList(first, last + 1));
+		return new BTPartitionScan(range, lo_key, hi_key, keySize);
+	}
+
+	/**
+	 * Delete every entry with a key in [lo_key, hi_key], one range delete
+	 * per partition of the range; see BTreeFile.deleteRange. It does not
+	 * return the number of entries deleted, and the partitions of the range
+	 * are counted again when their counts are next asked for or written.
+	 *
+	 * @param lo_key
+	 *            the smallest key to delete, null for the smallest. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the largest key to delete, null for the largest. Input
+	 *            parameter.
+	 * @exception DeleteRecException
+	 *                error from the lower layer
+	 */
+	public void deleteRange(KeyClass lo_key, KeyClass hi_key)
+			throws DeleteRecException {
+		try {
+			int first = lo_key == null ? 0 : owner(lo_key);
+			int last = hi_key == null ? partitions.size() - 1 : owner(hi_key);
+			for (int i = first; i <= last; i++) {
+				Partition p = partitions.get(i);
+				p.tree.deleteRange(lo_key, hi_key);
+				p.uncounted = true;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new DeleteRecException(e, "");
+		}
+	}
+
+	/**
+	 * Rebuild one partition bottom up with full pages, leaving the others
+	 * alone. The partition must not be in use by a scan.
+	 *
+	 * @param index
+	 *            the partition, from 0 in key order. Input parameter.
+	 * @exception InsertException
+	 *                error from the lower layer
+	 */
+	public void rebuildPartition(int index) throws InsertException {
+		Partition p = partitions.get(index);
+		try {
+			KeyDataEntry[] all = entries(p.tree);
+			p.tree.destroyFile();
+			BTBulkLoader l = loader();
+			l.setFillFactor(100);
+			p.tree = l.build(partitionName(p.number), all, keyType, keySize);
+			p.entries = all.length;
+			p.uncounted = false;
+		} catch (InsertException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "rebuild of partition " + p.number
+					+ " failed");
+		}
+	}
+
+	/**
+	 * Write the entry counts into the router, counting the partitions of
+	 * range deletes first, remove the open mark, then close every partition
+	 * and the router.
+	 *
+	 * @exception InsertException
+	 *                the entry counts could not be written
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 */
+	public void close() throws InsertException, PageUnpinnedException,
+			InvalidFrameNumberException, HashEntryNotFoundException,
+			ReplacerException {
+		for (Partition p : partitions) {
+			try {
+				count(p);
+				store(p);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new InsertException(e, "entries of partition "
+						+ p.number + " not kept");
+			}
+		}
+		try {
+			router.Delete(smallestKey(), new RID(new PageId(OPEN_MARK), 0));
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "open mark not removed");
+		}
+		for (Partition p : partitions)
+			p.tree.close();
+		router.close();
+		if (loader != null) {
+			loader.shutdown();
+			loader = null;
+		}
+	}
+
+	/**
+	 * Destroy every partition and the router.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception DeleteFileEntryException
+	 *                failed when delete a file from DM
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 */
+	public void destroyFile() throws IOException, IteratorException,
+			UnpinPageException, FreePageException, DeleteFileEntryException,
+			ConstructPageException, PinPageException {
+		for (Partition p : partitions)
+			p.tree.destroyFile();
+		partitions.clear();
+		router.destroyFile();
+		if (loader != null) {
+			loader.shutdown();
+			loader = null;
+		}
+	}
+
+	private String partitionName(int number) {
+		return name + "." + number;
+	}
+
+	/* the router key of partition 0 */
+	private KeyClass smallestKey() {
+		return keyType == AttrType.attrInteger ? (KeyClass) new IntegerKey(
+				Integer.MIN_VALUE) : new StringKey("");
+	}
+
+	/* the partition whose range holds `key' */
+	private int owner(KeyClass key) throws KeyNotMatchException {
+		int lo = 1, hi = partitions.size() - 1, found = 0;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (BT.keyCompare(partitions.get(mid).low, key) <= 0) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	/*
+	 * Move the upper half of a partition, from the first entry of its median
+	 * key on, into a new partition. One scan finds the median key and a
+	 * second one is streamed into the new partition.
+	 */
+	private void split(int index) throws InsertException {
+		Partition p = partitions.get(index);
+		try {
+			count(p);
+			if (p.entries <= maxEntries) {
+				// range deletes left fewer entries than counted
+				p.splitAt = maxEntries;
+				return;
+			}
+			// the run of equal keys that holds the median entry starts at
+			// `from'; if that is the first entry, split after the run
+			int half = p.entries / 2, from = 0, i = 0;
+			KeyClass low = null, runKey = null;
+			BTFileScan scan = p.tree.new_scan(null, null);
+			KeyDataEntry e;
+			while ((e = scan.get_next()) != null) {
+				if (runKey == null || BT.keyCompare(e.key, runKey) != 0) {
+					if (i > half) {
+						if (from == 0) {
+							from = i;
+							low = e.key;
+						}
+						break;
+					}
+					from = i;
+					low = runKey = e.key;
+				}
+				i++;
+			}
+			scan.DestroyBTreeFileScan();
+			if (from == 0) {
+				// one key only; try again when it has doubled
+				p.splitAt = p.entries * 2;
+				return;
+			}
+
+			int number = nextNumber++;
+			BTBulkLoader l = loader();
+			l.setFillFactor(SPLIT_FILL_FACTOR);
+			BTreeFile tree;
+			scan = p.tree.new_scan(low, null);
+			try {
+				tree = l.build(partitionName(number), scan, keyType, keySize);
+			} finally {
+				scan.DestroyBTreeFileScan();
+			}
+			p.tree.deleteRange(low, null);
+			int upper = p.entries - from;
+			p.entries = from;
+			p.splitAt = maxEntries;
+			store(p);
+			Partition q = new Partition(number, low, tree, upper);
+			q.stored = upper;
+			q.splitAt = maxEntries;
+			partitions.add(index + 1, q);
+			router.insert(low, new RID(new PageId(number), upper));
+		} catch (InsertException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new InsertException(e, "split of partition " + p.number
+					+ " failed");
+		}
+	}
+
+	/* write the entry count of `p' into the router, if it has changed */
+	private void store(Partition p) throws Exception {
+		if (p.entries == p.stored)
+			return;
+		KeyClass low = p.low == null ? smallestKey() : p.low;
+		router.Delete(low, new RID(new PageId(p.number), p.stored));
+		router.insert(low, new RID(new PageId(p.number), p.entries));
+		p.stored = p.entries;
+	}
+
+	private BTBulkLoader loader() {
+		if (loader == null)
+			loader = new BTBulkLoader();
+		return loader;
+	}
+
+	/* make the entry count of `p' exact if a range delete has left it high */
+	private static void count(Partition p) throws IteratorException {
+		if (!p.uncounted)
+			return;
+		try {
+			int n = 0;
+			BTFileScan scan = p.tree.new_scan(null, null);
+			while (scan.get_next() != null)
+				n++;
+			scan.DestroyBTreeFileScan();
+			p.entries = n;
+			p.uncounted = false;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "partition " + p.number
+					+ " could not be counted");
+		}
+	}
+
+	private static KeyDataEntry[] entries(BTreeFile tree) throws Exception {
+		List<KeyDataEntry> all = new ArrayList<KeyDataEntry>();
+		BTFileScan scan = tree.new_scan(null, null);
+		KeyDataEntry e;
+		while ((e = scan.get_next()) != null)
+			all.add(e);
+		scan.DestroyBTreeFileScan();
+		return all.toArray(new KeyDataEntry[all.size()]);
+	}
+}
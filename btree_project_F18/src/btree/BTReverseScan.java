@@ -0,0 +1,101 @@
+/*
+ * @(#) BTReverseScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import global.*;
+
+/**
+ * BTReverseScan is a scan of a BTreeFile in descending key order, created by
+ * BTreeFile.new_scan(lo_key, hi_key, ScanOrder.DESCENDING). It starts at the
+ * last entry <= hi_key and follows the prevPage links of the leaves until an
+ * entry < lo_key, so it reads only the pages of the entries it returns. Like
+ * BTFileScan it keeps the current leaf pinned.
+ */
+public class BTReverseScan extends BTFileScan {
+
+	/** the smallest key to return; null for no bound */
+	KeyClass startkey;
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			if (leafPage == null)
+				return null;
+			// the slots of a leaf are sorted and have no holes; deleting the
+			// current entry does not move the ones before it
+			int slot = didfirst ? curRid.slotNo - 1 : curRid.slotNo;
+			didfirst = true;
+			deletedcurrent = false;
+			while (slot < 0) {
+				PageId prev = leafPage.getPrevPage();
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+				if (prev.pid == INVALID_PAGE) {
+					leafPage = null;
+					return null;
+				}
+				leafPage = new BTLeafPage(prev, keyType);
+				slot = leafPage.getSlotCnt() - 1;
+			}
+			curRid.pageNo = leafPage.getCurPage();
+			curRid.slotNo = slot;
+			KeyDataEntry entry = leafPage.getCurrent(curRid);
+			if (startkey != null && BT.keyCompare(entry.key, startkey) < 0) {
+				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+				leafPage = null;
+				return null;
+			}
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/**
+	 * Delete currently-being-scanned(i.e., just scanned) data entry.
+	 *
+	 * @exception ScanDeleteException
+	 *                delete error when scan
+	 */
+	public void delete_current() throws ScanDeleteException {
+		if (leafPage == null || !didfirst || deletedcurrent) {
+			System.out.println("No Record to delete!");
+			throw new ScanDeleteException();
+		}
+		try {
+			KeyDataEntry entry = leafPage.getCurrent(new RID(curRid.pageNo,
+					curRid.slotNo));
+			// the leaf stays pinned; Delete only removes entries, so the
+			// slots before the current one keep their numbers
+			bfile.Delete(entry.key, ((LeafData) entry.data).getData());
+			deletedcurrent = true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanDeleteException();
+		}
+	}
+
+	/**
+	 * destructor. unpin some pages if they are not unpinned already. and do
+	 * some clearing work.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		if (leafPage != null)
+			SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(), false);
+		leafPage = null;
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * @(#) BTSnapshotScan.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import bufmgr.*;
+import diskmgr.*;
+import global.*;
+
+/**
+ * BTSnapshotScan is a scan of a frozen version of a BTreeFile, created by
+ * BTreeFile.new_scan(lo_key, hi_key, true). Inserts and deletes made while it
+ * is open are not seen: writers copy a page before they change it, and the
+ * scan reads those copies. It reads private copies of the pages and keeps
+ * nothing pinned between calls. The snapshot is released by
+ * DestroyBTreeFileScan(), or when the scan runs off its end.
+ */
+public class BTSnapshotScan extends BTFileScan {
+
+	private long epoch;
+	private boolean released;
+
+	BTSnapshotScan(BTreeFile bfile, long epoch) {
+		this.bfile = bfile;
+		this.epoch = epoch;
+	}
+
+	/*
+	 * Position the scan on the first entry >= `lo_key' of the tree below
+	 * `root', as findRunStart does on the live tree.
+	 */
+	void position(PageId root, KeyClass lo_key) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		leafPage = null;
+		if (root.pid == INVALID_PAGE)
+			return;
+
+		BTSortedPage sortPage = readPage(root);
+		while (sortPage.getType() == NodeType.INDEX) {
+			BTIndexPage pageIndex = new BTIndexPage(sortPage, keyType);
+			PageId child = pageIndex.getPrevPage();
+			KeyDataEntry curEntry = pageIndex.getFirst(curRid);
+			while (curEntry != null && lo_key != null
+					&& BT.keyCompare(curEntry.key, lo_key) < 0) {
+				child = ((IndexData) curEntry.data).getData();
+				curEntry = pageIndex.getNext(curRid);
+			}
+			sortPage = readPage(child);
+		}
+
+		BTLeafPage pageLeaf = new BTLeafPage(sortPage, keyType);
+		KeyDataEntry curEntry = pageLeaf.getFirst(curRid);
+		while (curEntry == null
+				|| (lo_key != null && BT.keyCompare(curEntry.key, lo_key) < 0)) {
+			if (curEntry != null)
+				curEntry = pageLeaf.getNext(curRid);
+			while (curEntry == null) {
+				PageId next = pageLeaf.getNextPage();
+				if (next.pid == INVALID_PAGE)
+					return;
+				pageLeaf = new BTLeafPage(readPage(next), keyType);
+				curEntry = pageLeaf.getFirst(curRid);
+			}
+		}
+		leafPage = pageLeaf;
+	}
+
+	private BTSortedPage readPage(PageId pageno) throws PinPageException {
+		byte[] image = bfile.snapshotImage(pageno, epoch);
+		return new BTSortedPage(new Page(image), keyType);
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		try {
+			if (leafPage == null)
+				return null;
+			KeyDataEntry entry = didfirst ? leafPage.getNext(curRid)
+					: leafPage.getCurrent(curRid);
+			didfirst = true;
+			while (entry == null) {
+				PageId next = leafPage.getNextPage();
+				if (next.pid == INVALID_PAGE) {
+					finish();
+					return null;
+				}
+				leafPage = new BTLeafPage(readPage(next), keyType);
+				entry = leafPage.getFirst(curRid);
+			}
+			if (endkey != null && BT.keyCompare(entry.key, endkey) > 0) {
+				finish();
+				return null;
+			}
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException();
+		}
+	}
+
+	/**
+	 * A snapshot is read only.
+	 *
+	 * @exception ScanDeleteException
+	 *                always
+	 */
+	public void delete_current() throws ScanDeleteException {
+		System.out.println("a snapshot scan cannot delete");
+		throw new ScanDeleteException();
+	}
+
+	/**
+	 * Release the snapshot. Nothing is pinned.
+	 */
+	public void DestroyBTreeFileScan() throws IOException,
+			InvalidFrameNumberException, ReplacerException,
+			PageUnpinnedException, HashEntryNotFoundException {
+		finish();
+	}
+
+	private void finish() {
+		leafPage = null;
+		if (!released) {
+			released = true;
+			bfile.releaseSnapshot(epoch);
+		}
+	}
+}
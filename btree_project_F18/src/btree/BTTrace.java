@@ -0,0 +1,359 @@
+/*
+ * @(#) BTTrace.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import global.*;
+
+/**
+ * BTTrace is the binary structured trace of a BTreeFile. Events are encoded
+ * into a fixed size in-memory ring by the index thread and written to the
+ * trace file by a background daemon thread, so tracing never waits on the
+ * file system. When the ring is full an event is dropped (and counted)
+ * instead of blocking the index.
+ * <p>
+ * Every record starts with a one byte event type, an eight byte timestamp
+ * (nanoseconds since the trace was opened) and the four byte page number the
+ * event refers to. BTTraceDecoder turns the file back into the text trace
+ * used by the visualization tool.
+ */
+public class BTTrace implements GlobalConst {
+
+	/** File header: "BTTR" */
+	final static int MAGIC = 0x42545452;
+	final static short VERSION = 1;
+
+	final static byte VISIT = 1;
+	final static byte PIN = 2;
+	final static byte UNPIN = 3;
+	final static byte SPLIT = 4;
+	final static byte DELETE = 5;
+	final static byte INDEX_CHILDREN = 6;
+	final static byte LEAF_CHILDREN = 7;
+	final static byte DROPPED = 8;
+
+	final static byte KEY_INTEGER = 1;
+	final static byte KEY_STRING = 2;
+
+	/** type, timestamp, page number */
+	final static int HEADER_SIZE = 1 + 8 + 4;
+
+	private final static int DEFAULT_RING_SIZE = 1 << 20;
+	private final static long FLUSH_INTERVAL_MS = 50;
+
+	private final byte[] ring;
+	private final int mask;
+	private long head; // next byte to be written to the file
+	private long tail; // next free byte in the ring
+	private long dropped;
+	private boolean closed;
+
+	private final long start;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition dataReady = lock.newCondition();
+	private final OutputStream out;
+	private final Thread writer;
+	private IOException writeError;
+
+	private byte[] scratch = new byte[MINIBASE_PAGESIZE];
+	private int scratchLen;
+
+	/**
+	 * Open a binary trace file with the default ring size.
+	 *
+	 * @param filename
+	 *            the trace file name. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTTrace(String filename) throws IOException {
+		this(filename, DEFAULT_RING_SIZE);
+	}
+
+	/**
+	 * Open a binary trace file.
+	 *
+	 * @param filename
+	 *            the trace file name. Input parameter.
+	 * @param ringSize
+	 *            size in bytes of the in-memory ring, rounded up to a power of
+	 *            two. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTTrace(String filename, int ringSize) throws IOException {
+		int size = Integer.highestOneBit(Math.max(ringSize, 4096) - 1) << 1;
+		ring = new byte[size];
+		mask = size - 1;
+		start = System.nanoTime();
+
+		out = new BufferedOutputStream(new FileOutputStream(filename), 64 * 1024);
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(MAGIC);
+		header.writeShort(VERSION);
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				drainLoop();
+			}
+		}, "btree-trace-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/** A node was visited on the way down the tree. */
+	public void visit(PageId pageno) {
+		event(VISIT, pageno.pid);
+	}
+
+	/** A page was pinned by the index. */
+	public void pin(PageId pageno) {
+		event(PIN, pageno.pid);
+	}
+
+	/** A page was unpinned by the index. */
+	public void unpin(PageId pageno, boolean dirty) {
+		lock.lock();
+		try {
+			if (reserve(HEADER_SIZE + 1)) {
+				putHeader(UNPIN, pageno.pid);
+				putByte(dirty ? 1 : 0);
+				signalIfHalfFull();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Page `pageno' was split, moving entries to `newPage'. */
+	public void split(PageId pageno, PageId newPage) {
+		lock.lock();
+		try {
+			if (reserve(HEADER_SIZE + 4)) {
+				putHeader(SPLIT, pageno.pid);
+				putInt(newPage.pid);
+				signalIfHalfFull();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** An entry was removed from leaf page `pageno'. */
+	public void delete(PageId pageno) {
+		event(DELETE, pageno.pid);
+	}
+
+	/**
+	 * Record the children of index page `pageno'. The first child is the left
+	 * link of the page.
+	 */
+	public void indexChildren(PageId pageno, int[] children, int count) {
+		lock.lock();
+		try {
+			if (reserve(HEADER_SIZE + 4 + 4 * count)) {
+				putHeader(INDEX_CHILDREN, pageno.pid);
+				putInt(count);
+				for (int i = 0; i < count; i++)
+					putInt(children[i]);
+				signalIfHalfFull();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Start collecting the entries of leaf page. Entries are added with
+	 * leafEntry and the record is published by endLeafChildren. Only the
+	 * thread that owns the index may use this.
+	 */
+	void beginLeafChildren() {
+		scratchLen = 0;
+	}
+
+	void leafEntry(KeyDataEntry entry) throws IOException {
+		RID rid = ((LeafData) entry.data).getData();
+		if (entry.key instanceof IntegerKey) {
+			ensureScratch(1 + 4 + 8);
+			scratch[scratchLen++] = KEY_INTEGER;
+			Convert.setIntValue(((IntegerKey) entry.key).getKey().intValue(),
+					scratchLen, scratch);
+			scratchLen += 4;
+		} else {
+			byte[] utf = ((StringKey) entry.key).getKey().getBytes("UTF-8");
+			ensureScratch(1 + 2 + utf.length + 8);
+			scratch[scratchLen++] = KEY_STRING;
+			Convert.setShortValue((short) utf.length, scratchLen, scratch);
+			scratchLen += 2;
+			System.arraycopy(utf, 0, scratch, scratchLen, utf.length);
+			scratchLen += utf.length;
+		}
+		Convert.setIntValue(rid.pageNo.pid, scratchLen, scratch);
+		Convert.setIntValue(rid.slotNo, scratchLen + 4, scratch);
+		scratchLen += 8;
+	}
+
+	void endLeafChildren(PageId pageno, int count) {
+		lock.lock();
+		try {
+			if (reserve(HEADER_SIZE + 4 + scratchLen)) {
+				putHeader(LEAF_CHILDREN, pageno.pid);
+				putInt(count);
+				for (int i = 0; i < scratchLen; i++)
+					putByte(scratch[i]);
+				signalIfHalfFull();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of events dropped because the ring was full.
+	 */
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop the writer thread, write out everything still in the ring and close
+	 * the trace file.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			dataReady.signal();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (dropped > 0) {
+			DataOutputStream dos = new DataOutputStream(out);
+			dos.writeByte(DROPPED);
+			dos.writeLong(System.nanoTime() - start);
+			dos.writeInt(INVALID_PAGE);
+			dos.writeLong(dropped);
+		}
+		out.close();
+		if (writeError != null)
+			throw writeError;
+	}
+
+	private void event(byte type, int pid) {
+		lock.lock();
+		try {
+			if (reserve(HEADER_SIZE)) {
+				putHeader(type, pid);
+				signalIfHalfFull();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean reserve(int len) {
+		if (closed || ring.length - (tail - head) < len) {
+			dropped++;
+			return false;
+		}
+		return true;
+	}
+
+	private void putHeader(byte type, int pid) {
+		putByte(type);
+		putLong(System.nanoTime() - start);
+		putInt(pid);
+	}
+
+	private void putByte(int b) {
+		ring[(int) (tail++ & mask)] = (byte) b;
+	}
+
+	private void putInt(int v) {
+		putByte(v >>> 24);
+		putByte(v >>> 16);
+		putByte(v >>> 8);
+		putByte(v);
+	}
+
+	private void putLong(long v) {
+		putInt((int) (v >>> 32));
+		putInt((int) v);
+	}
+
+	private void signalIfHalfFull() {
+		if (tail - head > ring.length / 2)
+			dataReady.signal();
+	}
+
+	private void ensureScratch(int len) {
+		if (scratchLen + len > scratch.length) {
+			byte[] bigger = new byte[Math.max(scratch.length * 2, scratchLen
+					+ len)];
+			System.arraycopy(scratch, 0, bigger, 0, scratchLen);
+			scratch = bigger;
+		}
+	}
+
+	private void drainLoop() {
+		byte[] chunk = new byte[ring.length];
+		while (true) {
+			int len;
+			boolean done;
+			lock.lock();
+			try {
+				if (!closed && tail == head) {
+					try {
+						dataReady.await(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						closed = true;
+					}
+				}
+				len = (int) (tail - head);
+				int from = (int) (head & mask);
+				int first = Math.min(len, ring.length - from);
+				System.arraycopy(ring, from, chunk, 0, first);
+				System.arraycopy(ring, 0, chunk, first, len - first);
+				head = tail;
+				done = closed;
+			} finally {
+				lock.unlock();
+			}
+
+			// the file is written outside the lock so producers never wait on it
+			if (writeError == null && len > 0) {
+				try {
+					out.write(chunk, 0, len);
+					out.flush();
+				} catch (IOException e) {
+					writeError = e;
+				}
+			}
+			if (done)
+				return;
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+ * @(#) BTTraceDecoder.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * BTTraceDecoder reads a binary trace written by BTTrace and rebuilds the text
+ * trace the visualization tool expects ("VISIT node ...", "INDEX CHILDREN
+ * ...", "LEAF CHILDREN ..."). Pin, unpin, split and delete events have no
+ * text form in the old trace and are only printed with the -all option.
+ * <p>
+ * Usage: java btree.BTTraceDecoder [-all] tracefile [textfile]
+ */
+public class BTTraceDecoder implements GlobalConst {
+
+	private final static String lineSep = System.getProperty("line.separator");
+
+	private final DataInputStream in;
+	private final boolean all;
+
+	/**
+	 * @param in
+	 *            the binary trace. Input parameter.
+	 * @param all
+	 *            also print the events the text trace did not have. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                the stream is not a binary b-tree trace
+	 */
+	public BTTraceDecoder(InputStream in, boolean all) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		this.all = all;
+		if (this.in.readInt() != BTTrace.MAGIC)
+			throw new IOException("not a binary b-tree trace");
+		short version = this.in.readShort();
+		if (version != BTTrace.VERSION)
+			throw new IOException("unsupported trace version " + version);
+	}
+
+	/**
+	 * Decode every record of the trace into `out'.
+	 *
+	 * @param out
+	 *            where the text trace is written. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer or a corrupt trace
+	 */
+	public void decode(Writer out) throws IOException {
+		int type;
+		while ((type = in.read()) != -1) {
+			long time = in.readLong();
+			int pid = in.readInt();
+			switch (type) {
+			case BTTrace.VISIT:
+				out.write("VISIT node " + pid + lineSep);
+				break;
+			case BTTrace.PIN:
+				if (all)
+					out.write("PIN " + pid + " @" + time + lineSep);
+				break;
+			case BTTrace.UNPIN:
+				boolean dirty = in.readByte() != 0;
+				if (all)
+					out.write("UNPIN " + pid + (dirty ? " dirty" : "") + " @"
+							+ time + lineSep);
+				break;
+			case BTTrace.SPLIT:
+				int newPage = in.readInt();
+				if (all)
+					out.write("SPLIT " + pid + " into " + newPage + " @" + time
+							+ lineSep);
+				break;
+			case BTTrace.DELETE:
+				if (all)
+					out.write("DELETE from " + pid + " @" + time + lineSep);
+				break;
+			case BTTrace.INDEX_CHILDREN:
+				decodeIndexChildren(out, pid);
+				break;
+			case BTTrace.LEAF_CHILDREN:
+				decodeLeafChildren(out, pid);
+				break;
+			case BTTrace.DROPPED:
+				long dropped = in.readLong();
+				if (all)
+					out.write("DROPPED " + dropped + " events" + lineSep);
+				break;
+			default:
+				throw new IOException("corrupt trace: unknown event type "
+						+ type);
+			}
+		}
+		out.flush();
+	}
+
+	private void decodeIndexChildren(Writer out, int pid) throws IOException {
+		int count = in.readInt();
+		out.write("INDEX CHILDREN " + pid + " nodes" + lineSep);
+		for (int i = 0; i < count; i++) {
+			int child = in.readInt();
+			out.write(i == 0 ? " " + child : "   " + child);
+		}
+		out.write(lineSep);
+	}
+
+	private void decodeLeafChildren(Writer out, int pid) throws IOException {
+		int count = in.readInt();
+		out.write("LEAF CHILDREN " + pid + " nodes" + lineSep);
+		for (int i = 0; i < count; i++) {
+			String key;
+			int tag = in.readByte();
+			if (tag == BTTrace.KEY_INTEGER) {
+				key = Integer.toString(in.readInt());
+			} else if (tag == BTTrace.KEY_STRING) {
+				byte[] utf = new byte[in.readShort() & 0xffff];
+				in.readFully(utf);
+				key = new String(utf, "UTF-8");
+			} else {
+				throw new IOException("corrupt trace: unknown key tag " + tag);
+			}
+			PageId pageno = new PageId(in.readInt());
+			LeafData data = new LeafData(new RID(pageno, in.readInt()));
+			out.write("   " + key + " " + data);
+		}
+		out.write(lineSep);
+	}
+
+	public static void main(String[] argv) {
+		boolean all = false;
+		int arg = 0;
+		if (argv.length > 0 && argv[0].equals("-all")) {
+			all = true;
+			arg++;
+		}
+		if (argv.length - arg < 1) {
+			System.err.println("usage: java btree.BTTraceDecoder [-all] tracefile [textfile]");
+			Runtime.getRuntime().exit(1);
+		}
+		try {
+			BTTraceDecoder decoder = new BTTraceDecoder(new FileInputStream(
+					argv[arg]), all);
+			Writer out = argv.length - arg > 1 ? new FileWriter(argv[arg + 1])
+					: new OutputStreamWriter(System.out);
+			decoder.decode(new BufferedWriter(out));
+			out.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * @(#) BTVersionStore.java
+ *
+ */
+
+package btree;
+
+import java.util.*;
+
+import global.*;
+
+/**
+ * BTVersionStore keeps the old versions of the pages of a BTreeFile that
+ * writers changed while snapshots were open.
+ * <p>
+ * Every snapshot gets a new epoch. The first time a page is about to be
+ * changed in an epoch, its image is copied and tagged with that epoch. A
+ * snapshot of epoch s sees the oldest copy tagged s or later: the page as it
+ * was before the first change made after the snapshot was taken. A page
+ * without such a copy has not changed since and is read from the buffer pool.
+ * Copies no open snapshot can see any more are dropped when a snapshot is
+ * released.
+ */
+class BTVersionStore implements GlobalConst {
+
+	private static class Version {
+		final long epoch;
+		final byte[] image;
+
+		Version(long epoch, byte[] image) {
+			this.epoch = epoch;
+			this.image = image;
+		}
+	}
+
+	private long epoch;
+	private final TreeSet<Long> open = new TreeSet<Long>();
+	/** the copies of each page, oldest first */
+	private final HashMap<Integer, LinkedList<Version>> versions = new HashMap<Integer, LinkedList<Version>>();
+	private long bytes;
+
+	/** @return true while a snapshot is open and writers have to copy. */
+	boolean isActive() {
+		return !open.isEmpty();
+	}
+
+	/**
+	 * Open a snapshot of the current state.
+	 *
+	 * @return the epoch of the snapshot
+	 */
+	long openSnapshot() {
+		open.add(Long.valueOf(++epoch));
+		return epoch;
+	}
+
+	/**
+	 * A page is about to be changed: keep its current image if a snapshot
+	 * taken since its last copy may still read it.
+	 *
+	 * @param pid
+	 *            the page number. Input parameter.
+	 * @param image
+	 *            the page before the change. Input parameter.
+	 */
+	void beforeWrite(int pid, byte[] image) {
+		if (open.isEmpty())
+			return;
+		Integer key = Integer.valueOf(pid);
+		LinkedList<Version> chain = versions.get(key);
+		if (chain == null) {
+			chain = new LinkedList<Version>();
+			versions.put(key, chain);
+		} else if (chain.getLast().epoch == epoch) {
+			return; // already copied for the newest snapshot
+		}
+		byte[] copy = new byte[MINIBASE_PAGESIZE];
+		System.arraycopy(image, 0, copy, 0, MINIBASE_PAGESIZE);
+		chain.add(new Version(epoch, copy));
+		bytes += MINIBASE_PAGESIZE;
+	}
+
+	/**
+	 * @return the image of a page as the snapshot of `snapshotEpoch' sees it,
+	 *         null if the page has not changed since.
+	 */
+	byte[] read(int pid, long snapshotEpoch) {
+		LinkedList<Version> chain = versions.get(Integer.valueOf(pid));
+		if (chain != null)
+			for (Version v : chain)
+				if (v.epoch >= snapshotEpoch)
+					return v.image;
+		return null;
+	}
+
+	/**
+	 * Close a snapshot and drop the copies no open snapshot can see.
+	 *
+	 * @param snapshotEpoch
+	 *            the epoch of the snapshot. Input parameter.
+	 */
+	void releaseSnapshot(long snapshotEpoch) {
+		if (!open.remove(Long.valueOf(snapshotEpoch)))
+			return;
+		if (open.isEmpty()) {
+			versions.clear();
+			bytes = 0;
+			return;
+		}
+		Iterator<LinkedList<Version>> chains = versions.values().iterator();
+		while (chains.hasNext()) {
+			LinkedList<Version> chain = chains.next();
+			long prev = Long.MIN_VALUE;
+			Iterator<Version> it = chain.iterator();
+			while (it.hasNext()) {
+				Version v = it.next();
+				// seen by an open snapshot taken after the previous copy?
+				Long s = open.ceiling(Long.valueOf(prev + 1));
+				if (s == null || s.longValue() > v.epoch) {
+					it.remove();
+					bytes -= MINIBASE_PAGESIZE;
+				}
+				prev = v.epoch;
+			}
+			if (chain.isEmpty())
+				chains.remove();
+		}
+	}
+
+	/** @return number of open snapshots. */
+	int getOpenSnapshots() {
+		return open.size();
+	}
+
+	/** @return bytes held by old page versions. */
+	long getBytes() {
+		return bytes;
+	}
+}
@@ -8,6 +8,7 @@
 package btree;
 
 import java.io.*;
+import java.util.*;
 
 import diskmgr.*;
 import bufmgr.*;
@@ -22,15 +23,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static int MAGIC0 = 1989;
 
-	private final static String lineSep = System.getProperty("line.separator");
-
-	private static FileOutputStream fos;
-	private static DataOutputStream trace;
+	private static BTTrace trace;
 
 	/**
 	 * It causes a structured trace to be written to a file. This output is used
 	 * to drive a visualization tool that shows the inner workings of the b-tree
-	 * during its operations.
+	 * during its operations. The trace is binary and written by a background
+	 * thread; BTTraceDecoder turns it back into the text format.
 	 *
 	 * @param filename
 	 *            input parameter. The trace file name
@@ -39,8 +38,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public static void traceFilename(String filename) throws IOException {
 
-		fos = new FileOutputStream(filename);
-		trace = new DataOutputStream(fos);
+		destroyTrace();
+		trace = new BTTrace(filename);
 	}
 
 	/**
@@ -52,9 +51,6 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public static void destroyTrace() throws IOException {
 		if (trace != null)
 			trace.close();
-		if (fos != null)
-			fos.close();
-		fos = null;
 		trace = null;
 	}
 
@@ -62,6 +58,78 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private PageId headerPageId;
 	private String dbname;
 
+	/** pages held pinned until the log is durable past `lsn' */
+	private static class HeldPages {
+		final long lsn;
+		final int[] pids;
+
+		HeldPages(long lsn, int[] pids) {
+			this.lsn = lsn;
+			this.pids = pids;
+		}
+	}
+
+	/** at most this fraction of the buffer pool is held for the log */
+	private final static int MAX_HELD_FRACTION = 4;
+
+	/** pages prefetched per index level by a range scan descent */
+	private final static int READ_AHEAD = 8;
+
+	private BTLog wal;
+	private boolean walSync;
+	/** pages changed by the running insert or delete, null outside of one */
+	private LinkedHashMap<Integer, Page> opPages;
+	private final LinkedList<HeldPages> heldPages = new LinkedList<HeldPages>();
+	private int heldCount;
+	/** logged pages that may not be on disk yet, with their oldest change */
+	private final HashMap<Integer, Long> dirtyPages = new HashMap<Integer, Long>();
+	private int checkpointInterval;
+	private int checkpointWrites;
+	private int opsSinceCheckpoint;
+
+	/** old page versions for the open snapshot scans */
+	private final BTVersionStore versions = new BTVersionStore();
+	/** an insert or delete is running */
+	private boolean inOp;
+
+	private BTDeltaBuffer writeBuffer;
+	private int writeBufferLimit;
+
+	/*
+	 * Views of the pages a descent passes through, pointed at each pinned
+	 * frame in turn instead of wrapping every page in new page objects that
+	 * each allocate a page buffer of their own.
+	 */
+	private BTSortedPage sortedView;
+	private BTIndexPage indexView;
+
+	/** how descents find a key in a page; see setSearchStrategy */
+	private int searchStrategy = BTKeySearch.LINEAR;
+	/** ascending scans return entries from decoded leaves */
+	private boolean leafCache;
+	/** the results of lookup(), null when it always descends */
+	private BTLookupCache lookupCache;
+
+	/** Told about every index page split, after both pages are unpinned. */
+	interface IndexSplitListener {
+		void indexSplit(PageId left, PageId right, KeyClass separator)
+				throws PinPageException, UnpinPageException, IOException;
+	}
+
+	private IndexSplitListener splitListener;
+
+	/** sizes of the included columns stored in the leaves after the key */
+	private int[] includedSizes = new int[0];
+	private int includedLength;
+	/** the page size recorded in the header page */
+	private int pageSize = MINIBASE_PAGESIZE;
+	/** the included columns of the running insert, null for zeros */
+	private byte[] included;
+
+	void setIndexSplitListener(IndexSplitListener listener) {
+		splitListener = listener;
+	}
+
 	/**
 	 * Access method to data member.
 	 * 
@@ -83,8 +151,12 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private Page pinPage(PageId pageno) throws PinPageException {
 		try {
-			Page page = new Page();
+			Page page = frameView();
 			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			if (trace != null)
+				trace.pin(pageno);
+			if (inOp && versions.isActive() && pageno.pid != headerPageId.pid)
+				versions.beforeWrite(pageno.pid, page.getpage());
 			return page;
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -92,6 +164,32 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
+	/*
+	 * A Page to pin into. BufMgr.pinPage points it at the frame of the page
+	 * and never reads it, so unlike new Page() it has no buffer of its own to
+	 * allocate and drop on every pin.
+	 */
+	static Page frameView() {
+		return new Page(null);
+	}
+
+	/* a pinned page seen as a BTSortedPage, until the next call */
+	private BTSortedPage sortedView(Page page) throws IOException {
+		if (sortedView == null)
+			sortedView = new BTSortedPage(new Page(), headerPage.get_keyType());
+		sortedView.setpage(page.getpage());
+		return sortedView;
+	}
+
+	/* a pinned index page seen as a BTIndexPage, until the next call */
+	private BTIndexPage indexView(Page page) throws IOException,
+			ConstructPageException {
+		if (indexView == null)
+			indexView = new BTIndexPage(new Page(), headerPage.get_keyType());
+		indexView.setpage(page.getpage());
+		return indexView;
+	}
+
 	private void add_file_entry(String fileName, PageId pageno)
 			throws AddFileEntryException {
 		try {
@@ -105,6 +203,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private void unpinPage(PageId pageno) throws UnpinPageException {
 		try {
 			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+			if (trace != null)
+				trace.unpin(pageno, false);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
@@ -113,6 +213,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private void freePage(PageId pageno) throws FreePageException {
 		try {
+			pageChanged(pageno.pid);
 			SystemDefs.JavabaseBM.freePage(pageno);
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -121,6 +222,12 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	}
 
+	/* drop what is kept from a page that changed or was freed */
+	private static void pageChanged(int pid) {
+		BTIndexLayout.invalidate(pid);
+		BTLeafCache.invalidate(pid);
+	}
+
 	private void delete_file_entry(String filename)
 			throws DeleteFileEntryException {
 		try {
@@ -134,13 +241,474 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private void unpinPage(PageId pageno, boolean dirty)
 			throws UnpinPageException {
 		try {
+			if (dirty)
+				pageChanged(pageno.pid);
+			if (dirty && opPages != null)
+				holdForLog(pageno);
 			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			if (trace != null)
+				trace.unpin(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	/*
+	 * Keep a page changed by the running operation pinned, so the buffer
+	 * manager cannot write it before its log record is durable.
+	 */
+	private void holdForLog(PageId pageno) throws Exception {
+		Integer key = Integer.valueOf(pageno.pid);
+		if (!opPages.containsKey(key)) {
+			Page page = frameView();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			opPages.put(key, page);
+		}
+	}
+
+	/*
+	 * A page was allocated by the running operation: log the space map page
+	 * that records it, so recovery does not leave a tree page marked free.
+	 */
+	private void logAllocation(PageId pageno) throws PinPageException {
+		if (opPages == null)
+			return;
+		try {
+			// the space map starts at page 1, one bit per page
+			holdForLog(new PageId(pageno.pid / (MINIBASE_PAGESIZE * 8) + 1));
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	private void beginOp() throws UnpinPageException {
+		inOp = true;
+		if (wal == null)
+			return;
+		releaseHeldPages(false);
+		opPages = new LinkedHashMap<Integer, Page>();
+	}
+
+	/*
+	 * Log the after-images of every page the operation changed, as one record.
+	 */
+	private void endOp() throws IOException, UnpinPageException,
+			PinPageException, IteratorException, ConstructPageException {
+		inOp = false;
+		if (opPages == null)
+			return;
+		LinkedHashMap<Integer, Page> pages = opPages;
+		opPages = null;
+		if (pages.isEmpty())
+			return;
+
+		int[] pids = new int[pages.size()];
+		byte[][] images = new byte[pids.length][];
+		int i = 0;
+		for (Map.Entry<Integer, Page> e : pages.entrySet()) {
+			pids[i] = e.getKey().intValue();
+			images[i++] = e.getValue().getpage();
+		}
+		long start = wal.getAppendLSN();
+		long lsn = wal.append(pids, images, pids.length);
+		heldPages.add(new HeldPages(lsn, pids));
+		heldCount += pids.length;
+		for (i = 0; i < pids.length; i++) {
+			Integer key = Integer.valueOf(pids[i]);
+			if (!dirtyPages.containsKey(key))
+				dirtyPages.put(key, Long.valueOf(start));
+		}
+
+		if (walSync)
+			wal.waitDurable(lsn);
+		releaseHeldPages(heldCount > SystemDefs.JavabaseBM.getNumBuffers()
+				/ MAX_HELD_FRACTION);
+
+		if (checkpointInterval > 0 && ++opsSinceCheckpoint >= checkpointInterval)
+			checkpoint(checkpointWrites);
+	}
+
+	/*
+	 * Unpin the held pages whose log records are durable; with `all' wait for
+	 * the log first.
+	 */
+	private void releaseHeldPages(boolean all) throws UnpinPageException {
+		if (heldPages.isEmpty())
+			return;
+		try {
+			if (all)
+				wal.waitDurable(heldPages.getLast().lsn);
+			long durable = wal.getDurableLSN();
+			while (!heldPages.isEmpty() && heldPages.getFirst().lsn <= durable) {
+				HeldPages held = heldPages.removeFirst();
+				for (int i = 0; i < held.pids.length; i++)
+					SystemDefs.JavabaseBM.unpinPage(new PageId(held.pids[i]),
+							false);
+				heldCount -= held.pids.length;
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
 		}
 	}
 
+	private static String logFilename(String filename) {
+		return SystemDefs.JavabaseDBName + "." + filename + ".wal";
+	}
+
+	/*
+	 * Redo the log left behind by a crash: write every logged page image to
+	 * the database and force it. The log is then replaced by a checkpoint
+	 * holding only the hot set, which is loaded into the buffer pool. Has to
+	 * run before the header page is pinned.
+	 */
+	private static void recover(String filename) throws PinPageException {
+		try {
+			String logname = logFilename(filename);
+			final LinkedHashSet<Integer> redone = new LinkedHashSet<Integer>();
+			final int[][] hot = { new int[0] };
+			int records = BTLog.replay(logname, new BTLog.Redo() {
+				public void checkpoint(int[] dirtyPages, int[] hotPages) {
+					hot[0] = hotPages;
+				}
+
+				public void redo(PageId pageno, byte[] image)
+						throws IOException {
+					try {
+						Page page = frameView();
+						SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+						System.arraycopy(image, 0, page.getpage(), 0,
+								MINIBASE_PAGESIZE);
+						SystemDefs.JavabaseBM.unpinPage(pageno, true);
+						pageChanged(pageno.pid);
+						redone.add(Integer.valueOf(pageno.pid));
+					} catch (IOException e) {
+						throw e;
+					} catch (Exception e) {
+						throw new IOException(e.toString());
+					}
+				}
+			});
+			if (records > 0) {
+				for (Integer pid : redone)
+					SystemDefs.JavabaseBM.flushPage(new PageId(pid.intValue()));
+				syncWrites();
+				RandomAccessFile db = new RandomAccessFile(
+						SystemDefs.JavabaseDBName, "rw");
+				db.getFD().sync();
+				db.close();
+
+				new File(logname).delete();
+				BTLog log = new BTLog(logname);
+				log.checkpoint(0, new int[0], hot[0]);
+				log.close();
+			}
+			prewarm(hot[0]);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "recovery of " + filename
+					+ " failed");
+		}
+	}
+
+	/**
+	 * Log every insert and delete of this file to a write-ahead redo log
+	 * (database name + "." + file name + ".wal"). An operation is made of the
+	 * after-images of all the pages it changed and is redone as a whole the
+	 * next time the file is opened after a crash. Changed pages stay pinned
+	 * until their log record is on disk.
+	 *
+	 * @param waitForDurability
+	 *            true: insert and Delete return only once their log record is
+	 *            on disk; false: records are forced with group commit and
+	 *            flushLog() makes them durable. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void enableWriteAheadLog(boolean waitForDurability)
+			throws IOException {
+		walSync = waitForDurability;
+		if (wal != null)
+			return;
+		// the log starts from a database that is completely on disk; a
+		// flushed page leaves the pool, so the header is pinned again after
+		try {
+			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
+			headerPage = null;
+			try {
+				SystemDefs.JavabaseBM.flushAllPages();
+			} catch (PagePinnedException e) {
+				// raised after the pinned pages have been written too
+			}
+			headerPage = new BTreeHeaderPage(headerPageId);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException("could not flush the buffer pool: " + e);
+		}
+		wal = new BTLog(logFilename(dbname));
+	}
+
+	/*
+	 * Load the hot set into the buffer pool in page order, so the reads are
+	 * sequential. Half of the free frames are left for the work to come.
+	 */
+	private static void prewarm(int[] hot) {
+		int[] pids = hot.clone();
+		Arrays.sort(pids);
+		int budget = SystemDefs.JavabaseBM.getNumUnpinnedBuffers() / 2;
+		int numPages = SystemDefs.JavabaseDB.db_num_pages();
+		AsyncDB async = AsyncDB.current();
+		if (async != null) {
+			// start every read first, the pins below then wait for them
+			for (int i = 0, n = budget; i < pids.length && n > 0; i++) {
+				if (pids[i] <= 0 || pids[i] >= numPages)
+					continue;
+				async.prefetch(new PageId(pids[i]));
+				n--;
+			}
+		}
+		try {
+			for (int i = 0; i < pids.length && budget > 0; i++) {
+				if (pids[i] <= 0 || pids[i] >= numPages)
+					continue;
+				PageId pageno = new PageId(pids[i]);
+				SystemDefs.JavabaseBM.pinPage(pageno, frameView(), false);
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+				budget--;
+			}
+		} catch (Exception e) {
+			// only a cold pool: opening the file goes on
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Take a checkpoint every `interval' inserts and deletes.
+	 *
+	 * @param interval
+	 *            operations between checkpoints, 0 for none. Input parameter.
+	 * @param maxWrites
+	 *            dirty pages written back per checkpoint. Input parameter.
+	 */
+	public void setCheckpointInterval(int interval, int maxWrites) {
+		checkpointInterval = interval;
+		checkpointWrites = maxWrites;
+	}
+
+	/**
+	 * Take a fuzzy checkpoint: write back at most `maxWrites' of the pages
+	 * with the oldest logged changes and log the dirty page table and the hot
+	 * set. The pages still dirty stay in the pool and the log is cut at the
+	 * oldest of their changes, so checkpoints never flush the whole pool.
+	 * The hot set is the header and the index pages, plus the pages of this
+	 * file in the pool when bufmgr.StatBufMgr is installed.
+	 *
+	 * @param maxWrites
+	 *            dirty pages to write back. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 */
+	public void checkpoint(int maxWrites) throws IOException,
+			UnpinPageException, PinPageException, IteratorException,
+			ConstructPageException {
+		if (wal == null)
+			return;
+		opsSinceCheckpoint = 0;
+		releaseHeldPages(true);
+
+		// pages the buffer manager has written back meanwhile are clean
+		StatBufMgr bm = StatBufMgr.current();
+		if (bm != null) {
+			Iterator<Integer> it = dirtyPages.keySet().iterator();
+			while (it.hasNext())
+				if (!bm.isDirty(it.next().intValue()))
+					it.remove();
+		}
+
+		List<Map.Entry<Integer, Long>> oldest = new ArrayList<Map.Entry<Integer, Long>>(
+				dirtyPages.entrySet());
+		Collections.sort(oldest, new Comparator<Map.Entry<Integer, Long>>() {
+			public int compare(Map.Entry<Integer, Long> a,
+					Map.Entry<Integer, Long> b) {
+				return a.getValue().compareTo(b.getValue());
+			}
+		});
+		for (int i = 0; i < oldest.size() && i < maxWrites; i++) {
+			Integer pid = oldest.get(i).getKey();
+			writeBack(new PageId(pid.intValue()));
+			dirtyPages.remove(pid);
+		}
+		// the log is cut below: the writes must be on disk first
+		syncWrites();
+
+		long redoLSN = wal.getAppendLSN();
+		int[] dirty = new int[dirtyPages.size()];
+		int n = 0;
+		for (Map.Entry<Integer, Long> e : dirtyPages.entrySet()) {
+			dirty[n++] = e.getKey().intValue();
+			redoLSN = Math.min(redoLSN, e.getValue().longValue());
+		}
+		wal.checkpoint(redoLSN, dirty, hotPages());
+	}
+
+	/*
+	 * Write a page to disk and leave it in the pool. BufMgr.flushPage() would
+	 * throw it out of the pool, even when it is pinned.
+	 */
+	private static void writeBack(PageId pageno) throws IOException {
+		try {
+			Page page = frameView();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			try {
+				SystemDefs.JavabaseDB.write_page(pageno, page);
+			} finally {
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException("could not write page " + pageno.pid + ": "
+					+ e);
+		}
+	}
+
+	/*
+	 * Write the header page and the pages on the path to the first leaf to
+	 * disk, leaving them in the pool. BTPartitionedFile keeps a mark under
+	 * the smallest key of its router that must be on disk while it is open.
+	 */
+	void writeFirstPath() throws IOException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		writeBack(headerPageId);
+		PageId pageno = new PageId(headerPage.get_rootId().pid);
+		while (pageno.pid != INVALID_PAGE) {
+			Page page = pinPage(pageno);
+			PageId child = new PageId(INVALID_PAGE);
+			if (sortedView(page).getType() == NodeType.INDEX)
+				child = new PageId(indexView(page).getPrevPage().pid);
+			unpinPage(pageno);
+			writeBack(pageno);
+			pageno = child;
+		}
+		syncWrites();
+	}
+
+	/*
+	 * Wait for the background writes of diskmgr.AsyncDB, if it is installed.
+	 */
+	private static void syncWrites() throws IOException {
+		AsyncDB async = AsyncDB.current();
+		if (async == null)
+			return;
+		try {
+			async.sync();
+		} catch (FileIOException e) {
+			e.printStackTrace();
+			throw new IOException("background write failed: " + e);
+		}
+	}
+
+	private int[] hotPages() throws IOException, PinPageException,
+			UnpinPageException, IteratorException, ConstructPageException {
+		int max = SystemDefs.JavabaseBM.getNumBuffers() / 2;
+		LinkedHashSet<Integer> hot = new LinkedHashSet<Integer>();
+		hot.add(Integer.valueOf(headerPageId.pid));
+
+		PageId root = headerPage.get_rootId();
+		if (root.pid != INVALID_PAGE) {
+			// depth of the leaves, from the leftmost path
+			int leafLevel = 0;
+			PageId pageno = new PageId(root.pid);
+			while (true) {
+				BTSortedPage page = new BTSortedPage(pinPage(pageno),
+						headerPage.get_keyType());
+				boolean index = page.getType() == NodeType.INDEX;
+				PageId child = new PageId(page.getPrevPage().pid);
+				unpinPage(pageno);
+				if (!index)
+					break;
+				pageno = child;
+				leafLevel++;
+			}
+			hot.add(Integer.valueOf(root.pid));
+			collectIndexPages(root, 0, leafLevel, hot, max);
+		}
+
+		StatBufMgr bm = StatBufMgr.current();
+		if (bm != null)
+			for (Integer pid : bm.getResidentPages(dbname)) {
+				if (hot.size() >= max)
+					break;
+				hot.add(pid);
+			}
+
+		int[] pids = new int[hot.size()];
+		int n = 0;
+		for (Integer pid : hot)
+			pids[n++] = pid.intValue();
+		return pids;
+	}
+
+	private void collectIndexPages(PageId pageno, int level, int leafLevel,
+			Set<Integer> hot, int max) throws IOException, PinPageException,
+			UnpinPageException, IteratorException, ConstructPageException {
+		if (level >= leafLevel || hot.size() >= max)
+			return;
+		hot.add(Integer.valueOf(pageno.pid));
+		if (level + 1 >= leafLevel)
+			return;
+
+		BTIndexPage indexPage = new BTIndexPage(pinPage(pageno),
+				headerPage.get_keyType());
+		List<PageId> children = new ArrayList<PageId>();
+		children.add(new PageId(indexPage.getPrevPage().pid));
+		RID rid = new RID();
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage
+				.getNext(rid))
+			children.add(((IndexData) entry.data).getData());
+		unpinPage(pageno);
+
+		for (PageId child : children)
+			collectIndexPages(child, level + 1, leafLevel, hot, max);
+	}
+
+	/**
+	 * @return the write-ahead log of this file, null if it is not logged.
+	 */
+	public BTLog getWriteAheadLog() {
+		return wal;
+	}
+
+	/**
+	 * Wait until every insert and delete done so far is durable in the log.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void flushLog() throws IOException, UnpinPageException {
+		if (wal != null)
+			releaseHeldPages(true);
+	}
+
+	private void attributeAccesses() {
+		StatBufMgr bm = StatBufMgr.current();
+		if (bm != null)
+			bm.setCurrentFile(dbname);
+	}
+
 	/**
 	 * BTreeFile class an index file with given filename should already exist;
 	 * this opens it.
@@ -157,10 +725,17 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public BTreeFile(String filename) throws GetFileEntryException,
 			PinPageException, ConstructPageException {
 
+		dbname = new String(filename);
+		attributeAccesses();
 		headerPageId = get_file_entry(filename);
 
+		recover(filename);
 		headerPage = new BTreeHeaderPage(headerPageId);
-		dbname = new String(filename);
+		try {
+			readIncludedSizes();
+		} catch (IOException e) {
+			throw new ConstructPageException(e, "");
+		}
 		/*
 		 * 
 		 * - headerPageId is the PageId of this BTreeFile's header page; -
@@ -193,10 +768,47 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public BTreeFile(String filename, int keytype, int keysize,
 			int delete_fashion) throws GetFileEntryException,
 			ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, new int[0]);
+	}
+
+	/**
+	 * if index file exists, open it; else create it as a covering index:
+	 * every leaf entry also stores fixed-size included columns, which
+	 * BTCoveringScan returns without a heap file read. An existing file
+	 * keeps the columns it was created with.
+	 *
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param includedSizes
+	 *            the size in bytes of each included column. Input
+	 *            parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize,
+			int delete_fashion, int[] includedSizes)
+			throws GetFileEntryException, ConstructPageException, IOException,
+			AddFileEntryException {
 
+		dbname = new String(filename);
+		attributeAccesses();
 		headerPageId = get_file_entry(filename);
 		if (headerPageId == null) // file not exist
 		{
+			new File(logFilename(filename)).delete(); // stale log
 			headerPage = new BTreeHeaderPage();
 			headerPageId = headerPage.getPageId();
 			add_file_entry(filename, headerPageId);
@@ -206,56 +818,289 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPage.set_maxKeySize(keysize);
 			headerPage.set_deleteFashion(delete_fashion);
 			headerPage.setType(NodeType.BTHEAD);
+			// slot 0 of the header is free; the fields use slots 1-3
+			byte[] record = new byte[4 * (includedSizes.length + 2)];
+			Convert.setIntValue(includedSizes.length, 0, record);
+			for (int i = 0; i < includedSizes.length; i++)
+				Convert.setIntValue(includedSizes[i], 4 * (i + 1), record);
+			Convert.setIntValue(MINIBASE_PAGESIZE,
+					4 * (includedSizes.length + 1), record);
+			headerPage.insertRecord(record);
 		} else {
+			try {
+				recover(filename);
+			} catch (PinPageException e) {
+				throw new ConstructPageException(e, "");
+			}
 			headerPage = new BTreeHeaderPage(headerPageId);
 		}
+		readIncludedSizes();
+	}
 
-		dbname = new String(filename);
+	/*
+	 * Read the header record of slot 0: the number of included columns, the
+	 * size of each, then the page size the file was built with. Files older
+	 * than the record have the only page size there was.
+	 */
+	private void readIncludedSizes() throws IOException,
+			ConstructPageException {
+		includedSizes = new int[0];
+		includedLength = 0;
+		pageSize = MINIBASE_PAGESIZE;
+		if (headerPage.getSlotCnt() == 0)
+			return;
+		byte[] data = headerPage.getHFpageArray();
+		int offset = headerPage.getSlotOffset(0);
+		includedSizes = new int[Convert.getIntValue(offset, data)];
+		for (int i = 0; i < includedSizes.length; i++) {
+			includedSizes[i] = Convert.getIntValue(offset + 4 * (i + 1), data);
+			includedLength += includedSizes[i];
+		}
+		if (headerPage.getSlotLength(0) > 4 * (includedSizes.length + 1))
+			pageSize = Convert.getIntValue(offset + 4
+					* (includedSizes.length + 1), data);
+		if (pageSize != MINIBASE_PAGESIZE) {
+			try {
+				unpinPage(headerPageId);
+			} catch (UnpinPageException e) {
+				throw new ConstructPageException(e, "");
+			}
+			throw new ConstructPageException(null, dbname + " has pages of "
+					+ pageSize + " bytes, this build has pages of "
+					+ MINIBASE_PAGESIZE);
+		}
+	}
 
+	/**
+	 * @return the size in bytes of the pages of this index, recorded in its
+	 *         header page when the file was created
+	 */
+	public int getPageSize() {
+		return pageSize;
 	}
 
 	/**
-	 * Close the B+ tree file. Unpin header page.
+	 * @return the sizes of the included columns; empty if this is not a
+	 *         covering index.
+	 */
+	public int[] getIncludedSizes() {
+		return includedSizes.clone();
+	}
+
+	/**
+	 * Choose how inserts, deletes and scans find a key in the pages on their
+	 * way down the tree: BTKeySearch.LINEAR, the default, BINARY,
+	 * INTERPOLATION or EYTZINGER. Only trees with integer keys use it; trees
+	 * with string keys always search linearly.
 	 *
-	 * @exception PageUnpinnedException
-	 *                error from the lower layer
-	 * @exception InvalidFrameNumberException
-	 *                error from the lower layer
-	 * @exception HashEntryNotFoundException
-	 *                error from the lower layer
-	 * @exception ReplacerException
-	 *                error from the lower layer
+	 * @param strategy
+	 *            one of the BTKeySearch strategies. Input parameter.
 	 */
-	public void close() throws PageUnpinnedException,
-			InvalidFrameNumberException, HashEntryNotFoundException,
-			ReplacerException {
-		if (headerPage != null) {
-			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
-			headerPage = null;
-		}
+	public void setSearchStrategy(int strategy) {
+		if (strategy < BTKeySearch.LINEAR || strategy > BTKeySearch.EYTZINGER)
+			throw new IllegalArgumentException("no search strategy " + strategy);
+		searchStrategy = strategy;
+	}
+
+	/** @return the BTKeySearch strategy of the descents */
+	public int getSearchStrategy() {
+		return searchStrategy;
 	}
 
 	/**
-	 * Destroy entire B+ tree file.
+	 * Turn the leaf cache on or off. With it on, new_scan(lo_key, hi_key)
+	 * returns a BTCachedScan, which decodes a leaf once into arrays of keys
+	 * and rids and returns the entries of the leaf from there while the leaf
+	 * is unchanged, see BTLeafCache. A covering index keeps using its own
+	 * scan.
 	 *
-	 * @exception IOException
-	 *                error from the lower layer
-	 * @exception IteratorException
-	 *                iterator error
-	 * @exception UnpinPageException
-	 *                error when unpin a page
-	 * @exception FreePageException
-	 *                error when free a page
-	 * @exception DeleteFileEntryException
-	 *                failed when delete a file from DM
-	 * @exception ConstructPageException
-	 *                error in BT page constructor
-	 * @exception PinPageException
-	 *                failed when pin a page
+	 * @param on
+	 *            whether scans use decoded leaves. Input parameter.
 	 */
-	public void destroyFile() throws IOException, IteratorException,
+	public void setLeafCache(boolean on) {
+		leafCache = on;
+	}
+
+	/** @return whether scans use decoded leaves */
+	public boolean getLeafCache() {
+		return leafCache;
+	}
+
+	/**
+	 * Keep the results of lookup() for up to `maxKeys' keys, see
+	 * BTLookupCache; 0 turns the cache off. Inserts and deletes drop the
+	 * results of their keys.
+	 *
+	 * @param maxKeys
+	 *            the most keys whose results are kept. Input parameter.
+	 */
+	public void enableLookupCache(int maxKeys) {
+		lookupCache = maxKeys > 0 ? new BTLookupCache(maxKeys) : null;
+	}
+
+	/** @return the lookup cache with its hit counts, null if it is off */
+	public BTLookupCache getLookupCache() {
+		return lookupCache;
+	}
+
+	/**
+	 * Find the rids of a key: a scan from key to key, or a hash probe when
+	 * the lookup cache is on and has the key.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @return the rids of the entries with this key, in rid order
+	 * @exception IteratorException
+	 *                error from the lower layer
+	 */
+	public List<RID> lookup(KeyClass key) throws IteratorException {
+		Object cached = null;
+		if (lookupCache != null) {
+			cached = BTLookupCache.keyOf(key);
+			List<RID> rids = lookupCache.get(cached);
+			if (rids != null)
+				return rids;
+		}
+		List<RID> rids = new ArrayList<RID>();
+		try {
+			BTFileScan scan = new_scan(key, key);
+			try {
+				KeyDataEntry e;
+				while ((e = scan.get_next()) != null)
+					rids.add(((LeafData) e.data).getData());
+			} finally {
+				scan.DestroyBTreeFileScan();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+		if (lookupCache != null)
+			lookupCache.put(cached, rids);
+		return rids;
+	}
+
+	/* drop the cached lookup of a key that changes */
+	private void forget(KeyClass key) {
+		if (lookupCache != null)
+			lookupCache.invalidate(BTLookupCache.keyOf(key));
+	}
+
+	/* whether the descents search the slots for `key' through BTKeySearch */
+	private boolean searchesSlots(KeyClass key) throws IOException {
+		return searchStrategy != BTKeySearch.LINEAR
+				&& key instanceof IntegerKey
+				&& headerPage.get_keyType() == AttrType.attrInteger;
+	}
+
+	/* the number of entries of an index page with keys before `key' */
+	private int searchIndex(BTIndexPage page, int key, boolean inclusive)
+			throws IOException {
+		if (searchStrategy == BTKeySearch.EYTZINGER)
+			return BTIndexLayout.of(page).search(key, inclusive);
+		return BTKeySearch.search(page, key, inclusive, searchStrategy);
+	}
+
+	/* the child of an index page left of its first `count' entries */
+	private PageId childOf(BTIndexPage page, int count) throws IOException {
+		if (searchStrategy == BTKeySearch.EYTZINGER)
+			return new PageId(BTIndexLayout.of(page).child(count));
+		if (count == 0)
+			return new PageId(page.getPrevPage().pid);
+		int end = page.getSlotOffset(count - 1) + page.getSlotLength(count - 1);
+		return new PageId(Convert.getIntValue(end - 4, page.getHFpageArray()));
+	}
+
+	/* the entry in `slot' of an index page, null past the last; rid is set to it */
+	private KeyDataEntry indexEntry(BTIndexPage page, int slot, RID rid)
+			throws IteratorException {
+		try {
+			rid.pageNo = page.getCurPage();
+			rid.slotNo = slot;
+			if (slot >= page.getSlotCnt())
+				return null;
+			return BT.getEntryFromBytes(page.getHFpageArray(), page
+					.getSlotOffset(slot), page.getSlotLength(slot), headerPage
+					.get_keyType(), NodeType.INDEX);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Close the B+ tree file. Unpin header page.
+	 *
+	 * @exception PageUnpinnedException
+	 *                error from the lower layer
+	 * @exception InvalidFrameNumberException
+	 *                error from the lower layer
+	 * @exception HashEntryNotFoundException
+	 *                error from the lower layer
+	 * @exception ReplacerException
+	 *                error from the lower layer
+	 */
+	public void close() throws PageUnpinnedException,
+			InvalidFrameNumberException, HashEntryNotFoundException,
+			ReplacerException {
+		if (writeBuffer != null) {
+			try {
+				flushWriteBuffer();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		if (wal != null) {
+			try {
+				// everything is written back; the log keeps just the hot set
+				checkpoint(Integer.MAX_VALUE);
+				wal.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			wal = null;
+		}
+		if (headerPage != null) {
+			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
+			headerPage = null;
+		}
+	}
+
+	/**
+	 * Destroy entire B+ tree file.
+	 *
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception DeleteFileEntryException
+	 *                failed when delete a file from DM
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                failed when pin a page
+	 */
+	public void destroyFile() throws IOException, IteratorException,
 			UnpinPageException, FreePageException, DeleteFileEntryException,
 			ConstructPageException, PinPageException {
+		if (writeBuffer != null)
+			writeBuffer.clear();
+		if (lookupCache != null)
+			lookupCache.clear();
+		if (wal != null) {
+			try {
+				releaseHeldPages(true);
+			} catch (UnpinPageException e) {
+				throw new FreePageException(e, "");
+			}
+			wal.close();
+			wal = null;
+			new File(logFilename(dbname)).delete();
+		}
 		if (headerPage != null) {
 			PageId pgId = headerPage.get_rootId();
 			if (pgId.pid != INVALID_PAGE)
@@ -294,6 +1139,55 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	}
 
+	/*
+	 * The pages of BTBulkLoader go through these, one load being one
+	 * operation. A page built in memory is copied into the frame of its page
+	 * number and unpinned dirty, so a frame left in the pool from an earlier
+	 * page of that number is replaced. The write-ahead log, if on, logs the
+	 * page like one changed by an insert, a batch of pages at a time since
+	 * each stays pinned until it is logged; without a log the page is
+	 * written to disk at once, as the loader used to. endLoad sets the root
+	 * through the header page as an insert does.
+	 */
+	void beginLoad() throws UnpinPageException {
+		beginOp();
+	}
+
+	void writeLoaded(PageId pageno, Page image) throws IOException,
+			PinPageException, UnpinPageException, IteratorException,
+			ConstructPageException {
+		try {
+			Page page = frameView();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, true/* emptyPage */);
+			System.arraycopy(image.getpage(), 0, page.getpage(), 0,
+					MINIBASE_PAGESIZE);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+		unpinPage(pageno, true /* = DIRTY */);
+		logAllocation(pageno);
+		if (opPages == null) {
+			try {
+				SystemDefs.JavabaseBM.flushPage(pageno);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new IOException("could not write page " + pageno.pid
+						+ ": " + e);
+			}
+		} else if (opPages.size() >= SystemDefs.JavabaseBM.getNumBuffers()
+				/ MAX_HELD_FRACTION) {
+			endOp();
+			beginOp();
+		}
+	}
+
+	void endLoad(PageId root) throws IOException, PinPageException,
+			UnpinPageException, IteratorException, ConstructPageException {
+		updateHeader(root);
+		endOp();
+	}
+
 	private void updateHeader(PageId newRoot) throws IOException,
 			PinPageException, UnpinPageException {
 
@@ -352,6 +1246,302 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *                error when insert in index page
 	 */
 	public void insert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		attributeAccesses();
+		forget(key);
+		if (writeBuffer != null) {
+			checkKey(key);
+			writeBuffer.insert(key, rid);
+			if (writeBuffer.size() >= writeBufferLimit)
+				flushWriteBuffer();
+			return;
+		}
+		applyInsert(key, rid);
+	}
+
+	/**
+	 * insert record with the given key and rid into a covering index, with
+	 * the values of its included columns. Covering inserts are not buffered.
+	 *
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @param columns
+	 *            the included columns, one after the other. Input parameter.
+	 * @exception InsertException
+	 *                the columns do not match the included column sizes
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 */
+	public void insert(KeyClass key, RID rid, byte[] columns)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		if (columns == null || columns.length != includedLength)
+			throw new InsertException(null, "included columns do not match");
+		attributeAccesses();
+		checkKey(key);
+		forget(key);
+		applyInsert(key, rid, columns);
+	}
+
+	void applyInsert(KeyClass key, RID rid) throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		forget(key);
+		applyInsert(key, rid, null);
+	}
+
+	private void applyInsert(KeyClass key, RID rid, byte[] columns)
+			throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException,
+			IndexSearchException, IteratorException, LeafDeleteException,
+			InsertException, IOException {
+		beginOp();
+		included = columns;
+		try {
+			insertEntry(key, rid);
+		} finally {
+			included = null;
+			endOp();
+		}
+	}
+
+	/*
+	 * Insert <key, rid> into a leaf. In a covering index the included columns
+	 * of the running insert go between the key and the rid, where the leaf
+	 * page code does not look.
+	 */
+	private void insertLeafRecord(BTLeafPage page, KeyClass key, RID rid)
+			throws LeafInsertRecException {
+		if (includedLength == 0) {
+			page.insertRecord(key, rid);
+			return;
+		}
+		try {
+			byte[] entry = BT.getBytesFromEntry(new KeyDataEntry(key, rid));
+			int keyLength = entry.length - 8;
+			byte[] record = new byte[entry.length + includedLength];
+			System.arraycopy(entry, 0, record, 0, keyLength);
+			if (included != null)
+				System.arraycopy(included, 0, record, keyLength, includedLength);
+			System.arraycopy(entry, keyLength, record, keyLength
+					+ includedLength, 8);
+			insertSorted(page, record);
+		} catch (LeafInsertRecException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafInsertRecException(e, "");
+		}
+	}
+
+	/*
+	 * Insert a leaf record as it is and move its slot into key order.
+	 */
+	private void insertSorted(BTLeafPage page, byte[] record)
+			throws LeafInsertRecException {
+		try {
+			RID rid = page.insertRecord(record);
+			if (rid == null)
+				throw new LeafInsertRecException(null, "leaf page is full");
+			KeyClass key = leafKey(page, rid.slotNo);
+			for (int i = rid.slotNo; i > 0
+					&& BT.keyCompare(leafKey(page, i - 1), key) > 0; i--) {
+				int length = page.getSlotLength(i);
+				int offset = page.getSlotOffset(i);
+				page.setSlot(i, page.getSlotLength(i - 1), page
+						.getSlotOffset(i - 1));
+				page.setSlot(i - 1, length, offset);
+			}
+		} catch (LeafInsertRecException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new LeafInsertRecException(e, "");
+		}
+	}
+
+	private KeyClass leafKey(HFPage page, int slot) throws IOException,
+			KeyNotMatchException, NodeNotMatchException, ConvertException {
+		return BT.getEntryFromBytes(page.getHFpageArray(), page
+				.getSlotOffset(slot), page.getSlotLength(slot), headerPage
+				.get_keyType(), NodeType.LEAF).key;
+	}
+
+	boolean applyDelete(KeyClass key, RID rid) throws LeafDeleteException,
+			KeyNotMatchException, PinPageException, ConstructPageException,
+			IOException, UnpinPageException, IndexSearchException,
+			IteratorException {
+		forget(key);
+		beginOp();
+		try {
+			return NaiveDelete(key, rid);
+		} finally {
+			endOp();
+		}
+	}
+
+	void checkKey(KeyClass key) throws KeyNotMatchException,
+			KeyTooLongException, IOException {
+		if ((key instanceof IntegerKey) != (headerPage.get_keyType() == AttrType.attrInteger))
+			throw new KeyNotMatchException(null, "");
+		if (BT.getKeyLength(key) > headerPage.get_maxKeySize())
+			throw new KeyTooLongException(null, "");
+	}
+
+	/**
+	 * Buffer inserts and deletes in memory and merge them into the tree in
+	 * key order, `maxEntries' <key, rid> pairs at a time. The buffer is
+	 * merged by the insert that fills it; deletes, which may come from an
+	 * open scan, only add to it. Scans merge the buffer with the tree.
+	 * Buffered changes are not in the write-ahead log until they are merged;
+	 * flushWriteBuffer() merges them at once.
+	 *
+	 * @param maxEntries
+	 *            pairs buffered before they are merged. Input parameter.
+	 */
+	public void enableWriteBuffer(int maxEntries) {
+		if (includedLength > 0)
+			return; // the buffer keeps no included columns
+		if (writeBuffer == null)
+			writeBuffer = new BTDeltaBuffer();
+		writeBufferLimit = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * @return number of <key, rid> pairs in the write buffer.
+	 */
+	public int getWriteBufferSize() {
+		return writeBuffer == null ? 0 : writeBuffer.size();
+	}
+
+	/**
+	 * Merge the write buffer into the tree, in key order.
+	 *
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page
+	 */
+	public void flushWriteBuffer() throws KeyTooLongException,
+			KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException,
+			UnpinPageException, PinPageException, NodeNotMatchException,
+			ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		if (writeBuffer == null)
+			return;
+		attributeAccesses();
+		for (Map.Entry<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta> e : writeBuffer
+				.range(null, null).entrySet()) {
+			BTDeltaBuffer.DeltaKey k = e.getKey();
+			BTDeltaBuffer.Delta d = e.getValue();
+			if (d.deleted)
+				applyDelete(k.key, k.rid);
+			for (int i = 0; i < d.inserts; i++)
+				applyInsert(k.key, k.rid);
+			writeBuffer.remove(k);
+		}
+	}
+
+	/*
+	 * Whether the tree (not the write buffer) holds <key, rid>.
+	 */
+	boolean inTree(KeyClass key, RID rid) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		RID curRid = new RID();
+		BTLeafPage leafPage = findRunStart(key, curRid);
+		if (leafPage == null)
+			return false;
+		KeyDataEntry entry = leafPage.getCurrent(curRid);
+		while (true) {
+			for (; entry != null; entry = leafPage.getNext(curRid)) {
+				if (BT.keyCompare(entry.key, key) > 0
+						|| ((LeafData) entry.data).getData().equals(rid)) {
+					unpinPage(leafPage.getCurPage());
+					return BT.keyCompare(entry.key, key) == 0;
+				}
+			}
+			PageId next = new PageId(leafPage.getNextPage().pid);
+			unpinPage(leafPage.getCurPage());
+			if (next.pid == INVALID_PAGE)
+				return false;
+			leafPage = new BTLeafPage(pinPage(next), headerPage.get_keyType());
+			entry = leafPage.getFirst(curRid);
+		}
+	}
+
+	private void insertEntry(KeyClass key, RID rid) throws KeyTooLongException,
 			KeyNotMatchException, LeafInsertRecException,
 			IndexInsertRecException, ConstructPageException,
 			UnpinPageException, PinPageException, NodeNotMatchException,
@@ -368,8 +1558,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			newRootPage.setNextPage(new PageId(INVALID_PAGE));
 			newRootPage.setPrevPage(new PageId(INVALID_PAGE));
 			//inserting the records into the root and unpinning the page
-			newRootPage.insertRecord(key,rid);
+			insertLeafRecord(newRootPage,key,rid);
 			PageId newRootPageID=newRootPage.getCurPage();
+			logAllocation(newRootPageID);
 			unpinPage(newRootPageID,true);
 			updateHeader(newRootPageID);
 		}
@@ -388,6 +1579,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				//set the pointers of the new index page
 				newIndexPage.setPrevPage(headerPage.get_rootId());
 				PageId newIndexPageID=newIndexPage.getCurPage();
+				logAllocation(newIndexPageID);
 				unpinPage(newIndexPageID,true);
 				updateHeader(newIndexPageID);
 			}
@@ -404,20 +1596,25 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			KeyNotMatchException, NodeNotMatchException, InsertException
 
 	{
-		Page newPage=new Page();
-		//create a BTSorted Page to check what is the tpe of the Input Page
-		BTSortedPage currentPage=new BTSortedPage(currentPageId,headerPage.get_keyType());
+		//check the type of the Input Page through the descent view
+		//(pinPage also keeps a copy for snapshot scans that still need it)
+		Page page=pinPage(currentPageId);
+		short type=sortedView(page).getType();
+		//get the next page pointed by the index page according to the given key
+		//(copied: the view may return its own prevPage object)
+		PageId nextPageId=null;
+		if(type==NodeType.INDEX && searchesSlots(key))
+			nextPageId=childOf(indexView(page),searchIndex(indexView(page),
+					((IntegerKey)key).getKey(),true));
+		else if(type==NodeType.INDEX)
+			nextPageId=new PageId(indexView(page).getPageNoByKey(key).pid);
+		//the typed page below pins the page again
+		unpinPage(currentPageId);
 		KeyDataEntry upEntry=new KeyDataEntry(key,currentPageId) ;
-		short type=11;
 		//check the type of the current page
-		if(currentPage.getType()==11)
+		if(type==NodeType.INDEX)
 		{
-		//if it is am index page create an index page and pin it with the current page id
-			BTIndexPage currentIndexPage=new BTIndexPage(currentPageId,headerPage.get_keyType());
-			PageId currentIndexPageId=currentIndexPage.getCurPage();
-			//get the next page pointed by te index page according to the given key
-			PageId nextPageId=currentIndexPage.getPageNoByKey(key);
-			unpinPage(currentIndexPageId,true);
+			PageId currentIndexPageId=currentPageId;
 			//recursively call the insert method with the next page id 
 			upEntry=_insert(key,rid,nextPageId);
 			//if it returns null,no spit occured 
@@ -427,7 +1624,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				return null;
 			}
 			//else create a index page and pin it with te current index page id
-			currentIndexPage=new BTIndexPage(pinPage(currentIndexPageId),headerPage.get_keyType());
+			BTIndexPage currentIndexPage=new BTIndexPage(pinPage(currentIndexPageId),headerPage.get_keyType());
 			//check if space is available in the index page
 			if(currentIndexPage.available_space()>=BT.getKeyDataLength(upEntry.key,NodeType.INDEX))
 			{
@@ -442,6 +1639,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				BTIndexPage newIndexPage=new BTIndexPage(headerPage.get_keyType());
 				//get he page id of the new index page
 				PageId newIndexPageId=newIndexPage.getCurPage();
+				logAllocation(newIndexPageId);
 				//create an KeyDataEntry
 				KeyDataEntry indextmpEntry;
 				//create an KeyDataEntry to undo last key
@@ -480,6 +1678,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				{
 					currentIndexPage.insertKey(upEntry.key,((IndexData)upEntry.data).getData());
 				}
+				if (trace != null)
+					trace.split(currentIndexPageId, newIndexPageId);
 				//unpin the current index page
 				unpinPage(currentIndexPageId,true);
 				upEntry=newIndexPage.getFirst(indexdelRID);
@@ -488,21 +1688,25 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			    //unpin the new index page
 				unpinPage(newIndexPageId,true);
 				((IndexData)upEntry.data).setData(newIndexPageId);
+				if(splitListener!=null)
+				{
+					splitListener.indexSplit(currentIndexPageId,newIndexPageId,upEntry.key);
+				}
 				return upEntry;
 			}	
 		
 			
 		}
-		else if (currentPage.getType()==12)
+		else if (type==NodeType.LEAF)
 		{
 		//if the current page is of type Leaf Page
 		//create a new current leaf page and pin it with current page id
 			BTLeafPage currentLeafPage=new BTLeafPage(currentPageId,headerPage.get_keyType());
 			PageId currentLeafPageId=currentLeafPage.getCurPage();
 			//check if current leaf page has space availble for insertion
-			if(currentLeafPage.available_space()>=BT.getKeyDataLength(upEntry.key,NodeType.LEAF))
+			if(currentLeafPage.available_space()>=BT.getKeyDataLength(upEntry.key,NodeType.LEAF)+includedLength)
 			{
-				currentLeafPage.insertRecord(key,rid);
+				insertLeafRecord(currentLeafPage,key,rid);
 				unpinPage(currentLeafPageId,true);
 				return null;
 			}
@@ -513,58 +1717,49 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				BTLeafPage newLeafPage=new BTLeafPage(headerPage.get_keyType());
 				//set the pointers of  both the new leaf page and the current leaf page
 				PageId newLeafPageID=newLeafPage.getCurPage();
-				newLeafPage.setNextPage(new PageId(INVALID_PAGE));
+				logAllocation(newLeafPageID);
+				//the new page goes between the current page and its old right sibling
+				PageId oldNextPageId=new PageId(currentLeafPage.getNextPage().pid);
+				newLeafPage.setNextPage(oldNextPageId);
 				newLeafPage.setPrevPage(currentLeafPageId);
 				currentLeafPage.setNextPage(newLeafPageID);
-				//create a keydataentry 
+				if(oldNextPageId.pid!=INVALID_PAGE)
+				{
+					BTLeafPage oldNextPage=new BTLeafPage(pinPage(oldNextPageId),headerPage.get_keyType());
+					oldNextPage.setPrevPage(newLeafPageID);
+					unpinPage(oldNextPageId,true);
+				}
+				//move the second half of the records, as they are, to the new leaf page
+				//(in a covering index they carry included columns)
 				KeyDataEntry tmpEntry;
-				//create a keydata entry to undo the last record
-				KeyDataEntry undoEntry = null;
-				KeyDataEntry delEntry;
 				RID delRID=new RID();
-				int pagSize=newLeafPage.available_space();
-				int recordSize=BT.getKeyDataLength(upEntry.key,NodeType.LEAF);
-				int recordNumber=62;
-				int x=0;
-				int y=0;
-				//copy second half of current leaf page records into new leaf page
-				for(tmpEntry=currentLeafPage.getFirst(delRID);tmpEntry!=null;tmpEntry=currentLeafPage.getNext(delRID))
+				int records=currentLeafPage.getSlotCnt();
+				int half=records/2;
+				byte[] data=currentLeafPage.getHFpageArray();
+				for(int i=half;i<records;i++)
 				{
-                  if(x>=((recordNumber)/2))
-                  {   
-                	  newLeafPage.insertRecord(tmpEntry.key,((LeafData)tmpEntry.data).getData());
-                	y=y+1;
-                  }
-                  else
-                  {
-                	  undoEntry=tmpEntry;
-                  }
-                  x=x+1;
+					byte[] record=new byte[currentLeafPage.getSlotLength(i)];
+					System.arraycopy(data,currentLeafPage.getSlotOffset(i),record,0,record.length);
+					insertSorted(newLeafPage,record);
 				}
-				tmpEntry=currentLeafPage.getFirst(delRID);
-				//delete the second half of the records from current leaf page
-				for(int i=1;i<=x;i++)
+				//the last key that stays in the current leaf page
+				KeyClass lastKey=leafKey(currentLeafPage,half-1);
+				//delete the second half of the records from current leaf page, last first
+				for(int i=records-1;i>=half;i--)
 				{
-					tmpEntry=currentLeafPage.getCurrent(delRID);
-					if(i>(x/2))
-					{
-						currentLeafPage.deleteSortedRecord(delRID);
-						tmpEntry=currentLeafPage.getCurrent(delRID);
-					}
-					else
-					{
-						tmpEntry=currentLeafPage.getNext(delRID);
-					}
+					currentLeafPage.deleteSortedRecord(new RID(currentLeafPageId,i));
 				}
-				//compare the keys of key and undoentry to decide in which leaf page the new record has to be inserted
-				if(BT.keyCompare(key,undoEntry.key)>0)
+				//compare the keys of key and the last staying key to decide in which leaf page the new record has to be inserted
+				if(BT.keyCompare(key,lastKey)>0)
 				{
-					newLeafPage.insertRecord(key,rid);
+					insertLeafRecord(newLeafPage,key,rid);
 				}
 				else
 				{
-					currentLeafPage.insertRecord(key,rid);
+					insertLeafRecord(currentLeafPage,key,rid);
 				}
+				if (trace != null)
+					trace.split(currentLeafPageId, newLeafPageID);
 				//unpin the current leaf page
 				unpinPage(currentLeafPageId,true);
 				tmpEntry=newLeafPage.getFirst(delRID);
@@ -592,7 +1787,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *            the key in pair <key, rid>. Input Parameter.
 	 * @param rid
 	 *            the rid in pair <key, rid>. Input Parameter.
-	 * @return true if deleted. false if no such record.
+	 * @return true if deleted. false if no such record. With the write
+	 *         buffer on the tree is not read and the contract is weaker: the
+	 *         delete is buffered, and true is returned unless the buffer
+	 *         shows the pair is gone already, also for a pair that was never
+	 *         in the index; such a delete is dropped when the buffer is
+	 *         merged. A buffered delete never merges the buffer, so it can be
+	 *         made from an open scan.
 	 * @exception DeleteFashionException
 	 *                neither full delete nor naive delete
 	 * @exception LeafRedistributeException
@@ -637,10 +1838,18 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IndexFullDeleteException, LeafDeleteException, IteratorException,
 			ConstructPageException, DeleteRecException, IndexSearchException,
 			IOException {
-		if (headerPage.get_deleteFashion() == DeleteFashion.NAIVE_DELETE)
-			return NaiveDelete(key, rid);
-		else
+		attributeAccesses();
+		if (headerPage.get_deleteFashion() != DeleteFashion.NAIVE_DELETE)
 			throw new DeleteFashionException(null, "");
+		forget(key);
+		if (writeBuffer != null)
+			return writeBuffer.delete(key, rid);
+		beginOp();
+		try {
+			return NaiveDelete(key, rid);
+		} finally {
+			endOp();
+		}
 	}
 
 	/*
@@ -667,6 +1876,24 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	BTLeafPage findRunStart(KeyClass lo_key, RID startrid) throws IOException,
 			IteratorException, KeyNotMatchException, ConstructPageException,
 			PinPageException, UnpinPageException {
+		return findRunStart(lo_key, startrid, false, null);
+	}
+
+	/*
+	 * findRunStart for a range scan up to `hi_key' (null for the end): when
+	 * diskmgr.AsyncDB is installed, the reads of the next READ_AHEAD pages
+	 * of the range are started at every index level on the way down.
+	 */
+	BTLeafPage findRunStart(KeyClass lo_key, KeyClass hi_key, RID startrid)
+			throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		return findRunStart(lo_key, startrid, true, hi_key);
+	}
+
+	private BTLeafPage findRunStart(KeyClass lo_key, RID startrid,
+			boolean readAhead, KeyClass hi_key) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
 		BTLeafPage pageLeaf;
 		BTIndexPage pageIndex;
 		Page page;
@@ -687,38 +1914,47 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 
 		page = pinPage(pageno);
-		sortPage = new BTSortedPage(page, headerPage.get_keyType());
+		sortPage = sortedView(page);
 
-		if (trace != null) {
-			trace.writeBytes("VISIT node " + pageno + lineSep);
-			trace.flush();
-		}
+		if (trace != null)
+			trace.visit(pageno);
 
 		// ASSERTION
 		// - pageno and sortPage is the root of the btree
 		// - pageno and sortPage valid and pinned
 
-		while (sortPage.getType() == NodeType.INDEX) {
-			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null
-					&& BT.keyCompare(curEntry.key, lo_key) < 0) {
+		boolean search = lo_key != null && searchesSlots(lo_key);
 
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
+		while (sortPage.getType() == NodeType.INDEX) {
+			pageIndex = indexView(page);
+			if (search) {
+				int count = searchIndex(pageIndex, ((IntegerKey) lo_key)
+						.getKey(), false);
+				prevpageno = childOf(pageIndex, count);
+				// read-ahead goes on from the entry after the child
+				curEntry = readAhead ? indexEntry(pageIndex, count, startrid)
+						: null;
+			} else {
+				prevpageno = new PageId(pageIndex.getPrevPage().pid);
+				curEntry = pageIndex.getFirst(startrid);
+				while (curEntry != null && lo_key != null
+						&& BT.keyCompare(curEntry.key, lo_key) < 0) {
+
+					prevpageno = ((IndexData) curEntry.data).getData();
+					curEntry = pageIndex.getNext(startrid);
+				}
 			}
+			if (readAhead && AsyncDB.current() != null)
+				readAhead(pageIndex, curEntry, hi_key, startrid);
 
 			unpinPage(pageno);
 
 			pageno = prevpageno;
 			page = pinPage(pageno);
-			sortPage = new BTSortedPage(page, headerPage.get_keyType());
+			sortPage = sortedView(page);
 
-			if (trace != null) {
-				trace.writeBytes("VISIT node " + pageno + lineSep);
-				trace.flush();
-			}
+			if (trace != null)
+				trace.visit(pageno);
 
 		}
 
@@ -750,6 +1986,16 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			// scan will unpin it when done
 		}
 
+		if (search) {
+			// start the walk below at the last key < lo_key of this leaf
+			int count = BTKeySearch.search(pageLeaf, ((IntegerKey) lo_key)
+					.getKey(), false, searchStrategy);
+			if (count > 0) {
+				startrid.slotNo = count - 1;
+				curEntry = pageLeaf.getCurrent(startrid);
+			}
+		}
+
 		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
 			curEntry = pageLeaf.getNext(startrid);
 			while (curEntry == null) { // have to go right
@@ -771,6 +2017,97 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return pageLeaf;
 	}
 
+	/*
+	 * Prefetch the children right of the one the descent goes to, from
+	 * `curEntry' on, while their keys are <= hi_key.
+	 */
+	private static void readAhead(BTIndexPage pageIndex, KeyDataEntry curEntry,
+			KeyClass hi_key, RID rid) throws IOException, IteratorException,
+			KeyNotMatchException {
+		AsyncDB async = AsyncDB.current();
+		for (int n = 0; n < READ_AHEAD && curEntry != null; n++) {
+			if (hi_key != null && BT.keyCompare(curEntry.key, hi_key) > 0)
+				break;
+			async.prefetch(((IndexData) curEntry.data).getData());
+			curEntry = pageIndex.getNext(rid);
+		}
+	}
+
+	/*
+	 * find the right-most occurrence of a key <= `hi_key', going all the way
+	 * right if hi_key is null. Keys equal to a separator are right of it, so
+	 * the index pages are searched for the last entry <= hi_key; the leaf it
+	 * leads to, or one left of it, holds the entry.
+	 * 
+	 * @return the pinned BTLeafPage of the entry, whose slot is returned in
+	 * endrid. null if every key is greater.
+	 */
+	BTLeafPage findRunEnd(KeyClass hi_key, RID endrid) throws IOException,
+			IteratorException, KeyNotMatchException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		PageId pageno = headerPage.get_rootId();
+		if (pageno.pid == INVALID_PAGE)
+			return null;
+
+		Page page = pinPage(pageno);
+		BTSortedPage sortPage = sortedView(page);
+
+		if (trace != null)
+			trace.visit(pageno);
+
+		boolean search = hi_key != null && searchesSlots(hi_key);
+
+		while (sortPage.getType() == NodeType.INDEX) {
+			BTIndexPage pageIndex = indexView(page);
+			PageId child;
+			if (search) {
+				child = childOf(pageIndex, searchIndex(pageIndex,
+						((IntegerKey) hi_key).getKey(), true));
+			} else {
+				child = new PageId(pageIndex.getPrevPage().pid);
+				KeyDataEntry curEntry = pageIndex.getFirst(endrid);
+				while (curEntry != null
+						&& (hi_key == null || BT.keyCompare(curEntry.key, hi_key) <= 0)) {
+					child = ((IndexData) curEntry.data).getData();
+					curEntry = pageIndex.getNext(endrid);
+				}
+			}
+
+			unpinPage(pageno);
+
+			pageno = child;
+			page = pinPage(pageno);
+			sortPage = sortedView(page);
+
+			if (trace != null)
+				trace.visit(pageno);
+		}
+
+		BTLeafPage pageLeaf = new BTLeafPage(page, headerPage.get_keyType());
+		while (true) {
+			endrid.pageNo = new PageId(pageno.pid);
+			endrid.slotNo = search ? BTKeySearch.search(pageLeaf,
+					((IntegerKey) hi_key).getKey(), true, searchStrategy) - 1
+					: pageLeaf.getSlotCnt() - 1;
+			while (endrid.slotNo >= 0 && hi_key != null && !search) {
+				KeyDataEntry curEntry = pageLeaf.getCurrent(endrid);
+				if (BT.keyCompare(curEntry.key, hi_key) <= 0)
+					break;
+				endrid.slotNo--;
+			}
+			if (endrid.slotNo >= 0)
+				return pageLeaf;
+
+			// every key here is greater, or the leaf is empty: go left
+			PageId prevpageno = pageLeaf.getPrevPage();
+			unpinPage(pageno);
+			if (prevpageno.pid == INVALID_PAGE)
+				return null;
+			pageno = prevpageno;
+			pageLeaf = new BTLeafPage(pinPage(pageno), headerPage.get_keyType());
+		}
+	}
+
 	/*
 	 * Status BTreeFile::NaiveDelete (const void *key, const RID rid)
 	 * 
@@ -788,76 +2125,364 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			throws LeafDeleteException, KeyNotMatchException, PinPageException,
 			ConstructPageException, IOException, UnpinPageException,
 			PinPageException, IndexSearchException, IteratorException {
-	// remove the return statement and start your code.
-			//return false;
-			//create a leaf page to delete the the record
-		BTLeafPage leafPage=new BTLeafPage(headerPage.get_keyType());
-		//create a leaf page next page to move to the next page
-		BTLeafPage nextPage=new BTLeafPage(headerPage.get_keyType());
-		PageId leafPageId=leafPage.getCurPage();
+		PageId leafPageId;
 		PageId nextPageId;
 		KeyDataEntry entry;
-		int delete=0;
+		boolean delete=false;
+		boolean dirty;
 		RID delRID=new RID();
-		RID firstRID=new RID();
-		//use the findrunstart to get the  first page and rid of keys
-		leafPage=findRunStart(key,delRID);
-		//if the page is empty return null
+		//use the findrunstart to get the first page and rid of keys,
+		//the page comes back pinned
+		BTLeafPage leafPage=findRunStart(key,delRID);
+		//if the tree is empty or every key is smaller nothing can be deleted
 		if(leafPage==null)
 		{
 			return false;
 		}
 		entry=leafPage.getCurrent(delRID);
 		while(true)
-		{//iterate to find the next entry in the leaf page that is not null 
-		//else move to the next page to find the next non null record
-			while(entry==null)
-			{
-				nextPageId=leafPage.getNextPage();
-				unpinPage(leafPageId,true);
-				if(nextPageId.pid==INVALID_PAGE)
-				{
-					return false;
-				}
-				leafPage=new BTLeafPage(pinPage(nextPageId),headerPage.get_keyType());
-				entry=leafPage.getFirst(firstRID);
-			}
-			//if the key is greater than entry.key that means we gone ahead of all the
-			//pages that could contain the key and we need to break
-			if(BT.keyCompare(key,entry.key)>0)
+		{
+			leafPageId=leafPage.getCurPage();
+			//once the first entry of a page is greater than the key we have gone
+			//ahead of all the pages that could contain the key
+			if(entry!=null && BT.keyCompare(entry.key,key)>0)
 			{
+				unpinPage(leafPageId);
 				break;
 			}
-			//if the record is found delete and continue untill all the records containing 
-			//the same key are deleted(duplicate deletion)
+			//delete every copy of the record on this page (duplicate deletion)
+			dirty=false;
 			while(leafPage.delEntry(new KeyDataEntry(key,rid)))
 			{
-				delete=1;
+				dirty=true;
+				if (trace != null)
+					trace.delete(leafPageId);
 			}
-			//get the next page
+			delete=delete||dirty;
+			//move on to the next page in the leaf chain
 			nextPageId=leafPage.getNextPage();
-			leafPageId=leafPage.getCurPage();
-			//if the next page is null break
-			if(nextPageId.pid==-1)
+			unpinPage(leafPageId,dirty);
+			if(nextPageId.pid==INVALID_PAGE)
 			{
 				break;
 			}
-			//create a new page
 			leafPage=new BTLeafPage(pinPage(nextPageId),headerPage.get_keyType());
-			//get the first rid
 			entry=leafPage.getFirst(delRID);
-			leafPageId=leafPage.getCurPage();
-			//unpin the leaf page
-			unpinPage(leafPageId,true);
 		}
-		//if a record was deleted return true
-		if(delete==1)
-		{
+		return delete;
+	}
+
+	/**
+	 * delete every entry with a key from lo_key to hi_key. The tree is
+	 * descended once, along the paths to the two ends of the range: only the
+	 * leaves at the ends are read. A child whose separators both lie in the
+	 * range is wholly in it, and its subtree is freed from the index pages
+	 * alone; the leaf chain is relinked once, around the run of freed
+	 * leaves. The index entries of freed pages are removed. Cases of the
+	 * keys are as in new_scan.
+	 * <p>
+	 * Since the freed leaves are not read, their entries are not counted, and
+	 * unlike earlier versions it does not return the number of entries
+	 * deleted; a caller that needs it must scan the range first. While a
+	 * snapshot is open each freed leaf is read once, to give the snapshot
+	 * its copy.
+	 *
+	 * @param lo_key
+	 *            the smallest key to delete, null for no bound. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the largest key to delete, null for no bound. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free a page
+	 * @exception DeleteRecException
+	 *                error when delete in a page
+	 */
+	public void deleteRange(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, IteratorException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException,
+			DeleteRecException {
+		attributeAccesses();
+		if (lookupCache != null)
+			lookupCache.invalidate(lo_key, hi_key);
+		if (writeBuffer != null)
+			for (BTDeltaBuffer.DeltaKey k : writeBuffer.range(lo_key, hi_key)
+					.keySet())
+				writeBuffer.remove(k);
+		PageId root = new PageId(headerPage.get_rootId().pid);
+		if (root.pid == INVALID_PAGE)
+			return;
+		// pages of earlier operations waiting for the log may be freed here
+		if (wal != null)
+			releaseHeldPages(true);
+		beginOp();
+		try {
+			LeafRun run = new LeafRun();
+			if (deleteRange(root, height(root), null, null, lo_key, hi_key,
+					run)) {
+				updateHeader(new PageId(INVALID_PAGE));
+				return;
+			}
+			if (run.freed) {
+				if (run.prev != INVALID_PAGE) {
+					PageId prev = new PageId(run.prev);
+					new BTLeafPage(pinPage(prev), headerPage.get_keyType())
+							.setNextPage(new PageId(run.next));
+					unpinPage(prev, true /* = DIRTY */);
+				}
+				if (run.next != INVALID_PAGE) {
+					PageId next = new PageId(run.next);
+					new BTLeafPage(pinPage(next), headerPage.get_keyType())
+							.setPrevPage(new PageId(run.prev));
+					unpinPage(next, true /* = DIRTY */);
+				}
+			}
+			// a root left with one child is replaced by it
+			while (true) {
+				Page page = pinPage(root);
+				BTSortedPage sortPage = new BTSortedPage(page, headerPage
+						.get_keyType());
+				if (sortPage.getType() != NodeType.INDEX
+						|| sortPage.numberOfRecords() > 0) {
+					unpinPage(root);
+					break;
+				}
+				PageId child = new PageId(new BTIndexPage(page, headerPage
+						.get_keyType()).getPrevPage().pid);
+				unpinPage(root);
+				discardPage(root);
+				updateHeader(child);
+				root = child;
+			}
+		} finally {
+			endOp();
+		}
+	}
+
+	/*
+	 * The leaves around the freed ones, in key order: the last one kept
+	 * before the first freed leaf, and the first one kept after the last.
+	 */
+	private static class LeafRun {
+		int prev = INVALID_PAGE;
+		int next = INVALID_PAGE;
+		/** some leaf was freed */
+		boolean freed;
+	}
+
+	/* the levels of index pages above the leaves, along the leftmost path */
+	private int height(PageId root) throws IOException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		int height = 0;
+		PageId pageno = root;
+		while (true) {
+			Page page = pinPage(pageno);
+			if (sortedView(page).getType() != NodeType.INDEX) {
+				unpinPage(pageno);
+				return height;
+			}
+			PageId child = new PageId(indexView(page).getPrevPage().pid);
+			unpinPage(pageno);
+			pageno = child;
+			height++;
+		}
+	}
+
+	/*
+	 * Delete the range below `pageno', `level' levels above the leaves,
+	 * whose keys lie from low to high (null for no bound). The leaves are
+	 * visited in key order, and those freed are noted in run. Returns true
+	 * if the page was emptied and freed; its parent then drops the entry
+	 * that points to it.
+	 */
+	private boolean deleteRange(PageId pageno, int level, KeyClass low,
+			KeyClass high, KeyClass lo_key, KeyClass hi_key, LeafRun run)
+			throws IOException, IteratorException, KeyNotMatchException,
+			NodeNotMatchException, ConvertException, ConstructPageException,
+			PinPageException, UnpinPageException, FreePageException,
+			DeleteRecException {
+		Page page = pinPage(pageno);
+
+		if (trace != null)
+			trace.visit(pageno);
+
+		if (level > 0) {
+			BTIndexPage index = indexView(page);
+			// the children whose key range meets [lo_key, hi_key], and the
+			// separators around each of them
+			List<PageId> children = new ArrayList<PageId>();
+			List<KeyClass> bounds = new ArrayList<KeyClass>();
+			RID rid = new RID();
+			PageId child = index.getPrevPage();
+			KeyClass childLow = low;
+			KeyDataEntry entry = index.getFirst(rid);
+			while (true) {
+				if (entry != null && lo_key != null
+						&& BT.keyCompare(entry.key, lo_key) < 0) {
+					child = ((IndexData) entry.data).getData();
+					childLow = entry.key;
+					entry = index.getNext(rid);
+					continue;
+				}
+				children.add(new PageId(child.pid));
+				bounds.add(childLow);
+				if (entry == null
+						|| (hi_key != null && BT.keyCompare(entry.key, hi_key) > 0))
+					break;
+				child = ((IndexData) entry.data).getData();
+				childLow = entry.key;
+				entry = index.getNext(rid);
+			}
+			bounds.add(entry == null ? high : entry.key);
+			unpinPage(pageno);
+
+			List<PageId> emptied = new ArrayList<PageId>();
+			for (int i = 0; i < children.size(); i++) {
+				PageId c = children.get(i);
+				KeyClass l = bounds.get(i);
+				KeyClass h = bounds.get(i + 1);
+				if ((lo_key == null || (l != null && BT.keyCompare(l, lo_key) >= 0))
+						&& (hi_key == null || (h != null && BT.keyCompare(h,
+								hi_key) <= 0))) {
+					// wholly in the range: no leaf of it needs reading
+					freeSubtree(c, level - 1);
+					run.freed = true;
+					run.next = INVALID_PAGE;
+					emptied.add(c);
+				} else if (deleteRange(c, level - 1, l, h, lo_key, hi_key, run))
+					emptied.add(c);
+			}
+			if (emptied.isEmpty())
+				return false;
+
+			index = indexView(pinPage(pageno));
+			for (PageId c : emptied) {
+				if (index.getPrevPage().pid == c.pid) {
+					// the leftmost child: the first entry takes its place
+					entry = index.getFirst(rid);
+					if (entry == null) {
+						index.setPrevPage(new PageId(INVALID_PAGE));
+						continue;
+					}
+					index.setPrevPage(((IndexData) entry.data).getData());
+				} else {
+					entry = index.getFirst(rid);
+					while (((IndexData) entry.data).getData().pid != c.pid)
+						entry = index.getNext(rid);
+				}
+				index.deleteSortedRecord(rid);
+			}
+			if (index.getPrevPage().pid == INVALID_PAGE) {
+				unpinPage(pageno);
+				discardPage(pageno);
+				return true;
+			}
+			unpinPage(pageno, true /* = DIRTY */);
+			return false;
+		}
+
+		BTLeafPage leaf = new BTLeafPage(page, headerPage.get_keyType());
+		int count = leaf.getSlotCnt();
+		if (count == 0
+				|| (inRange(leafKey(leaf, 0), lo_key, hi_key) && inRange(
+						leafKey(leaf, count - 1), lo_key, hi_key))) {
+			// the whole leaf goes; its neighbours are relinked at the end
+			if (!run.freed)
+				run.prev = leaf.getPrevPage().pid;
+			run.next = leaf.getNextPage().pid;
+			run.freed = true;
+			unpinPage(pageno);
+			discardPage(pageno);
 			return true;
 		}
-		//else return false 
+		if (run.freed)
+			run.next = pageno.pid;
+		else
+			run.prev = pageno.pid;
+
+		// the range ends on this leaf; its keys are sorted and the slots
+		// have no holes, so delete from the back to keep slot numbers valid
+		boolean dirty = false;
+		for (int i = count - 1; i >= 0; i--) {
+			if (inRange(leafKey(leaf, i), lo_key, hi_key)) {
+				leaf.deleteSortedRecord(new RID(pageno, i));
+				dirty = true;
+			}
+		}
+		if (dirty && trace != null)
+			trace.delete(pageno);
+		unpinPage(pageno, dirty);
 		return false;
 	}
+
+	/*
+	 * Free a subtree `level' levels above the leaves. Only its index pages
+	 * are read; the leaves are freed unread unless a snapshot is open, which
+	 * must be given a copy of each before its page can be taken again.
+	 */
+	private void freeSubtree(PageId pageno, int level) throws IOException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException, FreePageException {
+		if (level > 0) {
+			List<PageId> children = new ArrayList<PageId>();
+			BTIndexPage index = indexView(pinPage(pageno));
+			children.add(new PageId(index.getPrevPage().pid));
+			RID rid = new RID();
+			for (KeyDataEntry entry = index.getFirst(rid); entry != null; entry = index
+					.getNext(rid))
+				children.add(new PageId(((IndexData) entry.data).getData().pid));
+			unpinPage(pageno);
+			for (PageId c : children)
+				freeSubtree(c, level - 1);
+		} else if (versions.isActive()) {
+			pinPage(pageno);
+			unpinPage(pageno);
+		}
+		discardPage(pageno);
+	}
+
+	private static boolean inRange(KeyClass key, KeyClass lo_key,
+			KeyClass hi_key) throws KeyNotMatchException {
+		return (lo_key == null || BT.keyCompare(key, lo_key) >= 0)
+				&& (hi_key == null || BT.keyCompare(key, hi_key) <= 0);
+	}
+
+	/*
+	 * Free an unpinned page of the tree. The running operation may still hold
+	 * it for the log; it is dropped from there, as nothing is left to write.
+	 */
+	private void discardPage(PageId pageno) throws FreePageException,
+			UnpinPageException, PinPageException {
+		Integer key = Integer.valueOf(pageno.pid);
+		dirtyPages.remove(key);
+		if (opPages != null && opPages.remove(key) != null) {
+			try {
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new UnpinPageException(e, "");
+			}
+		}
+		freePage(pageno);
+		logAllocation(pageno);
+	}
 	/**
 	 * create a scan with given keys Cases: (1) lo_key = null, hi_key = null
 	 * scan the whole index (2) lo_key = null, hi_key!= null range scan from min
@@ -888,7 +2513,19 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			ConstructPageException, PinPageException, UnpinPageException
 
 	{
-		BTFileScan scan = new BTFileScan();
+		BTFileScan scan = treeScan(lo_key, hi_key);
+		if (writeBuffer == null)
+			return scan;
+		return new BTMergeScan(this, scan, writeBuffer.range(lo_key, hi_key));
+	}
+
+	private BTFileScan treeScan(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		attributeAccesses();
+		BTFileScan scan = includedLength > 0 ? new BTCoveringScan(
+				includedSizes) : leafCache ? new BTCachedScan()
+				: new BTFileScan();
 		if (headerPage.get_rootId().pid == INVALID_PAGE) {
 			scan.leafPage = null;
 			return scan;
@@ -904,10 +2541,273 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		scan.bfile = this;
 
 		// this sets up scan at the starting position, ready for iteration
-		scan.leafPage = findRunStart(lo_key, scan.curRid);
+		scan.leafPage = findRunStart(lo_key, hi_key, scan.curRid);
 		return scan;
 	}
 
+	/**
+	 * create a scan with given keys, like new_scan(lo_key, hi_key). With
+	 * `snapshot' the scan sees the index as it is now: inserts and deletes
+	 * made while the scan is open change copies of the pages it has not read
+	 * yet. The copies are dropped once the last snapshot scan is destroyed.
+	 *
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @param snapshot
+	 *            scan a frozen version of the index. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key,
+			boolean snapshot) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		if (!snapshot)
+			return new_scan(lo_key, hi_key);
+
+		attributeAccesses();
+		BTSnapshotScan scan = new BTSnapshotScan(this, versions.openSnapshot());
+		scan.treeFilename = dbname;
+		scan.endkey = hi_key;
+		scan.didfirst = false;
+		scan.deletedcurrent = false;
+		scan.curRid = new RID();
+		scan.keyType = headerPage.get_keyType();
+		scan.maxKeysize = headerPage.get_maxKeySize();
+
+		scan.position(new PageId(headerPage.get_rootId().pid), lo_key);
+		if (writeBuffer == null)
+			return scan;
+		return new BTMergeScan(this, scan, writeBuffer.copy(lo_key, hi_key));
+	}
+
+	/**
+	 * create a scan with given keys, like new_scan(lo_key, hi_key), that
+	 * returns the entries in the given order. A descending scan starts at the
+	 * last entry <= hi_key and walks the leaves backward, so reading the
+	 * first N entries reads only their pages. Equal keys come in the reverse
+	 * of their ascending order.
+	 *
+	 * @param lo_key
+	 *            the key where we stop scanning a descending scan. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the key where we begin scanning a descending scan. Input
+	 *            parameter.
+	 * @param order
+	 *            ScanOrder.ASCENDING or ScanOrder.DESCENDING. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key, int order)
+			throws IOException, KeyNotMatchException, IteratorException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (order != ScanOrder.DESCENDING)
+			return new_scan(lo_key, hi_key);
+
+		attributeAccesses();
+		BTReverseScan scan = new BTReverseScan();
+		scan.treeFilename = dbname;
+		scan.startkey = lo_key;
+		scan.didfirst = false;
+		scan.deletedcurrent = false;
+		scan.curRid = new RID();
+		scan.keyType = headerPage.get_keyType();
+		scan.maxKeysize = headerPage.get_maxKeySize();
+		scan.bfile = this;
+
+		// this sets up scan at the starting position, ready for iteration
+		scan.leafPage = findRunEnd(hi_key, scan.curRid);
+		if (writeBuffer == null)
+			return scan;
+		return new BTMergeScan(this, scan, writeBuffer.range(lo_key, hi_key),
+				true);
+	}
+
+	/**
+	 * create a scan with given keys and order, like new_scan(lo_key, hi_key,
+	 * order), that returns only the entries `filter' accepts, skipping the
+	 * first `offset' of them and stopping after `limit'. The filter, the
+	 * offset and the limit are evaluated on the leaf pages; an entry is
+	 * decoded only to be returned, and no page after the last entry returned
+	 * is read.
+	 *
+	 * @param lo_key
+	 *            the smallest key of the scan. Input parameter.
+	 * @param hi_key
+	 *            the largest key of the scan. Input parameter.
+	 * @param order
+	 *            ScanOrder.ASCENDING or ScanOrder.DESCENDING. Input
+	 *            parameter.
+	 * @param filter
+	 *            the entries to return, null for all. Input parameter.
+	 * @param offset
+	 *            number of accepted entries to skip. Input parameter.
+	 * @param limit
+	 *            most entries to return, negative for no limit. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key, int order,
+			ScanFilter filter, int offset, int limit) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException,
+			PinPageException, UnpinPageException {
+		attributeAccesses();
+		boolean descending = order == ScanOrder.DESCENDING;
+		BTFilteredScan scan = new BTFilteredScan();
+		scan.treeFilename = dbname;
+		scan.startkey = lo_key;
+		scan.endkey = hi_key;
+		scan.descending = descending;
+		scan.filter = filter;
+		scan.didfirst = false;
+		scan.deletedcurrent = false;
+		scan.curRid = new RID();
+		scan.keyType = headerPage.get_keyType();
+		scan.maxKeysize = headerPage.get_maxKeySize();
+		scan.bfile = this;
+		NavigableMap<BTDeltaBuffer.DeltaKey, BTDeltaBuffer.Delta> deltas = null;
+		if (writeBuffer != null)
+			deltas = BTMergeScan.filter(writeBuffer.range(lo_key, hi_key),
+					filter);
+		if (deltas == null || deltas.isEmpty()) {
+			deltas = null;
+			scan.offset = offset;
+			scan.limit = limit;
+		}
+
+		// this sets up scan at the starting position, ready for iteration
+		scan.leafPage = descending ? findRunEnd(hi_key, scan.curRid)
+				: findRunStart(lo_key, hi_key, scan.curRid);
+		if (deltas == null)
+			return scan;
+		// the offset and the limit count the merged entries
+		BTMergeScan merge = new BTMergeScan(this, scan, deltas, descending);
+		merge.limit(offset, limit);
+		return merge;
+	}
+
+	/*
+	 * The image of a page as the snapshot of `epoch' sees it, copied.
+	 */
+	byte[] snapshotImage(PageId pageno, long epoch) throws PinPageException {
+		attributeAccesses();
+		byte[] image = versions.read(pageno.pid, epoch);
+		byte[] copy = new byte[MINIBASE_PAGESIZE];
+		if (image != null) {
+			System.arraycopy(image, 0, copy, 0, MINIBASE_PAGESIZE);
+			return copy;
+		}
+		try {
+			Page page = frameView();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			System.arraycopy(page.getpage(), 0, copy, 0, MINIBASE_PAGESIZE);
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			return copy;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+	}
+
+	void releaseSnapshot(long epoch) {
+		versions.releaseSnapshot(epoch);
+	}
+
+	/**
+	 * @return bytes held by old page versions for open snapshot scans.
+	 */
+	public long getSnapshotBytes() {
+		return versions.getBytes();
+	}
+
+	/**
+	 * Print the sampled page-access heatmap of this file grouped by tree
+	 * level. An instrumented buffer manager (bufmgr.StatBufMgr) has to be
+	 * installed.
+	 *
+	 * @param out
+	 *            where to print. Input parameter.
+	 * @param top
+	 *            number of pages to print per level. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public void dumpHeatmap(PrintStream out, int top) throws IOException {
+		StatBufMgr bm = StatBufMgr.current();
+		if (bm == null) {
+			out.println("no page statistics: bufmgr.StatBufMgr is not installed");
+			return;
+		}
+
+		String[] levels = { "root", "index", "leaf", "header" };
+		List<List<StatBufMgr.PageHeat>> byLevel = new ArrayList<List<StatBufMgr.PageHeat>>();
+		long[] accesses = new long[levels.length];
+		for (int i = 0; i < levels.length; i++)
+			byLevel.add(new ArrayList<StatBufMgr.PageHeat>());
+
+		int root = headerPage.get_rootId().pid;
+		for (StatBufMgr.PageHeat h : bm.getHeatmap()) {
+			if (!dbname.equals(h.file))
+				continue;
+			int level;
+			if (h.pid == root)
+				level = 0;
+			else if (h.type == NodeType.INDEX)
+				level = 1;
+			else if (h.type == NodeType.LEAF)
+				level = 2;
+			else
+				level = 3;
+			byLevel.get(level).add(h); // still hottest first
+			accesses[level] += h.accesses;
+		}
+
+		out.println("page heatmap of " + dbname);
+		for (int i = 0; i < levels.length; i++) {
+			List<StatBufMgr.PageHeat> pages = byLevel.get(i);
+			out.println("  " + levels[i] + ": " + pages.size()
+					+ " pages sampled, " + accesses[i] + " sampled accesses");
+			for (int n = 0; n < pages.size() && n < top; n++)
+				out.println("    page " + pages.get(n).pid + " accesses "
+						+ pages.get(n).accesses);
+		}
+	}
+
 	void trace_children(PageId id) throws IOException, IteratorException,
 			ConstructPageException, PinPageException, UnpinPageException {
 
@@ -915,33 +2815,34 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 			BTSortedPage sortedPage;
 			RID metaRid = new RID();
-			PageId childPageId;
-			KeyClass key;
 			KeyDataEntry entry;
 			sortedPage = new BTSortedPage(pinPage(id), headerPage.get_keyType());
 
-			// Now print all the child nodes of the page.
+			// Now record all the child nodes of the page.
 			if (sortedPage.getType() == NodeType.INDEX) {
 				BTIndexPage indexPage = new BTIndexPage(sortedPage,
 						headerPage.get_keyType());
-				trace.writeBytes("INDEX CHILDREN " + id + " nodes" + lineSep);
-				trace.writeBytes(" " + indexPage.getPrevPage());
+				int[] children = new int[indexPage.getSlotCnt() + 1];
+				int count = 0;
+				children[count++] = indexPage.getPrevPage().pid;
 				for (entry = indexPage.getFirst(metaRid); entry != null; entry = indexPage
 						.getNext(metaRid)) {
-					trace.writeBytes("   " + ((IndexData) entry.data).getData());
+					children[count++] = ((IndexData) entry.data).getData().pid;
 				}
+				trace.indexChildren(id, children, count);
 			} else if (sortedPage.getType() == NodeType.LEAF) {
 				BTLeafPage leafPage = new BTLeafPage(sortedPage,
 						headerPage.get_keyType());
-				trace.writeBytes("LEAF CHILDREN " + id + " nodes" + lineSep);
+				int count = 0;
+				trace.beginLeafChildren();
 				for (entry = leafPage.getFirst(metaRid); entry != null; entry = leafPage
 						.getNext(metaRid)) {
-					trace.writeBytes("   " + entry.key + " " + entry.data);
+					trace.leafEntry(entry);
+					count++;
 				}
+				trace.endLeafChildren(id, count);
 			}
 			unpinPage(id);
-			trace.writeBytes(lineSep);
-			trace.flush();
 		}
 
 	}
@@ -0,0 +1,158 @@
+/*
+ * @(#) CompositeKey.java
+ *
+ */
+
+package btree;
+
+import java.io.*;
+
+import global.*;
+
+/**
+ * CompositeKey is a key of several columns, for an index created with
+ * AttrType.attrString keys. The columns are encoded so that comparing the
+ * encodings byte by byte orders keys by their first column, then their
+ * second, and so on:
+ * <ul>
+ * <li>an integer is 4 bytes, big endian, with the sign bit flipped;</li>
+ * <li>a string is its UTF-8 bytes, with every 0 byte written as 0 255,
+ * ended by 0 1.</li>
+ * </ul>
+ * Every byte b is stored as the character b + 1, which keeps the order of
+ * the string compare of the B+ tree pages equal to the byte order and
+ * takes one byte on the page for the common bytes below 127.
+ * <p>
+ * A key of the leading columns only sorts before every longer key that
+ * starts with it, so new_scan(prefix, prefix.prefixEnd()) is a range scan
+ * over one prefix.
+ */
+public class CompositeKey extends StringKey {
+
+	/** Sorts after every encoded byte. */
+	private final static char AFTER_ALL = '\uFFFF';
+
+	private final StringBuilder encoded = new StringBuilder();
+
+	/** An empty key; add the columns in order. */
+	public CompositeKey() {
+		super("");
+	}
+
+	/**
+	 * @param value
+	 *            the next column. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(int value) {
+		int bits = value ^ 0x80000000;
+		for (int shift = 24; shift >= 0; shift -= 8)
+			append((bits >>> shift) & 0xff);
+		setKey(encoded.toString());
+		return this;
+	}
+
+	/**
+	 * @param value
+	 *            the next column. Input parameter.
+	 * @return this key
+	 */
+	public CompositeKey add(String value) {
+		byte[] bytes;
+		try {
+			bytes = value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.toString());
+		}
+		for (byte b : bytes) {
+			append(b & 0xff);
+			if (b == 0)
+				append(0xff);
+		}
+		append(0);
+		append(1);
+		setKey(encoded.toString());
+		return this;
+	}
+
+	private void append(int b) {
+		encoded.append((char) (b + 1));
+	}
+
+	/**
+	 * @return the largest key that starts with the columns of this key, as
+	 *         the inclusive upper end of a prefix scan
+	 */
+	public StringKey prefixEnd() {
+		return new StringKey(getKey() + AFTER_ALL);
+	}
+
+	/**
+	 * Split a composite key, as a scan returns it, into its columns.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param types
+	 *            AttrType.attrInteger or AttrType.attrString for each
+	 *            column. Input parameter.
+	 * @return an Integer or a String per column
+	 * @exception KeyNotMatchException
+	 *                the key does not hold such columns
+	 */
+	public static Object[] decode(KeyClass key, int[] types)
+			throws KeyNotMatchException {
+		if (!(key instanceof StringKey))
+			throw new KeyNotMatchException(null, "not a composite key");
+		String s = ((StringKey) key).getKey();
+		Object[] columns = new Object[types.length];
+		int pos = 0;
+		try {
+			for (int i = 0; i < types.length; i++) {
+				if (types[i] == AttrType.attrInteger) {
+					int bits = 0;
+					for (int j = 0; j < 4; j++)
+						bits = (bits << 8) | (s.charAt(pos++) - 1);
+					columns[i] = Integer.valueOf(bits ^ 0x80000000);
+				} else if (types[i] == AttrType.attrString) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					while (true) {
+						int b = s.charAt(pos++) - 1;
+						if (b == 0) {
+							if (s.charAt(pos++) - 1 == 1)
+								break;
+						}
+						bytes.write(b);
+					}
+					columns[i] = bytes.toString("UTF-8");
+				} else {
+					throw new KeyNotMatchException(null, "bad column type");
+				}
+			}
+		} catch (StringIndexOutOfBoundsException e) {
+			throw new KeyNotMatchException(e, "key is too short");
+		} catch (UnsupportedEncodingException e) {
+			throw new KeyNotMatchException(e, "");
+		}
+		return columns;
+	}
+
+	/**
+	 * The key size to create an index of such keys with.
+	 *
+	 * @param types
+	 *            AttrType.attrInteger or AttrType.attrString for each
+	 *            column. Input parameter.
+	 * @param maxLengths
+	 *            the longest UTF-8 length of each string column; ignored
+	 *            for integers. Input parameter.
+	 * @return the largest size of a key on a page
+	 */
+	public static int maxKeySize(int[] types, int[] maxLengths) {
+		int bytes = 0;
+		for (int i = 0; i < types.length; i++)
+			bytes += types[i] == AttrType.attrInteger ? 4
+					: 2 * maxLengths[i] + 2;
+		// 2 byte length, and up to 2 bytes per encoded byte
+		return 2 + 2 * bytes;
+	}
+}
@@ -0,0 +1,25 @@
+/*
+ * @(#) ScanFilter.java
+ *
+ */
+
+package btree;
+
+/**
+ * A predicate a BTFilteredScan evaluates on the raw bytes of each leaf entry
+ * in its range, before the entry is decoded. An entry is the key, the
+ * included columns of a covering index, then the rid: the page number and
+ * the slot number, 4 bytes each. BTFilteredScan has helpers to read them.
+ */
+public interface ScanFilter {
+	/**
+	 * @param data
+	 *            the page the entry is on. Input parameter.
+	 * @param offset
+	 *            the offset of the entry. Input parameter.
+	 * @param length
+	 *            the length of the entry. Input parameter.
+	 * @return whether the scan returns the entry
+	 */
+	boolean accept(byte[] data, int offset, int length);
+}
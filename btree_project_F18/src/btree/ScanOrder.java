@@ -0,0 +1,16 @@
+/*
+ * @(#) ScanOrder.java
+ *
+ */
+
+package btree;
+
+/**
+ * The order in which a scan created by BTreeFile.new_scan returns entries.
+ */
+public class ScanOrder {
+	/** Smallest key first. */
+	public static final int ASCENDING = 0;
+	/** Largest key first. */
+	public static final int DESCENDING = 1;
+}
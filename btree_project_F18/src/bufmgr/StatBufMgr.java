@@ -0,0 +1,427 @@
+/*
+ * @(#) StatBufMgr.java
+ *
+ */
+
+package bufmgr;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.HFPage;
+
+/**
+ * StatBufMgr is a BufMgr that keeps statistics about how the buffer pool is
+ * used: hits and misses (globally and per file), evictions, dirty pages
+ * written back, time spent inside pinPage, and a sampled page-access heatmap.
+ * <p>
+ * It is a drop-in replacement for SystemDefs.JavabaseBM; use install() right
+ * after the SystemDefs have been created. Pages are attributed to the file
+ * that was current (see setCurrentFile) the first time they were brought into
+ * the pool, so later pins of the same page from scans are attributed too.
+ */
+public class StatBufMgr extends BufMgr {
+
+	/** Per-file counters. */
+	public static class FileStats {
+		public long hits;
+		public long misses;
+		public long evictions;
+
+		public double hitRatio() {
+			long total = hits + misses;
+			return total == 0 ? 0.0 : (double) hits / total;
+		}
+	}
+
+	/** One sampled page of the heatmap. */
+	public static class PageHeat {
+		public int pid;
+		/** HFPage type of the page when it was last sampled */
+		public short type;
+		public long accesses;
+		public String file;
+	}
+
+	public final static String UNATTRIBUTED = "<unattributed>";
+
+	private final static int DEFAULT_SAMPLE_RATE = 16;
+
+	/*
+	 * The frame of each buffer of the pool. BufMgr.pinPage points the
+	 * caller's Page at the buffer of the frame it pinned, and a frame keeps
+	 * its buffer, so a buffer is numbered the first time a pin returns it.
+	 */
+	private final IdentityHashMap<byte[], Integer> frameOfBuffer = new IdentityHashMap<byte[], Integer>();
+	/** page number each frame holds, as of its last pin */
+	private final int[] framePid;
+	/** whether the page in the frame has changes not written back */
+	private final boolean[] frameDirty;
+	private final HashMap<Integer, Integer> frameOf = new HashMap<Integer, Integer>();
+
+	private long hits;
+	private long misses;
+	private long newPages;
+	private long evictions;
+	private long dirtyFlushes;
+	private long hitNanos;
+	private long missNanos;
+
+	private String currentFile = UNATTRIBUTED;
+	private final HashMap<Integer, String> fileOf = new HashMap<Integer, String>();
+	private final HashMap<String, FileStats> fileStats = new HashMap<String, FileStats>();
+
+	private int sampleRate = DEFAULT_SAMPLE_RATE;
+	private long accessCount;
+	private final HashMap<Integer, PageHeat> heatmap = new HashMap<Integer, PageHeat>();
+
+	/**
+	 * Create an instrumented buffer manager.
+	 *
+	 * @param numbufs
+	 *            number of buffers in the buffer pool. Input parameter.
+	 * @param replacerArg
+	 *            name of the buffer replacement policy. Input parameter.
+	 */
+	public StatBufMgr(int numbufs, String replacerArg) {
+		super(numbufs, replacerArg);
+		framePid = new int[numbufs];
+		frameDirty = new boolean[numbufs];
+		Arrays.fill(framePid, INVALID_PAGE);
+	}
+
+	/**
+	 * Replace SystemDefs.JavabaseBM by an instrumented buffer manager of the
+	 * same size. All pages of the old pool are flushed first, so nothing may
+	 * be pinned.
+	 *
+	 * @param replacerArg
+	 *            name of the buffer replacement policy. Input parameter.
+	 * @return the new buffer manager
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception BufMgrException
+	 *                pages of the old pool could not be flushed
+	 */
+	public static StatBufMgr install(String replacerArg) throws IOException,
+			BufMgrException {
+		if (SystemDefs.JavabaseBM instanceof StatBufMgr)
+			return (StatBufMgr) SystemDefs.JavabaseBM;
+		try {
+			SystemDefs.JavabaseBM.flushAllPages();
+		} catch (Exception e) {
+			throw new BufMgrException(e, "could not flush the old buffer pool");
+		}
+		StatBufMgr bm = new StatBufMgr(SystemDefs.JavabaseBM.getNumBuffers(),
+				replacerArg);
+		SystemDefs.JavabaseBM = bm;
+		return bm;
+	}
+
+	/**
+	 * @return the instrumented buffer manager if one is installed, else null.
+	 */
+	public static StatBufMgr current() {
+		if (SystemDefs.JavabaseBM instanceof StatBufMgr)
+			return (StatBufMgr) SystemDefs.JavabaseBM;
+		return null;
+	}
+
+	/**
+	 * Name the file on whose behalf the following page accesses are made.
+	 *
+	 * @param filename
+	 *            the file name, null for unattributed. Input parameter.
+	 */
+	public void setCurrentFile(String filename) {
+		currentFile = filename == null ? UNATTRIBUTED : filename;
+	}
+
+	/**
+	 * Sample one out of every `rate' page accesses into the heatmap.
+	 *
+	 * @param rate
+	 *            sampling rate, 1 samples every access. Input parameter.
+	 */
+	public void setSampleRate(int rate) {
+		sampleRate = Math.max(1, rate);
+	}
+
+	public void pinPage(PageId pin_pgid, Page page, boolean emptyPage)
+			throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException,
+			PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException {
+
+		Integer key = Integer.valueOf(pin_pgid.pid);
+		Integer cached = frameOf.get(key);
+		boolean hit = cached != null
+				&& framePid[cached.intValue()] == pin_pgid.pid;
+
+		long start = System.nanoTime();
+		super.pinPage(pin_pgid, page, emptyPage);
+		long elapsed = System.nanoTime() - start;
+
+		String file = fileOf.get(key);
+		if (file == null) {
+			file = currentFile;
+			fileOf.put(key, file);
+		}
+		FileStats fs = fileStats(file);
+
+		if (hit) {
+			hits++;
+			hitNanos += elapsed;
+			fs.hits++;
+		} else {
+			int frame = frameOf(page.getpage());
+			if (emptyPage)
+				newPages++;
+			else {
+				misses++;
+				missNanos += elapsed;
+				fs.misses++;
+			}
+			int victim = framePid[frame];
+			if (victim != INVALID_PAGE && victim != pin_pgid.pid) {
+				evictions++;
+				String owner = fileOf.get(Integer.valueOf(victim));
+				fileStats(owner == null ? UNATTRIBUTED : owner).evictions++;
+				if (frameDirty[frame])
+					dirtyFlushes++;
+				frameOf.remove(Integer.valueOf(victim));
+			}
+			// read from disk or new: nothing to write back yet
+			framePid[frame] = pin_pgid.pid;
+			frameDirty[frame] = false;
+			frameOf.put(key, Integer.valueOf(frame));
+		}
+
+		if (!emptyPage && ++accessCount % sampleRate == 0)
+			sample(key, page, file);
+	}
+
+	public void unpinPage(PageId PageId_in_a_DB, boolean dirty)
+			throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException {
+		super.unpinPage(PageId_in_a_DB, dirty);
+		if (dirty) {
+			Integer frame = frameOf.get(Integer.valueOf(PageId_in_a_DB.pid));
+			if (frame != null)
+				frameDirty[frame.intValue()] = true;
+		}
+	}
+
+	public void freePage(PageId globalPageId) throws InvalidBufferException,
+			ReplacerException, HashOperationException,
+			InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException,
+			PageUnpinnedException, HashEntryNotFoundException,
+			BufMgrException, DiskMgrException, IOException {
+		super.freePage(globalPageId);
+		Integer key = Integer.valueOf(globalPageId.pid);
+		Integer frame = frameOf.remove(key);
+		if (frame != null) {
+			framePid[frame.intValue()] = INVALID_PAGE;
+			frameDirty[frame.intValue()] = false;
+		}
+		fileOf.remove(key);
+		heatmap.remove(key);
+	}
+
+	public void flushPage(PageId pageid) throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		super.flushPage(pageid);
+		Integer frame = frameOf.get(Integer.valueOf(pageid.pid));
+		if (frame != null && frameDirty[frame.intValue()]) {
+			dirtyFlushes++;
+			frameDirty[frame.intValue()] = false;
+		}
+	}
+
+	public void flushAllPages() throws HashOperationException,
+			PageUnpinnedException, PagePinnedException, PageNotFoundException,
+			BufMgrException, IOException {
+		super.flushAllPages();
+		for (int i = 0; i < frameDirty.length; i++) {
+			if (frameDirty[i] && framePid[i] != INVALID_PAGE)
+				dirtyFlushes++;
+			frameDirty[i] = false;
+		}
+	}
+
+	/**
+	 * @return whether the page is in the pool and has changes that are not
+	 *         written back yet.
+	 */
+	public boolean isDirty(int pid) {
+		Integer frame = frameOf.get(Integer.valueOf(pid));
+		return frame != null && framePid[frame.intValue()] == pid
+				&& frameDirty[frame.intValue()];
+	}
+
+	/**
+	 * @return the pages of `filename' that are in the pool right now, in
+	 *         frame order.
+	 */
+	public List<Integer> getResidentPages(String filename) {
+		List<Integer> pages = new ArrayList<Integer>();
+		for (int i = 0; i < framePid.length; i++) {
+			int pid = framePid[i];
+			if (pid != INVALID_PAGE
+					&& filename.equals(fileOf.get(Integer.valueOf(pid))))
+				pages.add(Integer.valueOf(pid));
+		}
+		return pages;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	/** @return pages pinned fresh by newPage, which need no disk read. */
+	public long getNewPages() {
+		return newPages;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/** @return dirty pages written back, by eviction or by a flush. */
+	public long getDirtyFlushes() {
+		return dirtyFlushes;
+	}
+
+	public double getHitRatio() {
+		long total = hits + misses;
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	/** @return total nanoseconds spent in pinPage calls that hit. */
+	public long getHitNanos() {
+		return hitNanos;
+	}
+
+	/** @return total nanoseconds spent in pinPage calls that missed. */
+	public long getMissNanos() {
+		return missNanos;
+	}
+
+	/**
+	 * @return the counters of one file, null if it was never accessed.
+	 */
+	public FileStats getFileStats(String filename) {
+		return fileStats.get(filename);
+	}
+
+	/**
+	 * @return the sampled pages, hottest first.
+	 */
+	public List<PageHeat> getHeatmap() {
+		List<PageHeat> pages = new ArrayList<PageHeat>(heatmap.values());
+		Collections.sort(pages, new Comparator<PageHeat>() {
+			public int compare(PageHeat a, PageHeat b) {
+				return a.accesses < b.accesses ? 1 : a.accesses > b.accesses ? -1
+						: a.pid - b.pid;
+			}
+		});
+		return pages;
+	}
+
+	/**
+	 * Reset all counters and the heatmap. Page to file attribution is kept.
+	 */
+	public void resetStats() {
+		hits = misses = newPages = evictions = dirtyFlushes = 0;
+		hitNanos = missNanos = 0;
+		accessCount = 0;
+		fileStats.clear();
+		heatmap.clear();
+	}
+
+	/**
+	 * Print the global and per-file counters.
+	 *
+	 * @param out
+	 *            where to print. Input parameter.
+	 */
+	public void printStats(PrintStream out) {
+		out.println("buffer pool: " + getNumBuffers() + " frames, "
+				+ getNumUnpinnedBuffers() + " unpinned");
+		out.println("  hits " + hits + ", misses " + misses + ", new pages "
+				+ newPages + ", hit ratio "
+				+ String.format("%.4f", getHitRatio()));
+		out.println("  evictions " + evictions + ", dirty pages written "
+				+ dirtyFlushes);
+		out.println("  avg pin time: hit " + avg(hitNanos, hits) + " ns, miss "
+				+ avg(missNanos, misses) + " ns");
+		for (Map.Entry<String, FileStats> e : fileStats.entrySet()) {
+			FileStats fs = e.getValue();
+			out.println("  file " + e.getKey() + ": hits " + fs.hits
+					+ ", misses " + fs.misses + ", evictions " + fs.evictions
+					+ ", hit ratio " + String.format("%.4f", fs.hitRatio()));
+		}
+	}
+
+	/**
+	 * Print the `top' hottest sampled pages.
+	 *
+	 * @param out
+	 *            where to print. Input parameter.
+	 * @param top
+	 *            number of pages to print. Input parameter.
+	 */
+	public void dumpHeatmap(PrintStream out, int top) {
+		out.println("page heatmap (1 in " + sampleRate + " accesses sampled)");
+		int n = 0;
+		for (PageHeat h : getHeatmap()) {
+			if (n++ >= top)
+				break;
+			out.println("  page " + h.pid + " type " + h.type + " accesses "
+					+ h.accesses + " file " + h.file);
+		}
+	}
+
+	private static long avg(long total, long count) {
+		return count == 0 ? 0 : total / count;
+	}
+
+	private FileStats fileStats(String file) {
+		FileStats fs = fileStats.get(file);
+		if (fs == null) {
+			fs = new FileStats();
+			fileStats.put(file, fs);
+		}
+		return fs;
+	}
+
+	/* the frame whose buffer a pin returned */
+	private int frameOf(byte[] buffer) {
+		Integer frame = frameOfBuffer.get(buffer);
+		if (frame == null) {
+			frame = Integer.valueOf(frameOfBuffer.size());
+			frameOfBuffer.put(buffer, frame);
+		}
+		return frame.intValue();
+	}
+
+	private void sample(Integer key, Page page, String file) throws IOException {
+		PageHeat h = heatmap.get(key);
+		if (h == null) {
+			h = new PageHeat();
+			h.pid = key.intValue();
+			heatmap.put(key, h);
+		}
+		h.type = Convert.getShortValue(HFPage.TYPE, page.getpage());
+		h.file = file;
+		h.accesses++;
+	}
+}
@@ -0,0 +1,544 @@
+/*
+ * @(#) AsyncDB.java
+ *
+ */
+
+package diskmgr;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+import global.*;
+
+/**
+ * AsyncDB is a DB whose page reads and writes go through an asynchronous
+ * file channel, so that several of them can be in flight at once:
+ * <ul>
+ * <li>readAsync() and prefetch() start reading pages before they are
+ * needed; a later buffer miss on a prefetched page is served from the
+ * finished read;</li>
+ * <li>write_page() copies the page and returns at once, the write goes on
+ * in the background. A read of a page with a write in flight is served from
+ * the copy, and a page is never written twice at the same time.</li>
+ * </ul>
+ * Space management and the file directory are left to the DB it was
+ * installed over. It is a drop-in replacement for SystemDefs.JavabaseDB;
+ * use install() right after the SystemDefs have been created. sync() waits
+ * for every write in flight and forces the file: call it before anything
+ * that relies on the pages being on disk.
+ */
+public class AsyncDB extends DB {
+
+	/** Prefetched pages kept until a buffer miss takes them. */
+	private final static int MAX_PREFETCHED = 256;
+	/** Finished writes are dropped from the table once it is this big. */
+	private final static int PURGE_WRITES = 64;
+
+	private static class Write {
+		final byte[] data;
+		final Future<Integer> done;
+
+		Write(byte[] data, Future<Integer> done) {
+			this.data = data;
+			this.done = done;
+		}
+	}
+
+	private static class Read {
+		final byte[] data;
+		final Future<Integer> done;
+
+		Read(byte[] data, Future<Integer> done) {
+			this.data = data;
+			this.done = done;
+		}
+	}
+
+	/*
+	 * Completes the future given as attachment. Waiting on it parks the
+	 * thread, where the futures of the channel wait on a monitor.
+	 */
+	private final static CompletionHandler<Integer, CompletableFuture<Integer>> COMPLETE = new CompletionHandler<Integer, CompletableFuture<Integer>>() {
+		public void completed(Integer result, CompletableFuture<Integer> done) {
+			done.complete(result);
+		}
+
+		public void failed(Throwable e, CompletableFuture<Integer> done) {
+			done.completeExceptionally(e);
+		}
+	};
+
+	private final static Method IS_VIRTUAL;
+	static {
+		Method m = null;
+		try {
+			m = Thread.class.getMethod("isVirtual");
+		} catch (NoSuchMethodException e) {
+			// an older Java: there are no virtual threads
+		}
+		IS_VIRTUAL = m;
+	}
+
+	private final DB base;
+	private final ExecutorService pool;
+	private final AsynchronousFileChannel channel;
+	/** for the buffer misses nothing is in flight for */
+	private final FileChannel direct;
+
+	/*
+	 * Guards the tables below. A lock, not a monitor: a virtual thread
+	 * waiting for it does not hold on to its carrier thread.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final HashMap<Integer, Write> writes = new HashMap<Integer, Write>();
+	/** prefetched pages, oldest first */
+	private final LinkedHashMap<Integer, Read> prefetched = new LinkedHashMap<Integer, Read>();
+
+	private long reads;
+	private long prefetchHits;
+	private long writesIssued;
+	private long writeHits;
+
+	/**
+	 * Open an asynchronous channel on the file of an open database.
+	 *
+	 * @param base
+	 *            the open database. Input parameter.
+	 * @param threads
+	 *            I/O threads. Input parameter.
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public AsyncDB(DB base, int threads) throws IOException {
+		this.base = base;
+		this.pool = Executors.newFixedThreadPool(Math.max(1, threads),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "AsyncDB I/O");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		HashSet<StandardOpenOption> options = new HashSet<StandardOpenOption>();
+		options.add(StandardOpenOption.READ);
+		options.add(StandardOpenOption.WRITE);
+		this.channel = AsynchronousFileChannel.open(Paths.get(base.db_name()),
+				options, pool);
+		this.direct = FileChannel.open(Paths.get(base.db_name()),
+				StandardOpenOption.READ);
+	}
+
+	/**
+	 * Replace SystemDefs.JavabaseDB by an AsyncDB over it.
+	 *
+	 * @param threads
+	 *            I/O threads. Input parameter.
+	 * @return the new database
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public static AsyncDB install(int threads) throws IOException {
+		if (SystemDefs.JavabaseDB instanceof AsyncDB)
+			return (AsyncDB) SystemDefs.JavabaseDB;
+		AsyncDB db = new AsyncDB(SystemDefs.JavabaseDB, threads);
+		SystemDefs.JavabaseDB = db;
+		return db;
+	}
+
+	/**
+	 * @return the asynchronous database if one is installed, else null.
+	 */
+	public static AsyncDB current() {
+		if (SystemDefs.JavabaseDB instanceof AsyncDB)
+			return (AsyncDB) SystemDefs.JavabaseDB;
+		return null;
+	}
+
+	/**
+	 * Start reading a page.
+	 *
+	 * @param pageno
+	 *            page number. Input parameter.
+	 * @param data
+	 *            MINIBASE_PAGESIZE bytes to read into. Output parameter.
+	 * @return completes with the number of bytes read once data holds the
+	 *         page
+	 * @exception InvalidPageNumberException
+	 *                page number out of range
+	 */
+	public Future<Integer> readAsync(PageId pageno, byte[] data)
+			throws InvalidPageNumberException {
+		check(pageno);
+		lock.lock();
+		try {
+			Write w = writes.get(Integer.valueOf(pageno.pid));
+			if (w != null) {
+				System.arraycopy(w.data, 0, data, 0, MINIBASE_PAGESIZE);
+				writeHits++;
+				return CompletableFuture.completedFuture(Integer.valueOf(
+						MINIBASE_PAGESIZE));
+			}
+			reads++;
+		} finally {
+			lock.unlock();
+		}
+		return read(data, pageno);
+	}
+
+	/**
+	 * Start writing a page. The data must not change until the write is
+	 * done; write_page() makes a copy first.
+	 *
+	 * @param pageno
+	 *            page number. Input parameter.
+	 * @param data
+	 *            the page. Input parameter.
+	 * @return completes with the number of bytes written
+	 * @exception InvalidPageNumberException
+	 *                page number out of range
+	 * @exception FileIOException
+	 *                the previous write of the page failed
+	 */
+	public Future<Integer> writeAsync(PageId pageno, byte[] data)
+			throws InvalidPageNumberException, FileIOException {
+		check(pageno);
+		Integer key = Integer.valueOf(pageno.pid);
+		lock.lock();
+		try {
+			// writes of one page must not overtake each other
+			Write previous = writes.get(key);
+			if (previous != null)
+				await(previous.done, pageno);
+			prefetched.remove(key);
+			CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+			channel.write(ByteBuffer.wrap(data, 0, MINIBASE_PAGESIZE),
+					(long) pageno.pid * MINIBASE_PAGESIZE, done, COMPLETE);
+			writes.put(key, new Write(data, done));
+			writesIssued++;
+			if (writes.size() >= PURGE_WRITES)
+				purge(false);
+			return done;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Start reading pages a buffer miss will soon ask for. Pages already
+	 * being read or written are skipped.
+	 *
+	 * @param pageno
+	 *            page number. Input parameter.
+	 */
+	public void prefetch(PageId pageno) {
+		if (pageno.pid <= 0 || pageno.pid >= base.db_num_pages())
+			return;
+		Integer key = Integer.valueOf(pageno.pid);
+		lock.lock();
+		try {
+			if (prefetched.containsKey(key) || writes.containsKey(key))
+				return;
+			byte[] data = new byte[MINIBASE_PAGESIZE];
+			prefetched.put(key, new Read(data, read(data, pageno)));
+			reads++;
+			if (prefetched.size() > MAX_PREFETCHED) {
+				Iterator<Read> oldest = prefetched.values().iterator();
+				oldest.next();
+				oldest.remove();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait for every write in flight and force the file to disk.
+	 *
+	 * @exception FileIOException
+	 *                a write failed
+	 * @exception IOException
+	 *                I/O errors
+	 */
+	public void sync() throws FileIOException, IOException {
+		lock.lock();
+		try {
+			purge(true);
+		} finally {
+			lock.unlock();
+		}
+		channel.force(false);
+	}
+
+	/**
+	 * Read a page, from a prefetch or a write in flight if there is one,
+	 * else straight from the file on the calling thread. A virtual thread
+	 * hands the read to the I/O threads and parks instead, so that its
+	 * carrier thread is not blocked in the file read.
+	 */
+	public void read_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		check(pageno);
+		byte[] data = apage.getpage();
+		Integer key = Integer.valueOf(pageno.pid);
+		Read r;
+		lock.lock();
+		try {
+			r = prefetched.remove(key);
+			if (r == null) {
+				Write w = writes.get(key);
+				if (w != null) {
+					System.arraycopy(w.data, 0, data, 0, MINIBASE_PAGESIZE);
+					writeHits++;
+					return;
+				}
+				reads++;
+			} else {
+				prefetchHits++;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (r != null) {
+			await(r.done, pageno);
+			System.arraycopy(r.data, 0, data, 0, MINIBASE_PAGESIZE);
+		} else if (onVirtualThread()) {
+			await(read(data, pageno), pageno);
+		} else {
+			// handing the read to an I/O thread would only add to the wait
+			ByteBuffer buf = ByteBuffer.wrap(data, 0, MINIBASE_PAGESIZE);
+			long pos = (long) pageno.pid * MINIBASE_PAGESIZE;
+			while (buf.hasRemaining()
+					&& direct.read(buf, pos + buf.position()) > 0)
+				;
+		}
+	}
+
+	/**
+	 * Write a copy of the page in the background.
+	 */
+	public void write_page(PageId pageno, Page apage)
+			throws InvalidPageNumberException, FileIOException, IOException {
+		byte[] data = new byte[MINIBASE_PAGESIZE];
+		System.arraycopy(apage.getpage(), 0, data, 0, MINIBASE_PAGESIZE);
+		writeAsync(pageno, data);
+	}
+
+	/**
+	 * Wait for the writes in flight, then close the database.
+	 */
+	public void closeDB() throws IOException {
+		try {
+			sync();
+		} catch (FileIOException e) {
+			throw new IOException("background write failed: " + e);
+		} finally {
+			direct.close();
+			channel.close();
+			pool.shutdown();
+			base.closeDB();
+		}
+	}
+
+	public void DBDestroy() throws IOException {
+		try {
+			sync();
+		} catch (FileIOException e) {
+			throw new IOException("background write failed: " + e);
+		} finally {
+			direct.close();
+			channel.close();
+			pool.shutdown();
+			base.DBDestroy();
+		}
+	}
+
+	public void openDB(String fname) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		throw new DiskMgrException(null, "AsyncDB is opened by install()");
+	}
+
+	public void openDB(String fname, int num_pgs) throws IOException,
+			InvalidPageNumberException, FileIOException, DiskMgrException {
+		throw new DiskMgrException(null, "AsyncDB is opened by install()");
+	}
+
+	public void allocate_page(PageId start_page_num)
+			throws OutOfSpaceException, InvalidRunSizeException,
+			InvalidPageNumberException, FileIOException, DiskMgrException,
+			IOException {
+		base.allocate_page(start_page_num);
+	}
+
+	public void allocate_page(PageId start_page_num, int runsize)
+			throws OutOfSpaceException, InvalidRunSizeException,
+			InvalidPageNumberException, FileIOException, DiskMgrException,
+			IOException {
+		base.allocate_page(start_page_num, runsize);
+	}
+
+	public void deallocate_page(PageId start_page_num, int run_size)
+			throws InvalidRunSizeException, InvalidPageNumberException,
+			IOException, FileIOException, DiskMgrException {
+		forget(start_page_num, run_size);
+		base.deallocate_page(start_page_num, run_size);
+	}
+
+	public void deallocate_page(PageId start_page_num)
+			throws InvalidRunSizeException, InvalidPageNumberException,
+			IOException, FileIOException, DiskMgrException {
+		forget(start_page_num, 1);
+		base.deallocate_page(start_page_num);
+	}
+
+	public void add_file_entry(String fname, PageId start_page_num)
+			throws FileNameTooLongException, InvalidPageNumberException,
+			InvalidRunSizeException, DuplicateEntryException,
+			OutOfSpaceException, FileIOException, IOException,
+			DiskMgrException {
+		base.add_file_entry(fname, start_page_num);
+	}
+
+	public void delete_file_entry(String fname)
+			throws FileEntryNotFoundException, IOException, FileIOException,
+			InvalidPageNumberException, DiskMgrException {
+		base.delete_file_entry(fname);
+	}
+
+	public PageId get_file_entry(String name) throws IOException,
+			FileIOException, InvalidPageNumberException, DiskMgrException {
+		return base.get_file_entry(name);
+	}
+
+	public String db_name() {
+		return base.db_name();
+	}
+
+	public int db_num_pages() {
+		return base.db_num_pages();
+	}
+
+	public int db_page_size() {
+		return base.db_page_size();
+	}
+
+	public void dump_space_map() throws DiskMgrException, IOException,
+			FileIOException, InvalidPageNumberException {
+		base.dump_space_map();
+	}
+
+	/** @return pages read from the file, prefetches included. */
+	public long getReads() {
+		lock.lock();
+		try {
+			return reads;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return buffer misses served by a prefetch. */
+	public long getPrefetchHits() {
+		lock.lock();
+		try {
+			return prefetchHits;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return writes started. */
+	public long getWrites() {
+		lock.lock();
+		try {
+			return writesIssued;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** @return reads served by a write in flight. */
+	public long getWriteHits() {
+		lock.lock();
+		try {
+			return writeHits;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void check(PageId pageno) throws InvalidPageNumberException {
+		if (pageno.pid < 0 || pageno.pid >= base.db_num_pages())
+			throw new InvalidPageNumberException(null, "BAD_PAGE_NUMBER");
+	}
+
+	/* a freed page may be allocated again; its old contents are stale */
+	private void forget(PageId start, int count) {
+		lock.lock();
+		try {
+			for (int i = 0; i < count; i++)
+				prefetched.remove(Integer.valueOf(start.pid + i));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Drop the finished writes from the table, or wait for all of them.
+	 */
+	private void purge(boolean all) throws FileIOException {
+		FileIOException failed = null;
+		Iterator<Map.Entry<Integer, Write>> it = writes.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Write> e = it.next();
+			if (!all && !e.getValue().done.isDone())
+				continue;
+			it.remove();
+			try {
+				await(e.getValue().done, new PageId(e.getKey().intValue()));
+			} catch (FileIOException x) {
+				failed = x;
+			}
+		}
+		if (failed != null)
+			throw failed;
+	}
+
+	private static void await(Future<Integer> done, PageId pageno)
+			throws FileIOException {
+		try {
+			done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FileIOException(e, "interrupted on page " + pageno.pid);
+		} catch (ExecutionException e) {
+			throw new FileIOException(e, "I/O error on page " + pageno.pid);
+		}
+	}
+
+	private CompletableFuture<Integer> read(byte[] data, PageId pageno) {
+		CompletableFuture<Integer> done = new CompletableFuture<Integer>();
+		channel.read(ByteBuffer.wrap(data, 0, MINIBASE_PAGESIZE),
+				(long) pageno.pid * MINIBASE_PAGESIZE, done, COMPLETE);
+		return done;
+	}
+
+	/*
+	 * Thread.isVirtual() is only there on Java 21 and later.
+	 */
+	private static boolean onVirtualThread() {
+		if (IS_VIRTUAL == null)
+			return false;
+		try {
+			return ((Boolean) IS_VIRTUAL.invoke(Thread.currentThread()))
+					.booleanValue();
+		} catch (Exception e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,526 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Behavioral checks of the index features, run without input:
+ * <ol>
+ * <li>CompositeKey: the encodings of tuples compare as the tuples do, decode
+ * gives the columns back, and prefixEnd bounds the keys of a prefix.</li>
+ * <li>BTReverseScan: descending scans return their range in reverse, over
+ * duplicates spanning leaves and runs of empty leaves, and delete_current
+ * removes exactly the entries it is called on.</li>
+ * <li>BTFilteredScan: filters on the page and on the slot of the rids, with
+ * offsets and limits, return what filtering the decoded entries does.</li>
+ * <li>BTMergeScan: delete_current on a write buffer at its limit neither
+ * merges the buffer under the scan nor loses or repeats entries.</li>
+ * <li>BTSnapshotScan: a snapshot opened before a range delete returns every
+ * entry it saw, in order, after the freed pages are reused.</li>
+ * </ol>
+ */
+class CheckDriver extends TestDriver implements GlobalConst {
+
+	private final static int NUMBUF = 100;
+
+	public CheckDriver() {
+		super("btcheck");
+	}
+
+	protected String testName() {
+		return "B+ tree checks";
+	}
+
+	protected boolean runAllTests() {
+		new SystemDefs(dbpath, 10000, NUMBUF, "Clock");
+		return super.runAllTests();
+	}
+
+	/* print a failed check; returns FAIL */
+	private static boolean fail(String what) {
+		System.out.println("  *** " + what);
+		return FAIL;
+	}
+
+	/*
+	 * Test 1: composite keys. The order of the tuples is their first
+	 * column, then the next; strings in code point order, the order of
+	 * their UTF-8 bytes, a string before every longer one it starts.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: composite key encoding");
+		final int[] types = { AttrType.attrInteger, AttrType.attrString,
+				AttrType.attrInteger };
+		int[] ints = { Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -65536, -256,
+				-1, 0, 1, 255, 256, 65535, Integer.MAX_VALUE - 1,
+				Integer.MAX_VALUE };
+		String[] strings = { "", "\0", "\0\0", "\0a", "a", "a\0", "a\0\0",
+				"a\0b", "a\u0001", "ab", "b", "\u007f", "\u0080", "\u00e9",
+				"\u00ff", "\u0100", "\uffff", "\ud83d\ude00", "a\uffff" };
+		Random random = new Random(37);
+		List<Object[]> tuples = new ArrayList<Object[]>();
+		for (int i = 0; i < 400; i++)
+			tuples.add(new Object[] {
+					Integer.valueOf(i < ints.length ? ints[i] : ints[random
+							.nextInt(ints.length)]),
+					strings[random.nextInt(strings.length)],
+					Integer.valueOf(random.nextInt(5) - 2) });
+
+		try {
+			// every pair compares as the tuples do, and decodes back
+			List<CompositeKey> keys = new ArrayList<CompositeKey>();
+			for (Object[] t : tuples) {
+				CompositeKey key = encode(t, t.length);
+				Object[] back = CompositeKey.decode(key, types);
+				if (!Arrays.equals(back, t))
+					return fail("decode " + Arrays.toString(t) + " gave "
+							+ Arrays.toString(back));
+				keys.add(key);
+			}
+			for (int i = 0; i < tuples.size(); i++)
+				for (int j = 0; j < tuples.size(); j++) {
+					int expected = compare(tuples.get(i), tuples.get(j));
+					int found = BT.keyCompare(keys.get(i), keys.get(j));
+					if (Integer.signum(expected) != Integer.signum(found))
+						return fail("order of " + Arrays.toString(tuples.get(i))
+								+ " and " + Arrays.toString(tuples.get(j)));
+				}
+
+			// a key is within [prefix, prefix.prefixEnd()] iff it starts
+			// with the prefix
+			for (int i = 0; i < 100; i++)
+				for (int columns = 1; columns < types.length; columns++) {
+					Object[] p = tuples.get(i);
+					CompositeKey prefix = encode(p, columns);
+					StringKey end = prefix.prefixEnd();
+					for (int j = 0; j < tuples.size(); j++) {
+						Object[] t = tuples.get(j);
+						boolean starts = true;
+						for (int c = 0; c < columns; c++)
+							starts &= t[c].equals(p[c]);
+						boolean within = BT.keyCompare(keys.get(j), prefix) >= 0
+								&& BT.keyCompare(keys.get(j), end) <= 0;
+						if (starts != within)
+							return fail("prefix of " + columns + " columns of "
+									+ Arrays.toString(p) + " and "
+									+ Arrays.toString(t));
+					}
+				}
+
+			// through an index: a full scan in tuple order, a prefix scan
+			int keySize = CompositeKey.maxKeySize(types,
+					new int[] { 0, 8, 0 });
+			BTreeFile file = new BTreeFile("CHECK1", AttrType.attrString,
+					keySize, 0);
+			for (int i = 0; i < tuples.size(); i++)
+				file.insert(keys.get(i), new RID(new PageId(i), i));
+			List<Object[]> sorted = new ArrayList<Object[]>(tuples);
+			Collections.sort(sorted, new Comparator<Object[]>() {
+				public int compare(Object[] a, Object[] b) {
+					return CheckDriver.compare(a, b);
+				}
+			});
+			BTFileScan scan = file.new_scan(null, null);
+			KeyDataEntry e;
+			int n = 0;
+			while ((e = scan.get_next()) != null) {
+				Object[] t = CompositeKey.decode(e.key, types);
+				if (compare(t, sorted.get(n++)) != 0)
+					return fail("scan position " + (n - 1) + " holds "
+							+ Arrays.toString(t));
+			}
+			scan.DestroyBTreeFileScan();
+			if (n != tuples.size())
+				return fail("scan returned " + n + " keys");
+
+			CompositeKey prefix = new CompositeKey().add(-1);
+			int expected = 0;
+			for (Object[] t : tuples)
+				if (((Integer) t[0]).intValue() == -1)
+					expected++;
+			scan = file.new_scan(prefix, prefix.prefixEnd());
+			n = 0;
+			while ((e = scan.get_next()) != null) {
+				if (((Integer) CompositeKey.decode(e.key, types)[0]).intValue() != -1)
+					return fail("prefix scan returned another first column");
+				n++;
+			}
+			scan.DestroyBTreeFileScan();
+			if (n != expected)
+				return fail("prefix scan returned " + n + " keys of "
+						+ expected);
+			file.destroyFile();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			return fail("exception");
+		}
+		System.out.println("  Test 1 completed successfully.");
+		return OK;
+	}
+
+	/*
+	 * Test 2: descending scans. Every key has more entries than a leaf holds;
+	 * the entries of some keys are then deleted one by one, which leaves
+	 * their leaves empty in the chain.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: descending scans");
+		final int keys = 100;
+		final int copies = 120;
+		try {
+			BTreeFile file = new BTreeFile("CHECK2", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			// inserted in an order that is neither the key nor the rid order
+			Random random = new Random(39);
+			List<Integer> order = new ArrayList<Integer>();
+			for (int i = 0; i < keys * copies; i++)
+				order.add(Integer.valueOf(i));
+			Collections.shuffle(order, random);
+			for (Integer i : order)
+				file.insert(new IntegerKey(i.intValue() % keys), new RID(
+						new PageId(i.intValue()), i.intValue() / keys));
+			int[][] ranges = { { -1, -1 }, { 10, 10 }, { 10, 11 }, { 0, 0 },
+					{ 99, 99 }, { 37, 62 }, { -5, 3 }, { 97, 200 }, { 50, 40 },
+					{ 200, 300 } };
+			if (!checkDescending(file, ranges, "duplicates"))
+				return FAIL;
+
+			// empty the leaves of keys 40 to 59
+			for (int i = 0; i < keys * copies; i++)
+				if (i % keys >= 40 && i % keys < 60)
+					if (!file.Delete(new IntegerKey(i % keys), new RID(
+							new PageId(i), i / keys)))
+						return fail("entry " + i + " not deleted");
+			if (BTAnalyzer.analyze(file, "CHECK2").emptyLeaves == 0)
+				return fail("no empty leaf to scan over");
+			int[][] holes = { { -1, -1 }, { 30, 70 }, { 45, 55 }, { 40, 59 },
+					{ 45, 65 }, { 35, 50 }, { 50, 50 }, { 59, 60 }, { 39, 40 } };
+			if (!checkDescending(file, holes, "empty leaves"))
+				return FAIL;
+
+			// delete every third entry of a range while scanning it down
+			BTFileScan scan = file.new_scan(new IntegerKey(20),
+					new IntegerKey(80), ScanOrder.DESCENDING);
+			List<String> returned = new ArrayList<String>();
+			List<String> kept = new ArrayList<String>();
+			KeyDataEntry e;
+			while ((e = scan.get_next()) != null) {
+				returned.add(entry(e));
+				if (returned.size() % 3 == 0)
+					scan.delete_current();
+				else
+					kept.add(entry(e));
+			}
+			scan.DestroyBTreeFileScan();
+			if (returned.size() != 41 * copies)
+				return fail("deleting scan returned " + returned.size()
+						+ " entries");
+			for (int i = 1; i < returned.size(); i++)
+				if (key(returned.get(i)) > key(returned.get(i - 1)))
+					return fail("deleting scan went up at " + i);
+			Collections.reverse(kept);
+			if (!scan(file, new IntegerKey(20), new IntegerKey(80),
+					ScanOrder.ASCENDING).equals(kept))
+				return fail("entries left by the deleting scan");
+			if (!checkDescending(file, holes, "after deletes"))
+				return FAIL;
+			file.destroyFile();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			return fail("exception");
+		}
+		System.out.println("  Test 2 completed successfully.");
+		return OK;
+	}
+
+	/*
+	 * Test 3: filtered scans on the rids. No rid has its page number equal
+	 * to its slot number, so a filter that reads one for the other fails.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: scan filters on rids");
+		ScanFilter byPage = new ScanFilter() {
+			public boolean accept(byte[] data, int offset, int length) {
+				try {
+					return BTFilteredScan.ridPage(data, offset, length) % 3 == 0;
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		ScanFilter bySlot = new ScanFilter() {
+			public boolean accept(byte[] data, int offset, int length) {
+				try {
+					return BTFilteredScan.ridSlot(data, offset, length) == 5;
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		int[][] ranges = { { -1, -1 }, { 100, 300 }, { -1, 50 }, { 450, -1 },
+				{ 77, 77 } };
+		int[][] windows = { { 0, -1 }, { 0, 10 }, { 7, 25 }, { 50, 0 } };
+		try {
+			for (int buffered = 0; buffered < 2; buffered++) {
+				BTreeFile file = new BTreeFile("CHECK3", AttrType.attrInteger,
+						4, 0);
+				// with a write buffer, the last entries stay in it
+				if (buffered == 1)
+					file.enableWriteBuffer(1000);
+				for (int i = 0; i < 5000; i++)
+					file.insert(new IntegerKey(i % 500), new RID(new PageId(
+							1000 + i), i % 13));
+				for (int f = 0; f < 2; f++) {
+					ScanFilter filter = f == 0 ? byPage : bySlot;
+					for (int[] r : ranges)
+						for (int[] w : windows)
+							for (int order = 0; order < 2; order++) {
+								int o = order == 0 ? ScanOrder.ASCENDING
+										: ScanOrder.DESCENDING;
+								KeyClass lo = r[0] < 0 ? null : new IntegerKey(
+										r[0]);
+								KeyClass hi = r[1] < 0 ? null : new IntegerKey(
+										r[1]);
+								List<String> expected = new ArrayList<String>();
+								int skipped = 0;
+								for (String e : scan(file, lo, hi, o)) {
+									String[] parts = e.split(" ");
+									boolean accept = f == 0 ? Integer
+											.parseInt(parts[1]) % 3 == 0
+											: Integer.parseInt(parts[2]) == 5;
+									if (!accept)
+										continue;
+									if (skipped < w[0]) {
+										skipped++;
+										continue;
+									}
+									if (w[1] >= 0 && expected.size() == w[1])
+										break;
+									expected.add(e);
+								}
+								List<String> found = new ArrayList<String>();
+								BTFileScan scan = file.new_scan(lo, hi, o,
+										filter, w[0], w[1]);
+								KeyDataEntry e;
+								while ((e = scan.get_next()) != null)
+									found.add(entry(e));
+								scan.DestroyBTreeFileScan();
+								if (!found.equals(expected))
+									return fail((f == 0 ? "page" : "slot")
+											+ " filter on " + r[0] + ".."
+											+ r[1] + ", offset " + w[0]
+											+ ", limit " + w[1] + " returned "
+											+ found.size() + " entries of "
+											+ expected.size());
+							}
+				}
+				file.destroyFile();
+			}
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			return fail("exception");
+		}
+		System.out.println("  Test 3 completed successfully.");
+		return OK;
+	}
+
+	/*
+	 * Test 4: deletes from a scan of an index with a write buffer. The buffer
+	 * is at 40 of its 50 pairs when the scan starts, and the scan deletes
+	 * every even key, far more than the buffer holds.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: deletes from a merge scan");
+		try {
+			BTreeFile file = new BTreeFile("CHECK4", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			for (int i = 0; i < 3000; i++)
+				file.insert(new IntegerKey(i), new RID(new PageId(i), 0));
+			file.enableWriteBuffer(50);
+			// second copies of odd keys, left in the buffer
+			for (int i = 0; i < 40; i++)
+				file.insert(new IntegerKey(2 * i + 1), new RID(new PageId(i), 1));
+			if (file.getWriteBufferSize() != 40)
+				return fail("buffer holds " + file.getWriteBufferSize()
+						+ " pairs");
+
+			BTFileScan scan = file.new_scan(null, null);
+			Set<String> returned = new HashSet<String>();
+			int n = 0;
+			KeyDataEntry e;
+			while ((e = scan.get_next()) != null) {
+				returned.add(entry(e));
+				n++;
+				if (((IntegerKey) e.key).getKey().intValue() % 2 == 0)
+					scan.delete_current();
+			}
+			scan.DestroyBTreeFileScan();
+			if (n != 3040 || returned.size() != 3040)
+				return fail("scan returned " + n + " entries, "
+						+ returned.size() + " distinct, of 3040");
+
+			List<String> left = scan(file, null, null, ScanOrder.ASCENDING);
+			for (String s : left)
+				if (key(s) % 2 == 0)
+					return fail(s + " was deleted");
+			if (left.size() != 1540)
+				return fail(left.size() + " entries left of 1540");
+			file.flushWriteBuffer();
+			if (scan(file, null, null, ScanOrder.ASCENDING).size() != 1540)
+				return fail("entries lost when the buffer was merged");
+			file.destroyFile();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			return fail("exception");
+		}
+		System.out.println("  Test 4 completed successfully.");
+		return OK;
+	}
+
+	/*
+	 * Test 5: a range delete under an open snapshot. The delete frees most
+	 * of the leaves without reading them, and the inserts after it take the
+	 * freed pages again.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: range delete under a snapshot");
+		try {
+			BTreeFile file = new BTreeFile("CHECK5", AttrType.attrInteger, 4,
+					DeleteFashion.NAIVE_DELETE);
+			for (int i = 0; i < 20000; i++)
+				file.insert(new IntegerKey(i), new RID(new PageId(i), 0));
+			BTFileScan snapshot = file.new_scan(null, null, true);
+			file.deleteRange(new IntegerKey(2000), new IntegerKey(15000));
+			for (int i = 0; i < 20000; i++)
+				file.insert(new IntegerKey(100000 + i), new RID(new PageId(i),
+						1));
+
+			int n = 0;
+			KeyDataEntry e;
+			while ((e = snapshot.get_next()) != null) {
+				int k = ((IntegerKey) e.key).getKey().intValue();
+				if (k != n)
+					return fail("snapshot returned " + k + " for entry " + n);
+				n++;
+			}
+			snapshot.DestroyBTreeFileScan();
+			if (n != 20000)
+				return fail("snapshot returned " + n + " entries of 20000");
+
+			List<String> left = scan(file, null, null, ScanOrder.ASCENDING);
+			if (left.size() != 26999)
+				return fail(left.size() + " entries left of 26999");
+			file.destroyFile();
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			return fail("exception");
+		}
+		System.out.println("  Test 5 completed successfully.");
+		return OK;
+	}
+
+	/*
+	 * Each range, -1 for no bound, scanned down must give the entries of
+	 * the range scanned up, in reverse.
+	 */
+	private static boolean checkDescending(BTreeFile file, int[][] ranges,
+			String what) throws Exception {
+		for (int[] r : ranges) {
+			KeyClass lo = r[0] < 0 ? null : new IntegerKey(r[0]);
+			KeyClass hi = r[1] < 0 ? null : new IntegerKey(r[1]);
+			List<String> up = scan(file, lo, hi, ScanOrder.ASCENDING);
+			List<String> down = scan(file, lo, hi, ScanOrder.DESCENDING);
+			for (String s : up)
+				if ((lo != null && key(s) < r[0]) || (hi != null && key(s) > r[1]))
+					return fail(what + ": " + s + " is outside " + r[0] + ".."
+							+ r[1]);
+			Collections.reverse(down);
+			if (!down.equals(up))
+				return fail(what + ": descending scan of " + r[0] + ".." + r[1]
+						+ " returned " + down.size() + " entries of "
+						+ up.size());
+		}
+		return OK;
+	}
+
+	private static List<String> scan(BTreeFile file, KeyClass lo,
+			KeyClass hi, int order) throws Exception {
+		List<String> entries = new ArrayList<String>();
+		BTFileScan scan = file.new_scan(lo, hi, order);
+		KeyDataEntry e;
+		while ((e = scan.get_next()) != null)
+			entries.add(entry(e));
+		scan.DestroyBTreeFileScan();
+		return entries;
+	}
+
+	/* an entry of an integer key index as "key page slot" */
+	private static String entry(KeyDataEntry e) {
+		RID rid = ((LeafData) e.data).getData();
+		return ((IntegerKey) e.key).getKey() + " " + rid.pageNo.pid + " "
+				+ rid.slotNo;
+	}
+
+	private static int key(String entry) {
+		return Integer.parseInt(entry.substring(0, entry.indexOf(' ')));
+	}
+
+	/* the key of the first `columns' columns of a tuple */
+	private static CompositeKey encode(Object[] t, int columns) {
+		CompositeKey key = new CompositeKey();
+		for (int c = 0; c < columns; c++) {
+			if (t[c] instanceof Integer)
+				key.add(((Integer) t[c]).intValue());
+			else
+				key.add((String) t[c]);
+		}
+		return key;
+	}
+
+	/* tuple order, strings by code point */
+	private static int compare(Object[] a, Object[] b) {
+		for (int c = 0; c < a.length; c++) {
+			int r;
+			if (a[c] instanceof Integer)
+				r = ((Integer) a[c]).compareTo((Integer) b[c]);
+			else
+				r = compareCodePoints((String) a[c], (String) b[c]);
+			if (r != 0)
+				return r;
+		}
+		return 0;
+	}
+
+	private static int compareCodePoints(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int x = a.codePointAt(i);
+			int y = b.codePointAt(j);
+			if (x != y)
+				return x < y ? -1 : 1;
+			i += Character.charCount(x);
+			j += Character.charCount(y);
+		}
+		return i < a.length() ? 1 : j < b.length() ? -1 : 0;
+	}
+}
+
+public class BTCheckTest {
+
+	public static void main(String[] argvs) {
+		try {
+			CheckDriver check = new CheckDriver();
+			boolean ok = check.runTests();
+			if (!ok)
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during B+ tree checks:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package tests;
+
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import diskmgr.*;
+import global.*;
+import btree.*;
+
+/**
+ * Lookups from many threads at once through a BTConcurrentFile.
+ * <p>
+ * Usage: BTConcurrencyBench [threads [lookups per thread [buffers]]]
+ * <p>
+ * On Java 21 and later every lookup thread is a virtual thread, and the
+ * benchmark prints how many carrier threads ran them and the peak number of
+ * platform threads; run with -Djdk.tracePinnedThreads=full to see any
+ * carrier pinned while blocked. Older Java has no virtual threads, so the
+ * same tasks run on a pool of platform threads instead.
+ */
+public class BTConcurrencyBench implements GlobalConst {
+
+	private final static int KEYS = 20000;
+	private final static int DUPLICATES = 2;
+
+	public static void main(String[] argv) {
+		int threads = argv.length > 0 ? Integer.parseInt(argv[0]) : 10000;
+		int lookups = argv.length > 1 ? Integer.parseInt(argv[1]) : 10;
+		int buffers = argv.length > 2 ? Integer.parseInt(argv[2]) : 100;
+		String dbpath = "BTBENCH" + new Random().nextInt() + ".minibase-db";
+		try {
+			new SystemDefs(dbpath, 20000, buffers, "Clock");
+			AsyncDB.install(4);
+			BTreeFile tree = new BTreeFile("BENCH", AttrType.attrInteger, 4, 0);
+			for (int i = 0; i < KEYS * DUPLICATES; i++)
+				tree.insert(new IntegerKey(i % KEYS), new RID(new PageId(i), i));
+			final BTConcurrentFile file = new BTConcurrentFile(tree);
+
+			ThreadFactory virtual = virtualThreadFactory();
+			ExecutorService platform = null;
+			if (virtual == null) {
+				System.out.println("no virtual threads on this Java,"
+						+ " using a pool of platform threads");
+				platform = Executors.newFixedThreadPool(Runtime.getRuntime()
+						.availableProcessors() * 2);
+			}
+
+			final int perThread = lookups;
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(threads);
+			final AtomicLong found = new AtomicLong();
+			final AtomicLong failed = new AtomicLong();
+			final Set<String> carriers = Collections
+					.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+			ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+			mx.resetPeakThreadCount();
+
+			for (int t = 0; t < threads; t++) {
+				final int seed = t;
+				Runnable task = new Runnable() {
+					public void run() {
+						Random random = new Random(seed);
+						try {
+							start.await();
+							for (int i = 0; i < perThread; i++) {
+								List<RID> rids = file.lookup(new IntegerKey(
+										random.nextInt(KEYS)));
+								if (rids.size() == DUPLICATES)
+									found.incrementAndGet();
+								else
+									failed.incrementAndGet();
+							}
+							// "VirtualThread[#22]/runnable@ForkJoinPool-1-worker-3"
+							String name = Thread.currentThread().toString();
+							int at = name.lastIndexOf('@');
+							if (at >= 0)
+								carriers.add(name.substring(at + 1));
+						} catch (Exception e) {
+							e.printStackTrace();
+							failed.incrementAndGet();
+						} finally {
+							done.countDown();
+						}
+					}
+				};
+				if (virtual != null)
+					virtual.newThread(task).start();
+				else
+					platform.execute(task);
+			}
+
+			long t0 = System.nanoTime();
+			start.countDown();
+			done.await();
+			long ms = (System.nanoTime() - t0) / 1000000;
+			if (platform != null)
+				platform.shutdown();
+
+			long total = (long) threads * lookups;
+			System.out.println(threads + " threads, " + total + " lookups in "
+					+ ms + " ms, " + (ms == 0 ? total : total * 1000 / ms)
+					+ " per second");
+			System.out.println("found " + found.get() + ", failed "
+					+ failed.get());
+			if (virtual != null)
+				System.out.println("carrier threads " + carriers.size());
+			System.out.println("peak platform threads "
+					+ mx.getPeakThreadCount());
+
+			file.close();
+			SystemDefs.JavabaseDB.DBDestroy();
+			if (failed.get() > 0)
+				Runtime.getRuntime().exit(1);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during concurrency bench:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+
+	/*
+	 * Thread.ofVirtual().factory(), found by reflection so that this
+	 * compiles and runs on Java before 21; null there.
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+}
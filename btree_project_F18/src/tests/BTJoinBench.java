@@ -0,0 +1,194 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Joins of a heap file of tuples with an index on their first field: a
+ * descent per tuple, BTIndexJoin with blocks of several sizes, and a merge
+ * join of the sorted tuples with a scan of the whole index. Every join
+ * must find the same pairs.
+ * <p>
+ * Usage: BTJoinBench [entries [tuples]]
+ * <p>
+ * The index holds `entries' entries, two per key; the tuples have keys
+ * drawn at random over twice the keys of the index, so about half of them
+ * find no entry.
+ */
+public class BTJoinBench implements GlobalConst {
+
+	private final static int[] BLOCKS = { 10, 100, 1000, 10000 };
+
+	public static void main(String[] argv) {
+		int entries = argv.length > 0 ? Integer.parseInt(argv[0]) : 100000;
+		int tuples = argv.length > 1 ? Integer.parseInt(argv[1]) : 50000;
+		String dbpath = "BTJOIN" + new Random().nextInt() + ".minibase-db";
+		try {
+			new SystemDefs(dbpath, 20000, 1000, "Clock");
+			AttrType[] types = { new AttrType(AttrType.attrInteger),
+					new AttrType(AttrType.attrInteger) };
+
+			BTreeFile inner = new BTreeFile("inner", AttrType.attrInteger, 4, 0);
+			for (int i = 0; i < entries; i++)
+				inner.insert(new IntegerKey(i / 2), new RID(new PageId(i),
+						i % 100));
+
+			Heapfile outer = new Heapfile("outer");
+			Random random = new Random(1);
+			Tuple t = new Tuple();
+			t.setHdr((short) 2, types, null);
+			for (int i = 0; i < tuples; i++) {
+				t.setIntFld(1, random.nextInt(entries));
+				t.setIntFld(2, i);
+				outer.insertRecord(t.getTupleByteArray());
+			}
+			System.out.println(entries + " entries, " + tuples + " tuples");
+
+			// once to warm up, once measured
+			for (int pass = 0; pass < 2; pass++) {
+				boolean print = pass == 1;
+				long expected = descentJoin(outer, types, inner, print);
+				for (int b = 0; b < BLOCKS.length; b++)
+					check(blockJoin(outer, types, inner, BLOCKS[b], print),
+							expected);
+				check(mergeJoin(outer, types, inner, print), expected);
+			}
+
+			inner.destroyFile();
+			outer.deleteFile();
+			SystemDefs.JavabaseDB.DBDestroy();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during join bench:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+
+	/* a new_scan per tuple; returns the pairs found and their checksum */
+	private static long descentJoin(Heapfile outer, AttrType[] types,
+			BTreeFile inner, boolean print) throws Exception {
+		long t0 = System.nanoTime();
+		long pairs = 0;
+		long sum = 0;
+		int tuples = 0;
+		Scan scan = outer.openScan();
+		RID rid = new RID();
+		Tuple t;
+		while ((t = scan.getNext(rid)) != null) {
+			t.setHdr((short) 2, types, null);
+			IntegerKey key = new IntegerKey(t.getIntFld(1));
+			BTFileScan probe = inner.new_scan(key, key);
+			KeyDataEntry e;
+			while ((e = probe.get_next()) != null) {
+				pairs++;
+				sum += pair(t, e);
+			}
+			probe.DestroyBTreeFileScan();
+			tuples++;
+		}
+		scan.closescan();
+		report("descent per tuple", System.nanoTime() - t0, tuples, pairs,
+				null, print);
+		return pairs * 31 + sum;
+	}
+
+	private static long blockJoin(Heapfile outer, AttrType[] types,
+			BTreeFile inner, int block, boolean print) throws Exception {
+		long t0 = System.nanoTime();
+		long pairs = 0;
+		long sum = 0;
+		BTIndexJoin join = new BTIndexJoin(outer, types, null, 1, inner, block);
+		KeyDataEntry e;
+		while ((e = join.get_next()) != null) {
+			pairs++;
+			sum += pair(join.getOuter(), e);
+		}
+		long lookups = join.getLookups();
+		report("index join, block " + block, System.nanoTime() - t0,
+				outer.getRecCnt(), pairs, "lookups " + lookups
+						+ ": descents " + join.getDescents()
+						+ ", moves right " + join.getMovesRight()
+						+ ", same leaf " + join.getSameLeaf(), print);
+		return pairs * 31 + sum;
+	}
+
+	/* sort every tuple, then one pass over the index */
+	private static long mergeJoin(Heapfile outer, AttrType[] types,
+			BTreeFile inner, boolean print) throws Exception {
+		long t0 = System.nanoTime();
+		ArrayList<Tuple> sorted = new ArrayList<Tuple>();
+		Scan scan = outer.openScan();
+		RID rid = new RID();
+		Tuple t;
+		while ((t = scan.getNext(rid)) != null) {
+			t.setHdr((short) 2, types, null);
+			sorted.add(t);
+		}
+		scan.closescan();
+		Collections.sort(sorted, new Comparator<Tuple>() {
+			public int compare(Tuple a, Tuple b) {
+				try {
+					int x = a.getIntFld(1);
+					int y = b.getIntFld(1);
+					return x < y ? -1 : x == y ? 0 : 1;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+
+		long pairs = 0;
+		long sum = 0;
+		BTFileScan all = inner.new_scan(null, null);
+		KeyDataEntry e = all.get_next();
+		// the entries of the current key, for the tuples that share it
+		ArrayList<KeyDataEntry> run = new ArrayList<KeyDataEntry>();
+		int runKey = 0;
+		for (int i = 0; i < sorted.size(); i++) {
+			int key = sorted.get(i).getIntFld(1);
+			if (run.isEmpty() || runKey != key) {
+				run.clear();
+				runKey = key;
+				while (e != null && ((IntegerKey) e.key).getKey().intValue() < key)
+					e = all.get_next();
+				while (e != null && ((IntegerKey) e.key).getKey().intValue() == key) {
+					run.add(e);
+					e = all.get_next();
+				}
+			}
+			for (int j = 0; j < run.size(); j++) {
+				pairs++;
+				sum += pair(sorted.get(i), run.get(j));
+			}
+		}
+		all.DestroyBTreeFileScan();
+		report("merge join", System.nanoTime() - t0, sorted.size(), pairs,
+				null, print);
+		return pairs * 31 + sum;
+	}
+
+	/* what a pair adds to the checksum */
+	private static long pair(Tuple t, KeyDataEntry e) throws Exception {
+		RID rid = ((LeafData) e.data).getData();
+		return (long) t.getIntFld(2) * 1000003 + rid.pageNo.pid * 131L
+				+ rid.slotNo;
+	}
+
+	private static void check(long found, long expected) {
+		if (found != expected)
+			throw new RuntimeException("wrong pairs: " + found + " for "
+					+ expected);
+	}
+
+	private static void report(String name, long ns, int tuples, long pairs,
+			String detail, boolean print) {
+		if (!print)
+			return;
+		System.out.println("  " + name + ": " + ns / tuples
+				+ " ns per tuple, " + pairs + " pairs"
+				+ (detail == null ? "" : ", " + detail));
+	}
+}
@@ -0,0 +1,105 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Point lookups with each BTKeySearch strategy, over uniformly spread keys
+ * and over skewed keys.
+ * <p>
+ * Usage: BTSearchBench [keys [lookups]]
+ * <p>
+ * For BINARY, INTERPOLATION and EYTZINGER it prints the keys read and the
+ * 64 byte lines touched per page searched and per descent, which is what a
+ * descent costs in cache misses once its pages are in the buffer pool;
+ * EYTZINGER touches the lines of its copies of the index pages. LINEAR is
+ * the search of BTIndexPage and BTLeafPage, which decodes every entry it
+ * passes; it is only timed.
+ */
+public class BTSearchBench implements GlobalConst {
+
+	private final static String[] NAMES = { "linear", "binary",
+			"interpolation", "eytzinger" };
+
+	public static void main(String[] argv) {
+		int keys = argv.length > 0 ? Integer.parseInt(argv[0]) : 50000;
+		int lookups = argv.length > 1 ? Integer.parseInt(argv[1]) : 200000;
+		String dbpath = "BTSEARCH" + new Random().nextInt() + ".minibase-db";
+		try {
+			new SystemDefs(dbpath, 20000, 1000, "Clock");
+			Random random = new Random(1);
+			int[] uniform = new int[keys];
+			int[] skewed = new int[keys];
+			for (int i = 0; i < keys; i++) {
+				uniform[i] = random.nextInt(Integer.MAX_VALUE);
+				// most keys small, a few huge
+				skewed[i] = (int) Math.min(Integer.MAX_VALUE,
+						Math.pow(random.nextDouble(), 8) * Integer.MAX_VALUE);
+			}
+			run("uniform", uniform, lookups);
+			run("skewed", skewed, lookups);
+			SystemDefs.JavabaseDB.DBDestroy();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println("Error encountered during search bench:\n");
+			Runtime.getRuntime().exit(1);
+		}
+	}
+
+	private static void run(String name, int[] keys, int lookups)
+			throws Exception {
+		BTreeFile tree = new BTreeFile(name, AttrType.attrInteger, 4, 0);
+		for (int i = 0; i < keys.length; i++)
+			tree.insert(new IntegerKey(keys[i]), new RID(new PageId(i), i));
+
+		System.out.println(name + " keys, " + keys.length + " entries, "
+				+ lookups + " lookups");
+		for (int strategy = BTKeySearch.LINEAR; strategy <= BTKeySearch.EYTZINGER; strategy++) {
+			tree.setSearchStrategy(strategy);
+			Random random = new Random(2);
+			// once to warm up, once measured
+			for (int pass = 0; pass < 2; pass++) {
+				BTKeySearch.resetCounters();
+				long found = 0;
+				long t0 = System.nanoTime();
+				for (int i = 0; i < lookups; i++) {
+					IntegerKey key = new IntegerKey(keys[random
+							.nextInt(keys.length)]);
+					BTFileScan scan = tree.new_scan(key, key);
+					if (scan.get_next() != null)
+						found++;
+					scan.DestroyBTreeFileScan();
+				}
+				long ns = System.nanoTime() - t0;
+				if (pass == 0)
+					continue;
+				if (found != lookups)
+					throw new RuntimeException("lost keys: found " + found
+							+ " of " + lookups);
+				StringBuilder line = new StringBuilder();
+				line.append("  ").append(NAMES[strategy]).append(": ")
+						.append(ns / lookups).append(" ns per lookup");
+				long pages = BTKeySearch.getSearches();
+				if (pages > 0)
+					line.append(", keys read per page ").append(
+							perCent(BTKeySearch.getComparisons(), pages))
+							.append(" per descent ").append(
+									perCent(BTKeySearch.getComparisons(),
+											lookups)).append(
+									", lines per descent ").append(
+									perCent(BTKeySearch.getLinesTouched(),
+											lookups)).append(", skewed pages ")
+							.append(BTKeySearch.getFallbacks());
+				System.out.println(line);
+			}
+		}
+		tree.destroyFile();
+	}
+
+	private static String perCent(long n, long d) {
+		long h = n * 100 / d;
+		return h / 100 + "." + (h % 100 < 10 ? "0" : "") + h % 100;
+	}
+}